@@ -36,6 +36,7 @@ import java.util.Properties;
 @ComponentScans(value = {@ComponentScan("edu.gatech.chai.omopv5.jpa.dao"),
     @ComponentScan("edu.gatech.chai.omopv5.dba.service"),
     @ComponentScan("edu.gatech.chai.omoponfhir.smart.dao"),
+    @ComponentScan("edu.gatech.chai.omoponfhir.smart.service"),
     @ComponentScan("edu.gatech.chai.omoponfhir.local.task")})
 @ImportResource({
     "classpath:database-config.xml"
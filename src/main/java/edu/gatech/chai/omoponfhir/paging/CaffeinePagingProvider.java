@@ -0,0 +1,559 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package edu.gatech.chai.omoponfhir.paging;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.sql.DataSource;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.server.BasePagingProvider;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+
+/**
+ * Paging provider that keeps search results for the _getpages links, bounded
+ * by their estimated heap size (FHIR_PAGING_MAX_MB, default 256) and by time
+ * since last used (FHIR_PAGING_TTL_MIN, default 60).
+ *
+ * Results that are already in memory (SimpleBundleProvider) are reduced to
+ * the ids of their resources, and each page is read by id when asked for.
+ * Numeric ids of large results are kept off the heap ({@link LongIdStorage}).
+ * Other bundle providers query the database per page themselves and are kept
+ * as they are.
+ *
+ * With more than one node, set FHIR_PAGING_STORE to share the results:
+ * <ul>
+ * <li>jdbc keeps them in the database of the server ({@link JdbcPagingStore}),</li>
+ * <li>mmap keeps them in files under FHIR_PAGING_DIR
+ * ({@link MappedFilePagingStore}).</li>
+ * </ul>
+ * Then the ids of a result are written to the store, and a node that does
+ * not have a search loads it from there. Results already in memory are
+ * written with the search. The ids of results that query per page are read in
+ * the background, and only for results of up to FHIR_PAGING_STORE_MAX_IDS
+ * (default 10000) resources. Larger results, and results whose ids are not
+ * written yet, page only on the node that ran the search. Shared results
+ * expire FHIR_PAGING_TTL_MIN after the search, and are removed every
+ * FHIR_PAGING_CLEANUP_MIN (default 5).
+ *
+ * Bundle providers that query per page use OFFSET, which gets slower with
+ * every page. With FHIR_PAGING_KEYSET=True, the first request for a page at
+ * offset FHIR_PAGING_KEYSET_MIN_OFFSET (default 1000) or later starts reading
+ * the ids of the result, once, in the order of the search, in the background.
+ * Reading them runs the search again, through the bundle provider. Once they
+ * are there, a page is read by primary key at its position in the ids (see
+ * {@link ResourceReader#readAll(List)}), so a page costs the same wherever it
+ * is in the result. Until then, pages come from the bundle provider. The ids
+ * count against FHIR_PAGING_MAX_MB like any other result, and a result whose
+ * ids would take more than half of it keeps paging with OFFSET. With the
+ * default 256 MB and ids off the heap, that is over 16 million resources.
+ *
+ * Ids are read in the background by FHIR_PAGING_ID_THREADS threads (default
+ * 2).
+ *
+ * Counts are published over JMX as
+ * edu.gatech.chai.omoponfhir:type=PagingProvider
+ */
+public class CaffeinePagingProvider extends BasePagingProvider implements CaffeinePagingProviderMBean {
+	private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(CaffeinePagingProvider.class);
+
+	// Bundle providers that query per page hold only their search parameters.
+	private static final int LAZY_PROVIDER_BYTES = 1024;
+	// Heap estimate per resource of results that could not be reduced to ids.
+	private static final int MATERIALIZED_RESOURCE_BYTES = 4096;
+
+	/**
+	 * Result that queries per page. Starts reading its ids the first time a
+	 * page deep in it is asked for.
+	 */
+	private final class DeepPagingWatcher implements IBundleProvider {
+		private final String uuid;
+		private final IBundleProvider bundle;
+		private final AtomicBoolean started = new AtomicBoolean(false);
+
+		DeepPagingWatcher(String uuid, IBundleProvider bundle) {
+			this.uuid = uuid;
+			this.bundle = bundle;
+		}
+
+		@Override
+		public List<IBaseResource> getResources(int theFromIndex, int theToIndex) {
+			if (theFromIndex >= keysetMinOffset && started.compareAndSet(false, true)) {
+				submitReadIds(uuid, bundle, false, true);
+			}
+			return bundle.getResources(theFromIndex, theToIndex);
+		}
+
+		@Override
+		public String getCurrentPageId() {
+			return bundle.getCurrentPageId();
+		}
+
+		@Override
+		public String getNextPageId() {
+			return bundle.getNextPageId();
+		}
+
+		@Override
+		public String getPreviousPageId() {
+			return bundle.getPreviousPageId();
+		}
+
+		@Override
+		public IPrimitiveType<Date> getPublished() {
+			return bundle.getPublished();
+		}
+
+		@Override
+		public String getUuid() {
+			return bundle.getUuid();
+		}
+
+		@Override
+		public Integer preferredPageSize() {
+			return bundle.preferredPageSize();
+		}
+
+		@Override
+		public Integer size() {
+			return bundle.size();
+		}
+	}
+
+	private static final class StoredResult {
+		final IBundleProvider bundle;
+		final int weight;
+
+		StoredResult(IBundleProvider bundle, int weight) {
+			this.bundle = bundle;
+			this.weight = weight;
+		}
+	}
+
+	private final ResourceReader reader;
+	private final LongIdStorage idStorage;
+	private final long maximumBytes;
+	private final long ttlMillis;
+	private final Cache<String, StoredResult> results;
+	private final PagingStore store;
+	private int maxSharedIds = 10000;
+	private boolean keyset = false;
+	private int keysetMinOffset = 1000;
+
+	private final AtomicLong sizeEvictionCount = new AtomicLong(0L);
+	private final AtomicLong expiredCount = new AtomicLong(0L);
+	private final AtomicLong sharedLoadCount = new AtomicLong(0L);
+	private final AtomicLong keysetCount = new AtomicLong(0L);
+	private ObjectName objectName;
+	private ScheduledExecutorService cleaner;
+	// Reads the ids of results that query per page, for the store or for
+	// keyset paging.
+	private ExecutorService idReader;
+
+	public CaffeinePagingProvider(ResourceReader reader, LongIdStorage idStorage, long maximumBytes,
+			long ttlMinutes) {
+		this(reader, idStorage, maximumBytes, ttlMinutes, null);
+	}
+
+	/**
+	 * @param idStorage where numeric ids are kept, or null to keep them as
+	 *                  strings
+	 * @param store     where results are shared with other nodes, or null
+	 */
+	public CaffeinePagingProvider(ResourceReader reader, LongIdStorage idStorage, long maximumBytes, long ttlMinutes,
+			PagingStore store) {
+		this.reader = reader;
+		this.idStorage = idStorage;
+		this.maximumBytes = maximumBytes;
+		this.ttlMillis = TimeUnit.MINUTES.toMillis(ttlMinutes);
+		this.store = store;
+
+		results = Caffeine.newBuilder().maximumWeight(maximumBytes)
+				.weigher((String uuid, StoredResult result) -> result.weight)
+				.expireAfterAccess(ttlMinutes, TimeUnit.MINUTES).recordStats()
+				.removalListener((String uuid, StoredResult result, RemovalCause cause) -> {
+					if (cause == RemovalCause.SIZE) {
+						sizeEvictionCount.incrementAndGet();
+					} else if (cause == RemovalCause.EXPIRED) {
+						expiredCount.incrementAndGet();
+					}
+				}).build();
+
+		registerMBean();
+	}
+
+	/**
+	 * @param dataSource database of the server, used if FHIR_PAGING_STORE is jdbc
+	 */
+	public static CaffeinePagingProvider fromEnvironment(ResourceReader reader, DataSource dataSource) {
+		long maximumMb = 256L;
+		String maximumMbEnv = System.getenv("FHIR_PAGING_MAX_MB");
+		if (maximumMbEnv != null && !maximumMbEnv.isEmpty()) {
+			maximumMb = Long.parseLong(maximumMbEnv.trim());
+		}
+
+		long ttlMinutes = 60L;
+		String ttlEnv = System.getenv("FHIR_PAGING_TTL_MIN");
+		if (ttlEnv != null && !ttlEnv.isEmpty()) {
+			ttlMinutes = Long.parseLong(ttlEnv.trim());
+		}
+
+		PagingStore store = null;
+		String storeEnv = System.getenv("FHIR_PAGING_STORE");
+		if ("jdbc".equalsIgnoreCase(storeEnv) && dataSource != null) {
+			store = new JdbcPagingStore(dataSource);
+		} else if ("mmap".equalsIgnoreCase(storeEnv)) {
+			String directory = System.getenv("FHIR_PAGING_DIR");
+			if (directory == null || directory.isEmpty()) {
+				directory = Paths.get(System.getProperty("java.io.tmpdir"), "omoponfhir-paging").toString();
+			}
+			try {
+				store = new MappedFilePagingStore(Paths.get(directory));
+			} catch (IOException e) {
+				logger.error("Unable to use " + directory + " for paging. Search results are kept in memory: "
+						+ e.getMessage());
+			}
+		}
+
+		CaffeinePagingProvider provider = new CaffeinePagingProvider(reader, LongIdStorage.fromEnvironment(),
+				maximumMb * 1024L * 1024L, ttlMinutes, store);
+
+		String keysetEnv = System.getenv("FHIR_PAGING_KEYSET");
+		provider.setKeyset(keysetEnv != null && "True".equalsIgnoreCase(keysetEnv.trim()));
+		String keysetMinOffsetEnv = System.getenv("FHIR_PAGING_KEYSET_MIN_OFFSET");
+		if (keysetMinOffsetEnv != null && !keysetMinOffsetEnv.isEmpty()) {
+			provider.setKeysetMinOffset(Integer.parseInt(keysetMinOffsetEnv.trim()));
+		}
+		String maxSharedIdsEnv = System.getenv("FHIR_PAGING_STORE_MAX_IDS");
+		if (maxSharedIdsEnv != null && !maxSharedIdsEnv.isEmpty()) {
+			provider.setMaxSharedIds(Integer.parseInt(maxSharedIdsEnv.trim()));
+		}
+		if (store != null || provider.keyset) {
+			int threads = 2;
+			String threadsEnv = System.getenv("FHIR_PAGING_ID_THREADS");
+			if (threadsEnv != null && !threadsEnv.isEmpty()) {
+				threads = Integer.parseInt(threadsEnv.trim());
+			}
+			provider.startIdReader(threads);
+		}
+		if (store != null) {
+			long cleanupMinutes = 5L;
+			String cleanupEnv = System.getenv("FHIR_PAGING_CLEANUP_MIN");
+			if (cleanupEnv != null && !cleanupEnv.isEmpty()) {
+				cleanupMinutes = Long.parseLong(cleanupEnv.trim());
+			}
+			provider.startCleanup(cleanupMinutes);
+		}
+
+		return provider;
+	}
+
+	public void startCleanup(long intervalMinutes) {
+		cleaner = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "fhir-paging-cleanup");
+			thread.setDaemon(true);
+			return thread;
+		});
+		cleaner.scheduleWithFixedDelay(this::deleteExpired, intervalMinutes, intervalMinutes, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * Results that query per page are swapped for their ids, read in the
+	 * background, once a page deep in them is asked for. Needs
+	 * {@link #startIdReader(int)}.
+	 */
+	public void setKeyset(boolean keyset) {
+		this.keyset = keyset;
+	}
+
+	/**
+	 * Offset of the first page that starts reading the ids for keyset paging.
+	 */
+	public void setKeysetMinOffset(int keysetMinOffset) {
+		this.keysetMinOffset = keysetMinOffset;
+	}
+
+	/**
+	 * Results that query per page and are larger than this are not written to
+	 * the store.
+	 */
+	public void setMaxSharedIds(int maxSharedIds) {
+		this.maxSharedIds = maxSharedIds;
+	}
+
+	public void startIdReader(int threads) {
+		// When the queue is full, the result keeps paging with its own queries,
+		// on this node only.
+		idReader = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(100), r -> {
+					Thread thread = new Thread(r, "fhir-paging-ids");
+					thread.setDaemon(true);
+					return thread;
+				});
+	}
+
+	private void submitReadIds(String uuid, IBundleProvider bundle, boolean share, boolean swap) {
+		try {
+			idReader.execute(() -> readIds(uuid, bundle, share, swap));
+		} catch (RejectedExecutionException e) {
+			logger.debug("Id reader is busy. Search " + uuid + " pages with its own queries");
+		}
+	}
+
+	/**
+	 * Reads the ids of bundle and writes them to the store if share, or puts
+	 * them in place of bundle if swap.
+	 */
+	private void readIds(String uuid, IBundleProvider bundle, boolean share, boolean swap) {
+		try {
+			StoredResult current = results.asMap().get(uuid);
+			if (current == null) {
+				// Expired or evicted before its turn.
+				return;
+			}
+
+			ResourceIdBundleProvider idBundle = null;
+			if (!share && store != null) {
+				// The ids may have been written to the store already.
+				ByteBuffer encoded = store.load(uuid, System.currentTimeMillis());
+				if (encoded != null) {
+					idBundle = ResourceIdBundleProvider.decode(uuid, encoded, reader, idStorage);
+				}
+			}
+			if (idBundle == null) {
+				idBundle = ResourceIdBundleProvider.fromResources(uuid, bundle, reader, idStorage);
+			}
+			if (idBundle == null) {
+				return;
+			}
+
+			if (share) {
+				store.save(uuid, idBundle.encode(), System.currentTimeMillis() + ttlMillis);
+			}
+			if (swap && results.asMap().replace(uuid, current, new StoredResult(idBundle, idBundle.getWeight()))) {
+				keysetCount.incrementAndGet();
+			}
+		} catch (RuntimeException e) {
+			// The result keeps paging with its own queries.
+			logger.debug("Unable to read the ids of search " + uuid + ": " + e.getMessage());
+		}
+	}
+
+	void deleteExpired() {
+		try {
+			int deleted = store.deleteExpired(System.currentTimeMillis());
+			if (deleted > 0) {
+				logger.debug("Deleted " + deleted + " expired searches");
+			}
+		} catch (RuntimeException e) {
+			// Never let the scheduled task die.
+			logger.error("Paging cleanup failed: " + e.getMessage());
+		}
+	}
+
+	private void registerMBean() {
+		try {
+			MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+			objectName = new ObjectName("edu.gatech.chai.omoponfhir:type=PagingProvider");
+			if (mBeanServer.isRegistered(objectName)) {
+				// Left over from a previous deployment.
+				mBeanServer.unregisterMBean(objectName);
+			}
+			mBeanServer.registerMBean(this, objectName);
+		} catch (JMException e) {
+			logger.warn("Unable to register paging metrics: " + e.getMessage());
+			objectName = null;
+		}
+	}
+
+	@Override
+	public IBundleProvider retrieveResultList(String theSearchId) {
+		StoredResult result = results.getIfPresent(theSearchId);
+		if (result != null) {
+			return result.bundle;
+		}
+
+		if (store == null || reader == null) {
+			return null;
+		}
+
+		// The search may have been done on another node.
+		ByteBuffer encoded = store.load(theSearchId, System.currentTimeMillis());
+		if (encoded == null) {
+			return null;
+		}
+		ResourceIdBundleProvider idBundle = ResourceIdBundleProvider.decode(theSearchId, encoded, reader,
+				idStorage);
+		if (idBundle == null) {
+			return null;
+		}
+		sharedLoadCount.incrementAndGet();
+		results.put(theSearchId, new StoredResult(idBundle, idBundle.getWeight()));
+
+		return idBundle;
+	}
+
+	@Override
+	public String storeResultList(IBundleProvider theList) {
+		String uuid = UUID.randomUUID().toString();
+		StoredResult result = toStoredResult(uuid, theList);
+		results.put(uuid, result);
+
+		if (result.bundle instanceof ResourceIdBundleProvider) {
+			if (store != null) {
+				// The ids are in memory already.
+				store.save(uuid, ((ResourceIdBundleProvider) result.bundle).encode(),
+						System.currentTimeMillis() + ttlMillis);
+			}
+		} else if (store != null && idReader != null && reader != null && theList.size() != null) {
+			if (theList.size() <= maxSharedIds) {
+				// Other nodes cannot run the query of this bundle, so they get its
+				// ids. Reading them runs the query again, so it is not done on the
+				// request.
+				submitReadIds(uuid, theList, true, false);
+			} else {
+				logger.debug("Search " + uuid + " has " + theList.size() + " resources. Only this node pages it");
+			}
+		}
+
+		return uuid;
+	}
+
+	private StoredResult toStoredResult(String uuid, IBundleProvider bundle) {
+		if (!(bundle instanceof SimpleBundleProvider)) {
+			Integer size = bundle.size();
+			if (keyset && idReader != null && reader != null && size != null && size > keysetMinOffset
+					&& idBytes(size) <= maximumBytes / 2) {
+				return new StoredResult(new DeepPagingWatcher(uuid, bundle), LAZY_PROVIDER_BYTES);
+			}
+			return new StoredResult(bundle, LAZY_PROVIDER_BYTES);
+		}
+
+		if (reader != null) {
+			ResourceIdBundleProvider idBundle = ResourceIdBundleProvider.fromResources(uuid, bundle, reader,
+					idStorage);
+			if (idBundle != null) {
+				return new StoredResult(idBundle, idBundle.getWeight());
+			}
+		}
+
+		Integer size = bundle.size();
+		long weight = (long) (size == null ? 1 : size) * MATERIALIZED_RESOURCE_BYTES;
+		return new StoredResult(bundle, (int) Math.min(weight, Integer.MAX_VALUE));
+	}
+
+	/**
+	 * @return bytes the ids of a result of size resources count against the
+	 *         paging memory limit.
+	 */
+	private long idBytes(int size) {
+		if (idStorage == null) {
+			return (long) size * ResourceIdList.BYTES_PER_STRING_ID;
+		}
+		return idStorage.bytesFor(size);
+	}
+
+	public void close() {
+		if (cleaner != null) {
+			cleaner.shutdownNow();
+		}
+		if (idReader != null) {
+			idReader.shutdownNow();
+		}
+		if (store != null) {
+			store.close();
+		}
+		results.invalidateAll();
+		if (objectName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			} catch (JMException e) {
+				logger.debug(e.getMessage());
+			}
+		}
+	}
+
+	@Override
+	public long getMaximumBytes() {
+		return maximumBytes;
+	}
+
+	@Override
+	public long getWeightedBytes() {
+		return results.policy().eviction().get().weightedSize().orElse(0L);
+	}
+
+	@Override
+	public long getStoredCount() {
+		return results.estimatedSize();
+	}
+
+	@Override
+	public long getHitCount() {
+		return results.stats().hitCount();
+	}
+
+	@Override
+	public long getMissCount() {
+		return results.stats().missCount();
+	}
+
+	@Override
+	public long getSizeEvictionCount() {
+		return sizeEvictionCount.get();
+	}
+
+	@Override
+	public long getExpiredCount() {
+		return expiredCount.get();
+	}
+
+	@Override
+	public long getSharedLoadCount() {
+		return sharedLoadCount.get();
+	}
+
+	@Override
+	public long getKeysetCount() {
+		return keysetCount.get();
+	}
+}
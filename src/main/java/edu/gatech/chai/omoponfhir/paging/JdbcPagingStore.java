@@ -0,0 +1,104 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package edu.gatech.chai.omoponfhir.paging;
+
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import javax.sql.DataSource;
+
+/**
+ * Keeps search results in the database of the FHIR server (PostgreSQL), so
+ * every node behind the load balancer can serve the pages.
+ */
+public class JdbcPagingStore implements PagingStore {
+	private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(JdbcPagingStore.class);
+
+	private static final String TABLE_NAME = "fhir_paging_result";
+
+	private final DataSource dataSource;
+
+	public JdbcPagingStore(DataSource dataSource) {
+		this.dataSource = dataSource;
+		createTable();
+	}
+
+	private void createTable() {
+		try (Connection conn = dataSource.getConnection(); Statement stmt = conn.createStatement()) {
+			stmt.execute("CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (search_id varchar(64) PRIMARY KEY, "
+					+ "expires_at bigint NOT NULL, result_ids bytea NOT NULL)");
+			stmt.execute("CREATE INDEX IF NOT EXISTS idx_" + TABLE_NAME + "_expires_at ON " + TABLE_NAME
+					+ " (expires_at)");
+		} catch (SQLException e) {
+			logger.error("Unable to create " + TABLE_NAME + ": " + e.getMessage());
+		}
+	}
+
+	@Override
+	public void save(String searchId, byte[] encodedResult, long expiresAt) {
+		String sql = "INSERT INTO " + TABLE_NAME + " (search_id, expires_at, result_ids) VALUES (?, ?, ?)";
+		try (Connection conn = dataSource.getConnection(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
+			pstmt.setString(1, searchId);
+			pstmt.setLong(2, expiresAt);
+			pstmt.setBytes(3, encodedResult);
+			pstmt.executeUpdate();
+		} catch (SQLException e) {
+			// The search is still served by this node.
+			logger.error("Unable to save search " + searchId + ": " + e.getMessage());
+		}
+	}
+
+	@Override
+	public ByteBuffer load(String searchId, long now) {
+		String sql = "SELECT result_ids FROM " + TABLE_NAME + " WHERE search_id = ? AND expires_at > ?";
+		try (Connection conn = dataSource.getConnection(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
+			pstmt.setString(1, searchId);
+			pstmt.setLong(2, now);
+			try (ResultSet rs = pstmt.executeQuery()) {
+				if (rs.next()) {
+					return ByteBuffer.wrap(rs.getBytes("result_ids"));
+				}
+			}
+		} catch (SQLException e) {
+			logger.error("Unable to load search " + searchId + ": " + e.getMessage());
+		}
+
+		return null;
+	}
+
+	@Override
+	public int deleteExpired(long now) {
+		String sql = "DELETE FROM " + TABLE_NAME + " WHERE expires_at <= ?";
+		try (Connection conn = dataSource.getConnection(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
+			pstmt.setLong(1, now);
+			return pstmt.executeUpdate();
+		} catch (SQLException e) {
+			logger.error("Unable to delete expired searches: " + e.getMessage());
+		}
+
+		return 0;
+	}
+
+	@Override
+	public void close() {
+		// The data source belongs to the application context.
+	}
+}
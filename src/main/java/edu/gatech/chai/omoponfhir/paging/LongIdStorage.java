@@ -0,0 +1,149 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package edu.gatech.chai.omoponfhir.paging;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+
+/**
+ * Allocates the long arrays that hold numeric (OMOP) ids of search results.
+ * Small results stay on the heap. Results of FHIR_PAGING_OFFHEAP_MIN_IDS ids
+ * (default 10000) or more go where FHIR_PAGING_OFFHEAP says:
+ * <ul>
+ * <li>direct (default): direct memory, outside of the heap,</li>
+ * <li>mmap: a mapped file under FHIR_PAGING_DIR, paged in by the OS,</li>
+ * <li>none: the heap.</li>
+ * </ul>
+ * Off-heap memory is released when the result is evicted and collected.
+ */
+public class LongIdStorage {
+	private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(LongIdStorage.class);
+
+	public enum Mode {
+		NONE, DIRECT, MMAP
+	}
+
+	// Direct and mapped buffers are indexed by int, so this is as many longs as
+	// one of them holds.
+	static final int MAX_OFFHEAP_IDS = Integer.MAX_VALUE / 8;
+
+	/**
+	 * Array of count ids, and how many bytes each of them counts against the
+	 * paging memory limit. Mapped files are paged by the OS and count one byte
+	 * per id, so the number of them is still bounded.
+	 */
+	public static final class Allocation {
+		final LongBuffer ids;
+		final int bytesPerId;
+
+		Allocation(LongBuffer ids, int bytesPerId) {
+			this.ids = ids;
+			this.bytesPerId = bytesPerId;
+		}
+	}
+
+	private final Mode mode;
+	private final int offHeapMinIds;
+	private final Path directory;
+
+	public LongIdStorage(Mode mode, int offHeapMinIds, Path directory) {
+		this.mode = mode;
+		this.offHeapMinIds = offHeapMinIds;
+		this.directory = directory;
+	}
+
+	public static LongIdStorage fromEnvironment() {
+		Mode mode = Mode.DIRECT;
+		String modeEnv = System.getenv("FHIR_PAGING_OFFHEAP");
+		if (modeEnv != null && !modeEnv.trim().isEmpty()) {
+			try {
+				mode = Mode.valueOf(modeEnv.trim().toUpperCase(Locale.ROOT));
+			} catch (IllegalArgumentException e) {
+				logger.warn("Unknown FHIR_PAGING_OFFHEAP value " + modeEnv + ". Using " + mode);
+			}
+		}
+
+		int offHeapMinIds = 10000;
+		String minIdsEnv = System.getenv("FHIR_PAGING_OFFHEAP_MIN_IDS");
+		if (minIdsEnv != null && !minIdsEnv.isEmpty()) {
+			offHeapMinIds = Integer.parseInt(minIdsEnv.trim());
+		}
+
+		String directory = System.getenv("FHIR_PAGING_DIR");
+		if (directory == null || directory.isEmpty()) {
+			directory = Paths.get(System.getProperty("java.io.tmpdir"), "omoponfhir-paging").toString();
+		}
+
+		return new LongIdStorage(mode, offHeapMinIds, Paths.get(directory));
+	}
+
+	/**
+	 * @return bytes that count ids from {@link #allocate(int)} count against
+	 *         the paging memory limit.
+	 */
+	public long bytesFor(int count) {
+		if (count >= offHeapMinIds && mode == Mode.MMAP) {
+			return count;
+		}
+		return (long) count * 8L;
+	}
+
+	/**
+	 * @throws IllegalArgumentException if count ids go off the heap and do not
+	 *                                  fit in one buffer.
+	 */
+	public Allocation allocate(int count) {
+		if (count < offHeapMinIds || mode == Mode.NONE) {
+			return new Allocation(LongBuffer.allocate(count), 8);
+		}
+
+		if (count > MAX_OFFHEAP_IDS) {
+			throw new IllegalArgumentException(
+					count + " ids do not fit in one off-heap buffer of at most " + MAX_OFFHEAP_IDS + " ids");
+		}
+
+		if (mode == Mode.MMAP) {
+			try {
+				return new Allocation(map(count), 1);
+			} catch (IOException e) {
+				logger.warn("Unable to map a file for " + count + " ids. Using direct memory: " + e.getMessage());
+			}
+		}
+
+		return new Allocation(ByteBuffer.allocateDirect(count * 8).asLongBuffer(), 8);
+	}
+
+	private LongBuffer map(int count) throws IOException {
+		Files.createDirectories(directory);
+		Path file = Files.createTempFile(directory, "result", ".longs");
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) count * 8L);
+			return buffer.asLongBuffer();
+		} finally {
+			// The mapping stays valid. The space is freed when it is collected.
+			Files.delete(file);
+		}
+	}
+}
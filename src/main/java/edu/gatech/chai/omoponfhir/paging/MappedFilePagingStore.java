@@ -0,0 +1,152 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package edu.gatech.chai.omoponfhir.paging;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps search results in files of a directory and reads them through memory
+ * mapping, so results do not take heap until their pages are asked for. Each
+ * file starts with the expiration time. When the directory is on a volume
+ * shared by the nodes, any node can serve the pages.
+ */
+public class MappedFilePagingStore implements PagingStore {
+	private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(MappedFilePagingStore.class);
+
+	private static final String SUFFIX = ".ids";
+	// Search ids are generated UUIDs. Anything else is not a file of ours.
+	private static final Pattern SEARCH_ID = Pattern.compile("[0-9a-fA-F-]{1,64}");
+
+	private final Path directory;
+
+	public MappedFilePagingStore(Path directory) throws IOException {
+		this.directory = directory;
+		Files.createDirectories(directory);
+	}
+
+	private Path pathOf(String searchId) {
+		if (!SEARCH_ID.matcher(searchId).matches()) {
+			return null;
+		}
+		return directory.resolve(searchId + SUFFIX);
+	}
+
+	@Override
+	public void save(String searchId, byte[] encodedResult, long expiresAt) {
+		Path path = pathOf(searchId);
+		if (path == null) {
+			return;
+		}
+
+		// Write aside and move into place, so a reader never sees half a file.
+		Path tmp = directory.resolve(searchId + SUFFIX + ".tmp");
+		try {
+			try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING)) {
+				ByteBuffer header = ByteBuffer.allocate(8);
+				header.putLong(0, expiresAt);
+				channel.write(new ByteBuffer[] { header, ByteBuffer.wrap(encodedResult) });
+			}
+			Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			// The search is still served by this node.
+			logger.error("Unable to save search " + searchId + ": " + e.getMessage());
+			try {
+				Files.deleteIfExists(tmp);
+			} catch (IOException ignored) {
+				// Removed by the next cleanup.
+			}
+		}
+	}
+
+	@Override
+	public ByteBuffer load(String searchId, long now) {
+		Path path = pathOf(searchId);
+		if (path == null) {
+			return null;
+		}
+
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.remaining() < 8 || buffer.getLong() <= now) {
+				return null;
+			}
+			return buffer;
+		} catch (NoSuchFileException e) {
+			return null;
+		} catch (IOException e) {
+			logger.error("Unable to load search " + searchId + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	@Override
+	public int deleteExpired(long now) {
+		int deleted = 0;
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX + "*")) {
+			for (Path path : files) {
+				if (isExpired(path, now)) {
+					try {
+						if (Files.deleteIfExists(path)) {
+							deleted++;
+						}
+					} catch (IOException e) {
+						logger.debug("Unable to delete " + path + ": " + e.getMessage());
+					}
+				}
+			}
+		} catch (IOException e) {
+			logger.error("Unable to delete expired searches: " + e.getMessage());
+		}
+
+		return deleted;
+	}
+
+	private static boolean isExpired(Path path, long now) {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			if (path.getFileName().toString().endsWith(".tmp")) {
+				// Left over from a failed save. Give a running save an hour.
+				return Files.getLastModifiedTime(path).toMillis() < now - 3600000L;
+			}
+
+			ByteBuffer header = ByteBuffer.allocate(8);
+			if (channel.read(header, 0) < 8) {
+				return true;
+			}
+			return header.getLong(0) <= now;
+		} catch (NoSuchFileException e) {
+			return false;
+		} catch (IOException e) {
+			logger.debug("Unable to read " + path + ": " + e.getMessage());
+			return false;
+		}
+	}
+
+	@Override
+	public void close() {
+		// Files stay for the other nodes, and are removed when they expire.
+	}
+}
@@ -0,0 +1,39 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.paging;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Shared place for search results, so that any node can serve the
+ * _getpages links of a search. Results are written as
+ * {@link ResourceIdBundleProvider#encode()} wrote them.
+ */
+public interface PagingStore {
+	public void save(String searchId, byte[] encodedResult, long expiresAt);
+
+	/**
+	 * @return the encoded result, or null if there is none or it has expired.
+	 */
+	public ByteBuffer load(String searchId, long now);
+
+	/**
+	 * @return number of results removed.
+	 */
+	public int deleteExpired(long now);
+
+	public void close();
+}
@@ -0,0 +1,280 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package edu.gatech.chai.omoponfhir.paging;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.dstu3.model.InstantType;
+import org.hl7.fhir.instance.model.api.IAnyResource;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+
+import ca.uhn.fhir.model.api.ResourceMetadataKeyEnum;
+import ca.uhn.fhir.model.valueset.BundleEntrySearchModeEnum;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+
+/**
+ * Search result that holds only the ids of its resources. Each page is read
+ * from the resource providers when it is asked for, by primary key (see
+ * {@link ResourceReader#readAll(List)}). Numeric ids are kept in
+ * long arrays, off the heap for large results (see {@link LongIdStorage}).
+ *
+ * The ids can be written in a compact binary form (see {@link #encode()}) so
+ * that other nodes can serve the pages of the search.
+ */
+public class ResourceIdBundleProvider implements IBundleProvider {
+	// Resources are taken from the bundle this many at a time, so a bundle that
+	// queries per page does not load the whole result at once.
+	private static final int READ_CHUNK_SIZE = 500;
+
+	private static final byte FORMAT_VERSION = 1;
+
+	private final String uuid;
+	private final ResourceIdList ids;
+	// Positions of _include'd resources, or null if there are none.
+	private final BitSet includes;
+	private final IPrimitiveType<Date> published;
+	private final Integer preferredPageSize;
+	private final ResourceReader reader;
+
+	private ResourceIdBundleProvider(String uuid, ResourceIdList ids, BitSet includes, IPrimitiveType<Date> published,
+			Integer preferredPageSize, ResourceReader reader) {
+		this.uuid = uuid;
+		this.ids = ids;
+		this.includes = includes;
+		this.published = published;
+		this.preferredPageSize = preferredPageSize;
+		this.reader = reader;
+	}
+
+	/**
+	 * Takes the ids of the resources of bundle.
+	 *
+	 * @return null if the size of bundle is not known, or a resource has no id
+	 *         or cannot be read back by id. Then bundle has to be kept as it is.
+	 */
+	public static ResourceIdBundleProvider fromResources(String uuid, IBundleProvider bundle, ResourceReader reader,
+			LongIdStorage storage) {
+		Integer size = bundle.size();
+		if (size == null) {
+			return null;
+		}
+
+		ResourceIdList.Builder ids = ResourceIdList.builder(size, storage);
+		int count = 0;
+		BitSet includes = null;
+		for (int from = 0; from < size; from += READ_CHUNK_SIZE) {
+			List<IBaseResource> resources = bundle.getResources(from, Math.min(from + READ_CHUNK_SIZE, size));
+			if (resources.isEmpty()) {
+				break;
+			}
+
+			for (IBaseResource resource : resources) {
+				IIdType id = resource.getIdElement();
+				if (id == null || id.isEmpty() || !id.hasIdPart() || !reader.canRead(resourceType(resource, id))) {
+					return null;
+				}
+
+				if (resource instanceof IAnyResource && BundleEntrySearchModeEnum.INCLUDE.getCode()
+						.equals(ResourceMetadataKeyEnum.ENTRY_SEARCH_MODE.get((IAnyResource) resource))) {
+					if (includes == null) {
+						includes = new BitSet(size);
+					}
+					includes.set(count);
+				}
+				ids.add(resourceType(resource, id), id.getIdPart());
+				count++;
+			}
+		}
+
+		return new ResourceIdBundleProvider(uuid, ids.build(), includes, bundle.getPublished(),
+				bundle.preferredPageSize(), reader);
+	}
+
+	/**
+	 * Writes the ids and the bundle details. Resource types are written once and
+	 * referred to by index.
+	 */
+	public byte[] encode() {
+		int size = ids.size();
+		Map<String, Integer> types = new LinkedHashMap<String, Integer>();
+		for (int i = 0; i < size; i++) {
+			String id = ids.get(i);
+			types.putIfAbsent(id.substring(0, id.indexOf('/')), types.size());
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + size * 12);
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeByte(FORMAT_VERSION);
+			out.writeLong(published == null || published.getValue() == null ? -1L : published.getValue().getTime());
+			out.writeInt(preferredPageSize == null ? -1 : preferredPageSize);
+
+			out.writeShort(types.size());
+			for (String type : types.keySet()) {
+				writeString(out, type);
+			}
+
+			out.writeInt(size);
+			for (int i = 0; i < size; i++) {
+				String id = ids.get(i);
+				int slash = id.indexOf('/');
+				out.writeShort(types.get(id.substring(0, slash)));
+				writeString(out, id.substring(slash + 1));
+			}
+
+			long[] includeWords = includes == null ? new long[0] : includes.toLongArray();
+			out.writeInt(includeWords.length);
+			for (long word : includeWords) {
+				out.writeLong(word);
+			}
+		} catch (IOException e) {
+			// Not possible with a byte array.
+			throw new IllegalStateException(e);
+		}
+
+		return bytes.toByteArray();
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+		out.writeShort(utf8.length);
+		out.write(utf8);
+	}
+
+	/**
+	 * Reads what {@link #encode()} wrote, from the position of buffer.
+	 *
+	 * @return null if buffer does not hold a result in this format.
+	 */
+	public static ResourceIdBundleProvider decode(String uuid, ByteBuffer buffer, ResourceReader reader,
+			LongIdStorage storage) {
+		try {
+			if (buffer.get() != FORMAT_VERSION) {
+				return null;
+			}
+
+			long publishedMillis = buffer.getLong();
+			int preferredPageSize = buffer.getInt();
+
+			String[] types = new String[buffer.getShort() & 0xFFFF];
+			for (int i = 0; i < types.length; i++) {
+				types[i] = readString(buffer);
+			}
+
+			int size = buffer.getInt();
+			if (size < 0 || size > buffer.remaining() / 4) {
+				return null;
+			}
+			ResourceIdList.Builder ids = ResourceIdList.builder(size, storage);
+			for (int i = 0; i < size; i++) {
+				ids.add(types[buffer.getShort() & 0xFFFF], readString(buffer));
+			}
+
+			long[] includeWords = new long[buffer.getInt()];
+			for (int i = 0; i < includeWords.length; i++) {
+				includeWords[i] = buffer.getLong();
+			}
+
+			BitSet includes = includeWords.length == 0 ? null : BitSet.valueOf(includeWords);
+			return new ResourceIdBundleProvider(uuid, ids.build(), includes,
+					publishedMillis < 0 ? null : new InstantType(new Date(publishedMillis)),
+					preferredPageSize < 0 ? null : preferredPageSize, reader);
+		} catch (BufferUnderflowException | IndexOutOfBoundsException | NegativeArraySizeException e) {
+			return null;
+		}
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		byte[] utf8 = new byte[buffer.getShort() & 0xFFFF];
+		buffer.get(utf8);
+		return new String(utf8, StandardCharsets.UTF_8);
+	}
+
+	private static String resourceType(IBaseResource resource, IIdType id) {
+		if (id.hasResourceType()) {
+			return id.getResourceType();
+		}
+		return resource.getClass().getSimpleName();
+	}
+
+	/**
+	 * @return estimated memory used by this result, in bytes.
+	 */
+	public int getWeight() {
+		return (int) Math.min(ids.getWeight(), Integer.MAX_VALUE);
+	}
+
+	@Override
+	public IPrimitiveType<Date> getPublished() {
+		return published;
+	}
+
+	@Override
+	public List<IBaseResource> getResources(int theFromIndex, int theToIndex) {
+		int from = Math.max(theFromIndex, 0);
+		int to = Math.min(theToIndex, ids.size());
+
+		List<String> pageIds = new ArrayList<String>(Math.max(to - from, 0));
+		for (int i = from; i < to; i++) {
+			pageIds.add(ids.get(i));
+		}
+		List<IBaseResource> resources = reader.readAll(pageIds);
+
+		List<IBaseResource> retVal = new ArrayList<IBaseResource>(pageIds.size());
+		for (int i = from; i < to; i++) {
+			IBaseResource resource = resources.get(i - from);
+			if (resource == null) {
+				continue;
+			}
+
+			if (includes != null && includes.get(i) && resource instanceof IAnyResource) {
+				ResourceMetadataKeyEnum.ENTRY_SEARCH_MODE.put((IAnyResource) resource,
+						BundleEntrySearchModeEnum.INCLUDE.getCode());
+			}
+			retVal.add(resource);
+		}
+
+		return retVal;
+	}
+
+	@Override
+	public String getUuid() {
+		return uuid;
+	}
+
+	@Override
+	public Integer preferredPageSize() {
+		return preferredPageSize;
+	}
+
+	@Override
+	public Integer size() {
+		return ids.size();
+	}
+}
@@ -0,0 +1,187 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package edu.gatech.chai.omoponfhir.paging;
+
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Ids of a search result, as ResourceType/idPart.
+ *
+ * OMOP ids are numbers, so they are packed with the index of their resource
+ * type into longs (type in the top byte), in an array from
+ * {@link LongIdStorage}. A result with an id that is not a number, or too
+ * large to pack, is kept as strings.
+ */
+abstract class ResourceIdList {
+	// Rough heap cost of one id kept as a string, including the array slot.
+	static final int BYTES_PER_STRING_ID = 64;
+
+	private static final int TYPE_SHIFT = 56;
+	private static final long ID_MASK = (1L << TYPE_SHIFT) - 1;
+	private static final int MAX_TYPES = 127;
+
+	abstract int size();
+
+	abstract String get(int index);
+
+	/**
+	 * @return bytes this counts against the paging memory limit.
+	 */
+	abstract long getWeight();
+
+	private static final class PackedIds extends ResourceIdList {
+		private final String[] types;
+		private final LongBuffer ids;
+		private final int size;
+		private final int bytesPerId;
+
+		PackedIds(String[] types, LongBuffer ids, int size, int bytesPerId) {
+			this.types = types;
+			this.ids = ids;
+			this.size = size;
+			this.bytesPerId = bytesPerId;
+		}
+
+		@Override
+		int size() {
+			return size;
+		}
+
+		@Override
+		String get(int index) {
+			// Absolute get, so concurrent pages do not share a position.
+			long packed = ids.get(index);
+			return types[(int) (packed >>> TYPE_SHIFT)] + "/" + (packed & ID_MASK);
+		}
+
+		@Override
+		long getWeight() {
+			return (long) ids.capacity() * bytesPerId;
+		}
+	}
+
+	private static final class StringIds extends ResourceIdList {
+		private final String[] ids;
+
+		StringIds(String[] ids) {
+			this.ids = ids;
+		}
+
+		@Override
+		int size() {
+			return ids.length;
+		}
+
+		@Override
+		String get(int index) {
+			return ids[index];
+		}
+
+		@Override
+		long getWeight() {
+			return (long) ids.length * BYTES_PER_STRING_ID;
+		}
+	}
+
+	static Builder builder(int expectedSize, LongIdStorage storage) {
+		return new Builder(expectedSize, storage);
+	}
+
+	static final class Builder {
+		private final int expectedSize;
+		private final LongIdStorage storage;
+
+		private final List<String> types = new ArrayList<String>();
+		private LongIdStorage.Allocation packed;
+		private int count = 0;
+		// Set once an id could not be packed.
+		private List<String> strings;
+
+		private Builder(int expectedSize, LongIdStorage storage) {
+			this.expectedSize = expectedSize;
+			this.storage = storage;
+			if (storage == null) {
+				strings = new ArrayList<String>(expectedSize);
+			}
+		}
+
+		void add(String resourceType, String idPart) {
+			if (strings == null) {
+				long id = parseId(idPart);
+				int typeIndex = types.indexOf(resourceType);
+				if (typeIndex < 0 && types.size() < MAX_TYPES) {
+					typeIndex = types.size();
+					types.add(resourceType);
+				}
+
+				if (id >= 0 && typeIndex >= 0 && count < expectedSize) {
+					if (packed == null) {
+						packed = storage.allocate(expectedSize);
+					}
+					packed.ids.put(count++, ((long) typeIndex << TYPE_SHIFT) | id);
+					return;
+				}
+
+				unpack();
+			}
+
+			strings.add(resourceType + "/" + idPart);
+			count++;
+		}
+
+		// -1 unless idPart is exactly the decimal form of a number we can pack.
+		private static long parseId(String idPart) {
+			int length = idPart.length();
+			if (length == 0 || length > 17 || (idPart.charAt(0) == '0' && length > 1)) {
+				return -1L;
+			}
+
+			long id = 0L;
+			for (int i = 0; i < length; i++) {
+				char c = idPart.charAt(i);
+				if (c < '0' || c > '9') {
+					return -1L;
+				}
+				id = id * 10L + (c - '0');
+			}
+
+			return id <= ID_MASK ? id : -1L;
+		}
+
+		private void unpack() {
+			PackedIds packedIds = packed == null ? null : (PackedIds) build();
+			strings = new ArrayList<String>(expectedSize);
+			for (int i = 0; i < count; i++) {
+				strings.add(packedIds.get(i));
+			}
+			packed = null;
+		}
+
+		ResourceIdList build() {
+			if (strings != null) {
+				return new StringIds(strings.toArray(new String[strings.size()]));
+			}
+
+			if (packed == null) {
+				return new StringIds(new String[0]);
+			}
+			return new PackedIds(types.toArray(new String[types.size()]), packed.ids, count, packed.bytesPerId);
+		}
+	}
+}
@@ -0,0 +1,272 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package edu.gatech.chai.omoponfhir.paging;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.dstu3.model.IdType;
+import org.hl7.fhir.instance.model.api.IAnyResource;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.annotation.IdParam;
+import ca.uhn.fhir.rest.annotation.OptionalParam;
+import ca.uhn.fhir.rest.annotation.Read;
+import ca.uhn.fhir.rest.annotation.RequiredParam;
+import ca.uhn.fhir.rest.annotation.Search;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.param.TokenOrListParam;
+import ca.uhn.fhir.rest.server.IResourceProvider;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+
+/**
+ * Reads a resource by its id through the @Read method of its resource
+ * provider. The paging provider keeps only ids of search results and uses
+ * this to load a page when it is asked for.
+ *
+ * A page is read with one search per resource type if the provider has a
+ * search on _id that takes a list of ids (TokenOrListParam), which the
+ * provider runs as one query by primary key. Otherwise, each resource is read
+ * on its own.
+ */
+public class ResourceReader {
+	private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(ResourceReader.class);
+
+	private static final class ReadMethod {
+		final IResourceProvider provider;
+		final Method method;
+		final int idParamIndex;
+
+		ReadMethod(IResourceProvider provider, Method method, int idParamIndex) {
+			this.provider = provider;
+			this.method = method;
+			this.idParamIndex = idParamIndex;
+		}
+	}
+
+	// Ids are searched this many at a time, to keep the IN list of the query
+	// short.
+	private static final int SEARCH_CHUNK_SIZE = 500;
+
+	// resource type name -> @Read method of its provider.
+	private final Map<String, ReadMethod> readMethods = new HashMap<String, ReadMethod>();
+	// resource type name -> @Search method on a list of _id, if the provider has
+	// one. idParamIndex is the index of the _id parameter.
+	private final Map<String, ReadMethod> searchByIdMethods = new HashMap<String, ReadMethod>();
+
+	public ResourceReader(FhirContext fhirContext, Collection<IResourceProvider> providers) {
+		for (IResourceProvider provider : providers) {
+			String resourceType = fhirContext.getResourceDefinition(provider.getResourceType()).getName();
+			for (Method method : provider.getClass().getMethods()) {
+				if (method.getAnnotation(Read.class) == null) {
+					continue;
+				}
+
+				int idParamIndex = findIdParam(method);
+				if (idParamIndex >= 0) {
+					readMethods.put(resourceType, new ReadMethod(provider, method, idParamIndex));
+					break;
+				}
+			}
+
+			for (Method method : provider.getClass().getMethods()) {
+				Search search = method.getAnnotation(Search.class);
+				if (search == null || !search.queryName().isEmpty() || !search.compartmentName().isEmpty()) {
+					continue;
+				}
+
+				int idParamIndex = findIdListParam(method);
+				if (idParamIndex >= 0) {
+					searchByIdMethods.put(resourceType, new ReadMethod(provider, method, idParamIndex));
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return index of the _id parameter if it takes a TokenOrListParam and no
+	 *         other parameter is required, or -1.
+	 */
+	private static int findIdListParam(Method method) {
+		Annotation[][] annotations = method.getParameterAnnotations();
+		Class<?>[] parameterTypes = method.getParameterTypes();
+		if (!IBundleProvider.class.isAssignableFrom(method.getReturnType())
+				&& !List.class.isAssignableFrom(method.getReturnType())) {
+			return -1;
+		}
+
+		int idParamIndex = -1;
+		for (int i = 0; i < annotations.length; i++) {
+			if (parameterTypes[i].isPrimitive()) {
+				return -1;
+			}
+
+			for (Annotation annotation : annotations[i]) {
+				String name = null;
+				if (annotation instanceof RequiredParam) {
+					name = ((RequiredParam) annotation).name();
+				} else if (annotation instanceof OptionalParam) {
+					name = ((OptionalParam) annotation).name();
+				}
+
+				if (IAnyResource.SP_RES_ID.equals(name) && parameterTypes[i] == TokenOrListParam.class) {
+					idParamIndex = i;
+				} else if (annotation instanceof RequiredParam) {
+					return -1;
+				}
+			}
+		}
+
+		return idParamIndex;
+	}
+
+	private static int findIdParam(Method method) {
+		Annotation[][] annotations = method.getParameterAnnotations();
+		for (int i = 0; i < annotations.length; i++) {
+			for (Annotation annotation : annotations[i]) {
+				if (annotation instanceof IdParam && method.getParameterTypes()[i].isAssignableFrom(IdType.class)) {
+					return i;
+				}
+			}
+		}
+
+		return -1;
+	}
+
+	public boolean canRead(String resourceType) {
+		return readMethods.containsKey(resourceType);
+	}
+
+	/**
+	 * Reads the resources of a page.
+	 *
+	 * @param ids unqualified ids, ResourceType/idPart
+	 * @return the resources in the order of ids, with null for a resource that
+	 *         cannot be read anymore.
+	 */
+	public List<IBaseResource> readAll(List<String> ids) {
+		IBaseResource[] resources = new IBaseResource[ids.size()];
+		// resource type -> positions in ids, for types that can be searched by _id.
+		Map<String, List<Integer>> positionsByType = new LinkedHashMap<String, List<Integer>>();
+		for (int i = 0; i < resources.length; i++) {
+			String id = ids.get(i);
+			String resourceType = id.substring(0, id.indexOf('/'));
+			if (searchByIdMethods.containsKey(resourceType)) {
+				positionsByType.computeIfAbsent(resourceType, type -> new ArrayList<Integer>()).add(i);
+			} else {
+				resources[i] = read(id);
+			}
+		}
+
+		for (Map.Entry<String, List<Integer>> entry : positionsByType.entrySet()) {
+			List<Integer> positions = entry.getValue();
+			for (int from = 0; from < positions.size(); from += SEARCH_CHUNK_SIZE) {
+				searchById(entry.getKey(), ids, positions.subList(from,
+						Math.min(from + SEARCH_CHUNK_SIZE, positions.size())), resources);
+			}
+		}
+
+		return Arrays.asList(resources);
+	}
+
+	private void searchById(String resourceType, List<String> ids, List<Integer> positions,
+			IBaseResource[] resources) {
+		ReadMethod searchMethod = searchByIdMethods.get(resourceType);
+		TokenOrListParam idList = new TokenOrListParam();
+		for (int position : positions) {
+			String id = ids.get(position);
+			idList.add(id.substring(id.indexOf('/') + 1));
+		}
+
+		Object[] args = new Object[searchMethod.method.getParameterCount()];
+		args[searchMethod.idParamIndex] = idList;
+		List<? extends IBaseResource> found;
+		try {
+			Object result = searchMethod.method.invoke(searchMethod.provider, args);
+			if (result instanceof IBundleProvider) {
+				IBundleProvider bundle = (IBundleProvider) result;
+				Integer size = bundle.size();
+				found = bundle.getResources(0, size == null ? positions.size() : size);
+			} else {
+				@SuppressWarnings("unchecked")
+				List<? extends IBaseResource> list = (List<? extends IBaseResource>) result;
+				found = list;
+			}
+		} catch (InvocationTargetException e) {
+			if (e.getCause() instanceof BaseServerResponseException) {
+				logger.debug("Unable to search " + resourceType + " by _id for the page. Reading one by one: "
+						+ e.getCause().getMessage());
+				for (int position : positions) {
+					resources[position] = read(ids.get(position));
+				}
+				return;
+			}
+			throw new IllegalStateException("Unable to search " + resourceType + " by _id", e.getCause());
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException("Unable to search " + resourceType + " by _id", e);
+		}
+
+		Map<String, IBaseResource> byIdPart = new HashMap<String, IBaseResource>();
+		if (found != null) {
+			for (IBaseResource resource : found) {
+				byIdPart.put(resource.getIdElement().getIdPart(), resource);
+			}
+		}
+		// Resources that are gone since the search stay null.
+		for (int position : positions) {
+			String id = ids.get(position);
+			resources[position] = byIdPart.get(id.substring(id.indexOf('/') + 1));
+		}
+	}
+
+	/**
+	 * @param id unqualified id, ResourceType/idPart
+	 * @return the resource, or null if it cannot be read anymore.
+	 */
+	public IBaseResource read(String id) {
+		IdType idType = new IdType(id);
+		ReadMethod readMethod = readMethods.get(idType.getResourceType());
+		if (readMethod == null) {
+			return null;
+		}
+
+		Object[] args = new Object[readMethod.method.getParameterCount()];
+		args[readMethod.idParamIndex] = idType;
+		try {
+			return (IBaseResource) readMethod.method.invoke(readMethod.provider, args);
+		} catch (InvocationTargetException e) {
+			if (e.getCause() instanceof BaseServerResponseException) {
+				// Deleted or no longer visible since the search.
+				logger.debug("Unable to read " + id + " for the page: " + e.getCause().getMessage());
+				return null;
+			}
+			throw new IllegalStateException("Unable to read " + id, e.getCause());
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException("Unable to read " + id, e);
+		}
+	}
+}
@@ -17,13 +17,10 @@
 package edu.gatech.chai.omoponfhir.security;
 
 import java.nio.charset.Charset;
-import java.util.Arrays;
 import java.util.Date;
-import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -34,14 +31,6 @@ import org.apache.oltu.oauth2.common.exception.OAuthSystemException;
 import org.apache.oltu.oauth2.common.message.types.ParameterStyle;
 import org.apache.oltu.oauth2.rs.request.OAuthAccessResourceRequest;
 //import org.json.JSONException;
-import org.json.JSONObject;
-import org.springframework.http.HttpEntity;
-import org.springframework.http.HttpHeaders;
-import org.springframework.http.HttpMethod;
-import org.springframework.http.HttpStatus;
-import org.springframework.http.MediaType;
-import org.springframework.http.ResponseEntity;
-import org.springframework.web.client.RestTemplate;
 
 //import ca.uhn.fhir.model.dstu.valueset.RestfulOperationTypeEnum;
 import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
@@ -67,6 +56,24 @@ public class Authorization {
 	private boolean expired = true;
 	private boolean is_admin = false;
 	private Set<String> scopeSet;
+	private ScopePermissions permissions = ScopePermissions.NONE;
+
+	// Shared by all Authorization instances. Authorization is created per request.
+	private static final IntrospectionCache introspectionCache = IntrospectionCache.fromEnvironment();
+	private static final IntrospectionClient introspectionClient = IntrospectionClient.fromEnvironment();
+	private static final LocalTokenValidator localTokenValidator = LocalTokenValidator.fromEnvironment(introspectionClient);
+	private static final RevocationPoller revocationPoller = RevocationPoller.fromEnvironment(introspectionClient);
+	private static volatile TokenIntrospector tokenIntrospector = null;
+
+	static {
+		// For as long as the server runs. Authorization has no shutdown.
+		new IntrospectionMetrics(introspectionCache, introspectionClient).register();
+	}
+
+	// Introspections within this window go to the authorization server in one
+	// request. 0 disables batching.
+	private static final long batchWindowMillis = IntrospectionBatcher.getWindowMillisFromEnvironment();
+	private static final Map<String, IntrospectionBatcher> introspectionBatchers = new ConcurrentHashMap<String, IntrospectionBatcher>();
 
 	public Authorization(String url) {
 		this.url = url;
@@ -86,23 +93,9 @@ public class Authorization {
 		this.authBasic = authBasic;
 	}
 
-	private HttpHeaders createHeaders() {
-		HttpHeaders httpHeaders = new HttpHeaders();
+	private String createAuthHeader() {
 		byte[] encodedAuth = Base64.encodeBase64(authBasic.getBytes(Charset.forName("US-ASCII")));
-		String authHeader = "Basic " + new String(encodedAuth);
-		httpHeaders.set("Authorization", authHeader);
-		httpHeaders.setAccept(Arrays.asList(MediaType.APPLICATION_JSON));
-
-		return httpHeaders;
-//		return new HttpHeaders() {
-//			{
-//				String auth = clientId+":"+clientSecret;
-//				byte[] encodedAuth = Base64.encodeBase64(auth.getBytes(Charset.forName("US-ASCII")));
-//				String authHeader = "Basic " + new String(encodedAuth);
-//				set("Authorization", authHeader);
-//				setAccept(Arrays.asList(MediaType.APPLICATION_JSON));
-//			}
-//		};
+		return "Basic " + new String(encodedAuth);
 	}
 
 	public String introspectToken(HttpServletRequest request) {
@@ -116,7 +109,6 @@ public class Authorization {
 
 			// Get the access token
 			String accessToken = oauthRequest.getAccessToken();
-			logger.debug("Access Token for Introspect:" + accessToken);
 
 			if (introspectToken(accessToken) == false) {
 				return "Invalid Access Token";
@@ -139,24 +131,89 @@ public class Authorization {
 		// Save the token for a future use.
 		this.token = token;
 
-		// Introspect the token
-		RestTemplate restTemplate = new RestTemplate();
-		HttpEntity<String> reqAuth = new HttpEntity<String>(createHeaders());
-		ResponseEntity<String> response;
+		// Revocation must be checked before the cache as cached entries live until
+		// exp, and before local validation as JWTs are valid by themselves.
+		String tokenHash = IntrospectionCache.hashToken(token);
+		if (isRevoked(token, tokenHash)) {
+			logger.debug("Access token is revoked");
+			return false;
+		}
+
+		// JWT access tokens are validated locally if enabled.
+		boolean validateLocally = localTokenValidator != null && LocalTokenValidator.isJwt(token);
+
+		// Check if we have seen this token. Cached results are used as they are
+		// until the token's exp. Concurrent requests with the same token share
+		// one lookup.
+		IntrospectionResult introspectionResult = introspectionCache.get(tokenHash, () -> {
+			if (validateLocally) {
+				return localTokenValidator.validate(token);
+			} else {
+				return requestIntrospection(token);
+			}
+		});
+		if (introspectionResult == null) {
+			return false;
+		}
+
+		return applyIntrospection(introspectionResult);
+	}
 
-		String introspectTokenUrl = url + "?token=" + this.token;
-		response = restTemplate.exchange(introspectTokenUrl, HttpMethod.POST, reqAuth, String.class);
-		HttpStatus statusCode = response.getStatusCode();
-		if (statusCode.is2xxSuccessful() == false) {
-			logger.debug("Introspect (token:"+token+") response with statusCode:" + statusCode.toString());
+	/**
+	 * Checks the token against the revocation filter. Only tokens that hit the
+	 * filter are checked with the authorization server, once per filter version.
+	 * If that check fails, the token is treated as revoked.
+	 */
+	private boolean isRevoked(String token, String tokenHash) {
+		if (revocationPoller == null || !revocationPoller.mightBeRevoked(tokenHash)) {
 			return false;
 		}
 
-		System.out.println("IntrospectToken: " + response.getBody() + ", token: "+token);
+		Boolean revoked = revocationPoller.getConfirmed(tokenHash);
+		if (revoked != null) {
+			return revoked;
+		}
+
+		long version = revocationPoller.getVersion();
+		IntrospectionResult introspectionResult = requestIntrospection(token);
+		if (introspectionResult == null) {
+			return true;
+		}
+
+		revoked = !introspectionResult.isActive();
+		revocationPoller.confirm(tokenHash, version, revoked);
+		if (revoked) {
+			// Do not let a cached result from before the revocation through.
+			introspectionCache.invalidate(tokenHash);
+		}
+
+		return revoked;
+	}
+
+	private IntrospectionResult requestIntrospection(String token) {
+		// When the authorization server runs in this JVM, ask it directly.
+		TokenIntrospector introspector = tokenIntrospector;
+		if (introspector != null) {
+			return introspector.introspect(token);
+		}
 
-		// First check the token status. Turn the body into JSON.
-		JSONObject jsonObject = new JSONObject(response.getBody());
-		if (jsonObject.getBoolean("active") != true) {
+		// Introspect the token through the shared, pooled client.
+		IntrospectionResult introspectionResult;
+		if (batchWindowMillis > 0) {
+			introspectionResult = getIntrospectionBatcher().introspect(token);
+		} else {
+			introspectionResult = introspectionClient.introspect(url, createAuthHeader(), token);
+		}
+		if (introspectionResult == null) {
+			logger.debug("Introspect request failed");
+		}
+
+		return introspectionResult;
+	}
+
+	private boolean applyIntrospection(IntrospectionResult introspectionResult) {
+		// First check the token status.
+		if (introspectionResult.isActive() != true) {
 			// This is not active token.
 			active = false;
 			logger.debug("Introspect response with non-Active token");
@@ -165,9 +222,8 @@ public class Authorization {
 		active = true;
 
 		// Get the expiration time.
-//		DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
-		if (jsonObject.has("exp")) {
-			Long exp_ts = jsonObject.getInt("exp") * 1000L;
+		if (introspectionResult.getExp() != null) {
+			Long exp_ts = introspectionResult.getExp() * 1000L;
 			Long now = (new Date()).getTime();
 
 			if (exp_ts <= (now - myTimeSkewAllowance)) {
@@ -175,48 +231,52 @@ public class Authorization {
 				logger.debug("Introspect response with expired token");
 				return false;
 			}
-
-			// Date expDate;
-//			try {
-//				expDate = new java.util.Date((long) exp_ts * 1000);
-////			expDate = df.parse(exp_str);
-//			} catch (JSONException e) {
-//				// TODO Auto-generated catch block
-//				e.printStackTrace();
-//				expired = true;
-//				return false;
-//			}
-//
-//			Date minAllowableExpirationTime = new Date(System.currentTimeMillis() - (myTimeSkewAllowance * 1000L));
-//			if (expDate != null && !expDate.before(minAllowableExpirationTime)) {
-//				// expired.
-//				expired = true;
-//				return false;
-//			}
+			expired = false;
 		}
-		// Store the received information such as scope, user_id, client_id, etc...
-		String userId = null; 
-		if (jsonObject.has("sub"))
-			userId = jsonObject.getString("sub"); // current found no need to use this.
-		if (jsonObject.has("token_type"))
-			token_type = jsonObject.getString("token_type");
-		if (jsonObject.has("patient") && !jsonObject.isNull("patient"))
-			patient = jsonObject.getString("patient");
-
-		String[] scopeValues = jsonObject.getString("scope").trim().replaceAll("\\+", " ").split(" ");
-		scopeSet = new HashSet<String>(Arrays.asList(scopeValues));
+
+		// Store the received information such as scope, token_type, patient, etc...
+		token_type = introspectionResult.getTokenType();
+		patient = introspectionResult.getPatient();
+
+		scopeSet = introspectionResult.getScopeSet();
 		if (scopeSet.isEmpty()) {
 			logger.debug("ScopeSet has empty scopes");
 			return false;
 		}
 
-		if (scopeSet.contains("user/*.*")) {
-			is_admin = true;
-		}
+		is_admin = introspectionResult.isAdmin();
+		permissions = introspectionResult.getPermissions();
 
 		return true;
 	}
 
+	private IntrospectionBatcher getIntrospectionBatcher() {
+		String authHeader = createAuthHeader();
+		return introspectionBatchers.computeIfAbsent(url + " " + authHeader,
+				key -> new IntrospectionBatcher(introspectionClient, url, authHeader, batchWindowMillis,
+						IntrospectionBatcher.getMaxBatchSizeFromEnvironment()));
+	}
+
+	public static IntrospectionCache getIntrospectionCache() {
+		return introspectionCache;
+	}
+
+	public static IntrospectionClient getIntrospectionClient() {
+		return introspectionClient;
+	}
+
+	public static RevocationPoller getRevocationPoller() {
+		return revocationPoller;
+	}
+
+	public static TokenIntrospector getTokenIntrospector() {
+		return tokenIntrospector;
+	}
+
+	public static void setTokenIntrospector(TokenIntrospector introspector) {
+		tokenIntrospector = introspector;
+	}
+
 	public boolean checkBearer() {
 		if (token_type != null && token_type.equalsIgnoreCase("Bearer")) {
 			return true;
@@ -253,14 +313,12 @@ public class Authorization {
 		if (resourceName == null) {
 			Map<String, String[]> params = theRequestDetails.getParameters();
 			String[] page_ = params.get("_getpages");
-			if (page_.length > 0) {
+			if (page_ != null && page_.length > 0) {
 				String page_id = page_[0];
 				if (page_id != null && !page_id.isEmpty()) {
 					// This is page loading. Then, it means the original request passed.
 					// If this is wrong page_id, then the server will not able to locate that.
-					System.out.println("[THIS SHOULD NOT HAPPEND] Page loading: " + page_id
-							+ ". We are assuming this has already authorized.");
-					logger.info("[THIS SHOULD NOT HAPPEND] Request (" + theRequestDetails.getCompleteUrl()
+					logger.warn("[THIS SHOULD NOT HAPPEND] Request (" + theRequestDetails.getCompleteUrl()
 							+ ") is page request with id=" + page_id + " We are assuming this has already authorized.");
 
 					return true;
@@ -269,121 +327,84 @@ public class Authorization {
 		}
 
 		RestOperationTypeEnum resourceOperationType = theRequestDetails.getRestOperationType();
-		for (String scope : scopeSet) {
-			// If the scope is not form of <patient or user>/<resource>.<access>, (eg)
-			// patient/*.read,
-			// then, we skip to next scope as this only evaluates the resource level check.
-			String patternString = "(user|patient)\\/[a-zA-Z*]+.(read|write|\\*)";
-			Pattern pattern = Pattern.compile(patternString);
-			Matcher matcher = pattern.matcher(scope);
-			if (matcher.matches() == false)
-				continue;
-
-			String[] scopeDetail = scope.split("/");
-			logger.debug("checking scope:" + scope + " scopeDetail[0]=" + scopeDetail[0]);
-			if ("patient".equals(scopeDetail[0])) {
-				if (patient == null || patient.isEmpty())
-					continue;
-
-				boolean found = false;
-				if ("Patient".equals(resourceName)) {
-					logger.debug("retrieving Patient by client. This scoped is bound to patient_id:" + patient
-							+ " and received patient:" + theRequestDetails.getId().getIdPart());
-					if (!patient.equals(theRequestDetails.getId().getIdPart())) {
-						continue;
-					} else {
-						found = true;
-					}
-				} else {
-					// Trying to get a resource other than Patient. Check if we have
-					// patient or subject parameters. If not, throw exception.
-					Map<String, String[]> reqParam = theRequestDetails.getParameters();
-					String[] patientIds = reqParam.get("patient");
-					if (patientIds == null || patientIds.length == 0) {
-						patientIds = reqParam.get("subject");
-						if (patientIds != null && patientIds.length > 0) {
-							found = false;
-							for (String patientId : patientIds) {
-								logger.debug("Checking subject=Patient/<id>:" + patientId
-										+ " with <id> in Introspect response:" + patient);
-								if (patientId.startsWith("Patient/")) {
-									String id = patientId.substring(8);
-									if (id.equals(patient)) {
-										found = true;
-										break;
-									}
-								} else {
-									logger.error(
-											"subject= parameter is required to have subject related Resource. Resource/ is not found. Request URL:"
-													+ theRequestDetails.getCompleteUrl());
-								}
-							}
-						} else {
-							patientIds = reqParam.get("subject:Patient");
-							if (patientIds != null && patientIds.length > 0) {
-								found = false;
-								for (String patientId : patientIds) {
-									logger.debug("Checking subjec:Patientt=<id>:" + patientId
-											+ " with <id> in Introspect response:" + patient);
-									if (patientId.equals(patient)) {
-										found = true;
-										break;
-									}
-								}
-							}
-						}
-					} else {
-						// patient id.
-						found = false;
-						for (String patientId : patientIds) {
-							logger.debug("Checking patient=<id>:" + patientId + " with <id> in Introspect response:"
-									+ patient);
-							if (patient.equals(patientId)) {
-								found = true;
-								break;
-							}
-						}
-					}
-				}
 
-				if (!found) {
-					logger.debug("Couldn't find patient/ scope matches with patient id=" + patient + ". Request URL:"
-							+ theRequestDetails.getCompleteUrl());
-					continue;
-				} else {
-					logger.debug("Found! patient/ scope matches with patient id=" + patient);
-				}
+		// READ, VREAD, SEARCH_TYPE need read permission. CREATE, UPDATE, DELETE...
+		// write permission is required.
+		boolean write = !(resourceOperationType == RestOperationTypeEnum.READ
+				|| resourceOperationType == RestOperationTypeEnum.VREAD
+				|| resourceOperationType == RestOperationTypeEnum.SEARCH_TYPE);
+
+		// user/ scope has all patients permission.
+		if (permissions.allowsUser(resourceName, write)) {
+			return true;
+		}
+
+		// patient/ scope is bound to the patient in the introspect response.
+		if (permissions.allowsPatient(resourceName, write) && patient != null && !patient.isEmpty()) {
+			if (matchesPatient(theRequestDetails, resourceName)) {
+				logger.debug("Found! patient/ scope matches with patient id=" + patient);
+				return true;
 			}
 
-			if (resourceOperationType == RestOperationTypeEnum.READ
-					|| resourceOperationType == RestOperationTypeEnum.VREAD
-					|| resourceOperationType == RestOperationTypeEnum.SEARCH_TYPE) {
-				if ((scopeDetail[1].equalsIgnoreCase("*.read") || scopeDetail[1].equalsIgnoreCase("*.*"))) {
+			logger.debug("Couldn't find patient/ scope matches with patient id=" + patient + ". Request URL:"
+					+ theRequestDetails.getCompleteUrl());
+		}
+
+		logger.error("Request (" + theRequestDetails.getCompleteUrl() + ") is not authorized:" + resourceName + " "
+				+ resourceOperationType.name() + " request failed to get Authorization.");
+		return false;
+	}
+
+	private boolean matchesPatient(RequestDetails theRequestDetails, String resourceName) {
+		if ("Patient".equals(resourceName)) {
+			if (theRequestDetails.getId() == null) {
+				return false;
+			}
+
+			logger.debug("retrieving Patient by client. This scoped is bound to patient_id:" + patient
+					+ " and received patient:" + theRequestDetails.getId().getIdPart());
+			return patient.equals(theRequestDetails.getId().getIdPart());
+		}
+
+		// Trying to get a resource other than Patient. Check if we have
+		// patient or subject parameters.
+		Map<String, String[]> reqParam = theRequestDetails.getParameters();
+		String[] patientIds = reqParam.get("patient");
+		if (patientIds != null && patientIds.length > 0) {
+			for (String patientId : patientIds) {
+				if (patient.equals(patientId)) {
 					return true;
-				} else {
-					String[] scopeResource = scopeDetail[1].split("\\.");
-					if (scopeResource[0].equalsIgnoreCase(resourceName)
-							&& (scopeResource[1].equalsIgnoreCase("read") || scopeResource[1].equalsIgnoreCase("*"))) {
+				}
+			}
+			return false;
+		}
+
+		patientIds = reqParam.get("subject");
+		if (patientIds != null && patientIds.length > 0) {
+			for (String patientId : patientIds) {
+				if (patientId.startsWith("Patient/")) {
+					if (patientId.regionMatches(8, patient, 0, patient.length())
+							&& patientId.length() == 8 + patient.length()) {
 						return true;
 					}
+				} else {
+					logger.error(
+							"subject= parameter is required to have subject related Resource. Resource/ is not found. Request URL:"
+									+ theRequestDetails.getCompleteUrl());
 				}
-			} else {
-				// This is CREATE, UPDATE, DELETE... write permission is required.
-				if ((scopeDetail[1].equalsIgnoreCase("*.write") || scopeDetail[1].equalsIgnoreCase("*.*"))) {
+			}
+			return false;
+		}
+
+		patientIds = reqParam.get("subject:Patient");
+		if (patientIds != null && patientIds.length > 0) {
+			for (String patientId : patientIds) {
+				if (patientId.equals(patient)) {
 					return true;
-				} else {
-					String[] scopeResource = scopeDetail[1].split("\\.");
-					if (scopeResource[0].equalsIgnoreCase(resourceName)
-							&& (scopeResource[1].equalsIgnoreCase("write") || scopeResource[1].equalsIgnoreCase("*"))) {
-						return true;
-					}
 				}
 			}
 		}
 
-		System.out.println(resourceName + " " + resourceOperationType.name() + " request failed to get Authorization.");
-		logger.error("Request (" + theRequestDetails.getCompleteUrl() + ") is not authorized:" + resourceName + " "
-				+ resourceOperationType.name() + " request failed to get Authorization.");
 		return false;
 	}
 
@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package edu.gatech.chai.omoponfhir.security;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Minimal circuit breaker. After failureThreshold consecutive failures, calls
+ * are rejected for openMillis. After that, a single trial call is let through.
+ * Success closes the circuit and failure opens it again.
+ */
+public class CircuitBreaker {
+	private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(CircuitBreaker.class);
+
+	private final String name;
+	private final int failureThreshold;
+	private final long openMillis;
+
+	private final AtomicInteger consecutiveFailures = new AtomicInteger(0);
+	private final AtomicLong openUntil = new AtomicLong(0L);
+	private final AtomicBoolean trialInFlight = new AtomicBoolean(false);
+	private final AtomicLong rejectedCount = new AtomicLong(0L);
+	private final AtomicLong openedCount = new AtomicLong(0L);
+
+	public CircuitBreaker(String name, int failureThreshold, long openMillis) {
+		this.name = name;
+		this.failureThreshold = failureThreshold;
+		this.openMillis = openMillis;
+	}
+
+	public boolean allowRequest() {
+		long until = openUntil.get();
+		if (until == 0L) {
+			return true;
+		}
+
+		if (System.currentTimeMillis() < until) {
+			rejectedCount.incrementAndGet();
+			return false;
+		}
+
+		// Open period is over. Only one caller gets to try.
+		if (trialInFlight.compareAndSet(false, true)) {
+			return true;
+		}
+
+		rejectedCount.incrementAndGet();
+		return false;
+	}
+
+	public void recordSuccess() {
+		consecutiveFailures.set(0);
+		if (openUntil.getAndSet(0L) != 0L) {
+			logger.info("Circuit " + name + " closed");
+		}
+		trialInFlight.set(false);
+	}
+
+	public void recordFailure() {
+		int failures = consecutiveFailures.incrementAndGet();
+		if (failures >= failureThreshold || trialInFlight.get()) {
+			openUntil.set(System.currentTimeMillis() + openMillis);
+			openedCount.incrementAndGet();
+			logger.warn("Circuit " + name + " opened for " + openMillis + "ms after " + failures + " failures");
+		}
+		trialInFlight.set(false);
+	}
+
+	/**
+	 * Ends a call that says nothing about the remote side, such as one that
+	 * could not get a connection from our own pool. A trial call gives its turn
+	 * to the next caller.
+	 */
+	public void recordIgnored() {
+		trialInFlight.set(false);
+	}
+
+	public boolean isOpen() {
+		long until = openUntil.get();
+		return until != 0L && System.currentTimeMillis() < until;
+	}
+
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	public long getOpenedCount() {
+		return openedCount.get();
+	}
+}
@@ -0,0 +1,201 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package edu.gatech.chai.omoponfhir.security;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects introspections that arrive within a short window and sends them to
+ * the batch introspect endpoint in one request.
+ *
+ * There is no background thread. The request that opens a batch waits for the
+ * window and sends it. Others join the batch and wait for its result. A batch
+ * that reaches the maximum size is sent right away by the request that filled
+ * it.
+ */
+public class IntrospectionBatcher {
+	private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(IntrospectionBatcher.class);
+
+	public static final int DEFAULT_MAX_BATCH_SIZE = 50;
+
+	private final IntrospectionClient introspectionClient;
+	private final String introspectUrl;
+	private final String batchUrl;
+	private final String authHeader;
+	private final long windowMillis;
+	private final int maxBatchSize;
+
+	// Batch that is still taking tokens. Guarded by this.
+	private Batch openBatch = null;
+
+	private final AtomicLong batchCount = new AtomicLong(0L);
+	private final AtomicLong tokenCount = new AtomicLong(0L);
+
+	private static final class Batch {
+		final List<String> tokens = new ArrayList<String>();
+		final List<CompletableFuture<IntrospectionResult>> futures = new ArrayList<CompletableFuture<IntrospectionResult>>();
+	}
+
+	public IntrospectionBatcher(IntrospectionClient introspectionClient, String introspectUrl, String authHeader,
+			long windowMillis, int maxBatchSize) {
+		this.introspectionClient = introspectionClient;
+		this.introspectUrl = introspectUrl;
+		this.batchUrl = toBatchUrl(introspectUrl);
+		this.authHeader = authHeader;
+		this.windowMillis = windowMillis;
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	/**
+	 * @return batch window from INTROSPECT_BATCH_WINDOW_MS. 0, the default,
+	 *         means tokens are introspected one at a time.
+	 */
+	public static long getWindowMillisFromEnvironment() {
+		String windowEnv = System.getenv("INTROSPECT_BATCH_WINDOW_MS");
+		if (windowEnv != null && !windowEnv.trim().isEmpty()) {
+			return Long.parseLong(windowEnv.trim());
+		}
+
+		return 0L;
+	}
+
+	public static int getMaxBatchSizeFromEnvironment() {
+		String maxEnv = System.getenv("INTROSPECT_BATCH_MAX");
+		if (maxEnv != null && !maxEnv.trim().isEmpty()) {
+			return Integer.parseInt(maxEnv.trim());
+		}
+
+		return DEFAULT_MAX_BATCH_SIZE;
+	}
+
+	/**
+	 * Batch endpoint of an introspect URL. eg. .../smart/introspect becomes
+	 * .../smart/introspect/batch
+	 */
+	public static String toBatchUrl(String introspectUrl) {
+		if (introspectUrl.endsWith("/")) {
+			return introspectUrl + "batch";
+		}
+
+		return introspectUrl + "/batch";
+	}
+
+	/**
+	 * Introspects the token as part of a batch. Returns null if the batch
+	 * request failed.
+	 */
+	public IntrospectionResult introspect(String token) {
+		CompletableFuture<IntrospectionResult> future = new CompletableFuture<IntrospectionResult>();
+		Batch myBatch;
+		Batch fullBatch = null;
+		boolean leader = false;
+
+		synchronized (this) {
+			if (openBatch == null) {
+				openBatch = new Batch();
+				leader = true;
+			}
+			myBatch = openBatch;
+			myBatch.tokens.add(token);
+			myBatch.futures.add(future);
+
+			if (myBatch.tokens.size() >= maxBatchSize) {
+				fullBatch = myBatch;
+				openBatch = null;
+				notifyAll();
+			}
+		}
+
+		if (fullBatch != null) {
+			send(fullBatch);
+		} else if (leader) {
+			Batch windowBatch = null;
+			synchronized (this) {
+				long deadline = System.currentTimeMillis() + windowMillis;
+				long remaining = windowMillis;
+				try {
+					while (openBatch == myBatch && remaining > 0) {
+						wait(remaining);
+						remaining = deadline - System.currentTimeMillis();
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+
+				// Unless the batch filled up and was sent, it is ours to send.
+				if (openBatch == myBatch) {
+					windowBatch = myBatch;
+					openBatch = null;
+				}
+			}
+
+			if (windowBatch != null) {
+				send(windowBatch);
+			}
+		}
+
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			logger.debug("Batched introspection failed: " + e.getMessage());
+			return null;
+		}
+	}
+
+	private void send(Batch batch) {
+		batchCount.incrementAndGet();
+		tokenCount.addAndGet(batch.tokens.size());
+
+		List<IntrospectionResult> results = null;
+		try {
+			if (batch.tokens.size() == 1) {
+				// Not worth the batch endpoint.
+				IntrospectionResult result = introspectionClient.introspect(introspectUrl, authHeader,
+						batch.tokens.get(0));
+				batch.futures.get(0).complete(result);
+				return;
+			}
+
+			results = introspectionClient.introspectBatch(batchUrl, authHeader, batch.tokens);
+		} catch (RuntimeException e) {
+			for (CompletableFuture<IntrospectionResult> future : batch.futures) {
+				future.completeExceptionally(e);
+			}
+			return;
+		}
+
+		if (results == null) {
+			logger.debug("Batch introspect request for " + batch.tokens.size() + " tokens failed");
+		}
+
+		for (int i = 0; i < batch.futures.size(); i++) {
+			batch.futures.get(i).complete(results == null ? null : results.get(i));
+		}
+	}
+
+	public long getBatchCount() {
+		return batchCount.get();
+	}
+
+	public long getTokenCount() {
+		return tokenCount.get();
+	}
+}
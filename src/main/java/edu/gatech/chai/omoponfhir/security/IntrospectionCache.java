@@ -0,0 +1,240 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package edu.gatech.chai.omoponfhir.security;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
+/**
+ * Bounded cache of introspection results. Entries are keyed by a SHA-256 hash
+ * of the access token so raw tokens are never held in memory longer than the
+ * request, and each entry expires at the token's own exp.
+ *
+ * Concurrent misses for the same token share one in-flight lookup. Callers
+ * that joined someone else's lookup are counted as coalesced.
+ *
+ * Tokens that were rejected are remembered for a short time so that clients
+ * replaying an expired or unknown token do not cause an introspection each
+ * time. Lookups that failed (eg. authorization server down) are not
+ * remembered.
+ */
+public class IntrospectionCache {
+	private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(IntrospectionCache.class);
+
+	public static final long DEFAULT_MAX_SIZE = 10000L;
+
+	// Used when introspection response does not carry exp.
+	public static final long DEFAULT_TTL_SECONDS = 60L;
+
+	public static final long DEFAULT_NEGATIVE_TTL_SECONDS = 30L;
+
+	private final Cache<String, IntrospectionResult> cache;
+	private final Cache<String, Boolean> rejected;
+	private final Map<String, CompletableFuture<IntrospectionResult>> inFlight = new ConcurrentHashMap<String, CompletableFuture<IntrospectionResult>>();
+
+	private final AtomicLong loadCount = new AtomicLong(0L);
+	private final AtomicLong coalescedCount = new AtomicLong(0L);
+	private final AtomicLong negativeHitCount = new AtomicLong(0L);
+
+	public IntrospectionCache() {
+		this(DEFAULT_MAX_SIZE, DEFAULT_NEGATIVE_TTL_SECONDS);
+	}
+
+	public IntrospectionCache(long maxSize, long negativeTtlSeconds) {
+		cache = Caffeine.newBuilder().maximumSize(maxSize).expireAfter(new Expiry<String, IntrospectionResult>() {
+			@Override
+			public long expireAfterCreate(String key, IntrospectionResult value, long currentTime) {
+				return ttlNanos(value);
+			}
+
+			@Override
+			public long expireAfterUpdate(String key, IntrospectionResult value, long currentTime,
+					long currentDuration) {
+				return ttlNanos(value);
+			}
+
+			@Override
+			public long expireAfterRead(String key, IntrospectionResult value, long currentTime,
+					long currentDuration) {
+				return currentDuration;
+			}
+		}).recordStats().build();
+
+		rejected = Caffeine.newBuilder().maximumSize(maxSize)
+				.expireAfterWrite(negativeTtlSeconds, TimeUnit.SECONDS).build();
+
+		logger.info("Introspection cache created with maximum size of " + maxSize);
+	}
+
+	public static IntrospectionCache fromEnvironment() {
+		long maxSize = DEFAULT_MAX_SIZE;
+		String maxSizeEnv = System.getenv("INTROSPECT_CACHE_SIZE");
+		if (maxSizeEnv != null && !maxSizeEnv.isEmpty()) {
+			maxSize = Long.parseLong(maxSizeEnv.trim());
+		}
+
+		long negativeTtlSeconds = DEFAULT_NEGATIVE_TTL_SECONDS;
+		String negativeTtlEnv = System.getenv("INTROSPECT_NEGATIVE_TTL_SEC");
+		if (negativeTtlEnv != null && !negativeTtlEnv.isEmpty()) {
+			negativeTtlSeconds = Long.parseLong(negativeTtlEnv.trim());
+		}
+
+		return new IntrospectionCache(maxSize, negativeTtlSeconds);
+	}
+
+	private static long ttlNanos(IntrospectionResult value) {
+		if (value.getExp() == null) {
+			return TimeUnit.SECONDS.toNanos(DEFAULT_TTL_SECONDS);
+		}
+
+		long ttlMillis = value.getExp() * 1000L - System.currentTimeMillis();
+		if (ttlMillis <= 0) {
+			return 0L;
+		}
+
+		return TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+	}
+
+	public static String hashToken(String token) {
+		return DigestUtils.sha256Hex(token);
+	}
+
+	public IntrospectionResult get(String tokenHash) {
+		return cache.getIfPresent(tokenHash);
+	}
+
+	/**
+	 * Returns the cached result, or runs the loader. If another thread is
+	 * already loading the same token, waits for that result instead. Active
+	 * results are cached until exp and inactive ones for the negative TTL.
+	 * Returns null if the lookup failed.
+	 */
+	public IntrospectionResult get(String tokenHash, Supplier<IntrospectionResult> loader) {
+		IntrospectionResult result = cache.getIfPresent(tokenHash);
+		if (result != null) {
+			return result;
+		}
+
+		if (rejected.getIfPresent(tokenHash) != null) {
+			negativeHitCount.incrementAndGet();
+			return IntrospectionResult.INACTIVE;
+		}
+
+		CompletableFuture<IntrospectionResult> future = new CompletableFuture<IntrospectionResult>();
+		CompletableFuture<IntrospectionResult> existing = inFlight.putIfAbsent(tokenHash, future);
+		if (existing != null) {
+			coalescedCount.incrementAndGet();
+			try {
+				return existing.join();
+			} catch (CompletionException e) {
+				logger.debug("Coalesced introspection failed: " + e.getMessage());
+				return null;
+			}
+		}
+
+		try {
+			// Someone may have just finished loading this. Reads through asMap() do
+			// not record stats, so this miss is not counted twice. (Caffeine 2.7
+			// has no Policy.getIfPresentQuietly.)
+			result = cache.asMap().get(tokenHash);
+			if (result == null) {
+				loadCount.incrementAndGet();
+				result = loader.get();
+				if (result != null) {
+					if (result.isActive()) {
+						cache.put(tokenHash, result);
+					} else {
+						rejected.put(tokenHash, Boolean.TRUE);
+					}
+				}
+			}
+			future.complete(result);
+			return result;
+		} catch (RuntimeException e) {
+			future.completeExceptionally(e);
+			throw e;
+		} finally {
+			inFlight.remove(tokenHash, future);
+		}
+	}
+
+	public void put(String tokenHash, IntrospectionResult result) {
+		cache.put(tokenHash, result);
+	}
+
+	public void invalidate(String tokenHash) {
+		cache.invalidate(tokenHash);
+		rejected.invalidate(tokenHash);
+	}
+
+	public void invalidateAll() {
+		cache.invalidateAll();
+		rejected.invalidateAll();
+	}
+
+	public long size() {
+		return cache.estimatedSize();
+	}
+
+	public CacheStats stats() {
+		return cache.stats();
+	}
+
+	public long getHitCount() {
+		return cache.stats().hitCount();
+	}
+
+	public long getMissCount() {
+		return cache.stats().missCount();
+	}
+
+	public long getEvictionCount() {
+		return cache.stats().evictionCount();
+	}
+
+	public long getLoadCount() {
+		return loadCount.get();
+	}
+
+	public long getCoalescedCount() {
+		return coalescedCount.get();
+	}
+
+	public long getNegativeHitCount() {
+		return negativeHitCount.get();
+	}
+
+	public long getNegativeSize() {
+		return rejected.estimatedSize();
+	}
+
+	public int getInFlightCount() {
+		return inFlight.size();
+	}
+}
@@ -0,0 +1,275 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package edu.gatech.chai.omoponfhir.security;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpHeaders;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Shared HTTP client for token introspection. Connections to the
+ * authorization server are pooled and kept alive, and all calls go through a
+ * circuit breaker so that we fail fast when the authorization server is down.
+ */
+public class IntrospectionClient {
+	private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(IntrospectionClient.class);
+
+	private final PoolingHttpClientConnectionManager connectionManager;
+	private final CloseableHttpClient httpClient;
+	private final CircuitBreaker circuitBreaker;
+
+	private final AtomicLong requestCount = new AtomicLong(0L);
+	private final AtomicLong failureCount = new AtomicLong(0L);
+	private final AtomicLong totalLatencyNanos = new AtomicLong(0L);
+	private final AtomicLong maxLatencyNanos = new AtomicLong(0L);
+
+	public IntrospectionClient(int maxTotal, int maxPerRoute, int connectTimeoutMillis, int readTimeoutMillis,
+			int poolWaitMillis, int breakerFailureThreshold, long breakerOpenMillis) {
+		connectionManager = new PoolingHttpClientConnectionManager();
+		connectionManager.setMaxTotal(maxTotal);
+		connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+		connectionManager.setValidateAfterInactivity(2000);
+
+		RequestConfig requestConfig = RequestConfig.custom().setConnectTimeout(connectTimeoutMillis)
+				.setSocketTimeout(readTimeoutMillis).setConnectionRequestTimeout(poolWaitMillis).build();
+
+		httpClient = HttpClients.custom().setConnectionManager(connectionManager)
+				.setDefaultRequestConfig(requestConfig).evictIdleConnections(60L, TimeUnit.SECONDS)
+				.disableCookieManagement().build();
+
+		circuitBreaker = new CircuitBreaker("introspect", breakerFailureThreshold, breakerOpenMillis);
+	}
+
+	public static IntrospectionClient fromEnvironment() {
+		return new IntrospectionClient(getEnvInt("INTROSPECT_POOL_MAX_TOTAL", 50),
+				getEnvInt("INTROSPECT_POOL_MAX_PER_ROUTE", 20), getEnvInt("INTROSPECT_CONNECT_TIMEOUT_MS", 2000),
+				getEnvInt("INTROSPECT_READ_TIMEOUT_MS", 5000), getEnvInt("INTROSPECT_POOL_WAIT_MS", 1000),
+				getEnvInt("INTROSPECT_BREAKER_FAILURES", 5), getEnvInt("INTROSPECT_BREAKER_OPEN_MS", 30000));
+	}
+
+	private static int getEnvInt(String name, int defaultValue) {
+		String value = System.getenv(name);
+		if (value != null && !value.trim().isEmpty()) {
+			return Integer.parseInt(value.trim());
+		}
+
+		return defaultValue;
+	}
+
+	/**
+	 * Introspects the token. Returns null if the authorization server did not
+	 * respond with 2xx, could not be reached, or the circuit is open.
+	 */
+	public IntrospectionResult introspect(String introspectUrl, String authHeader, String token) {
+		List<String> tokens = new ArrayList<String>(1);
+		tokens.add(token);
+
+		String body = post(introspectUrl, authHeader, tokens);
+		if (body == null) {
+			return null;
+		}
+
+		return IntrospectionResult.fromJson(new JSONObject(body));
+	}
+
+	/**
+	 * Introspects many tokens with one request to the batch endpoint of the
+	 * authorization server. Returns results in the order of tokens, or null
+	 * if the request failed.
+	 */
+	public List<IntrospectionResult> introspectBatch(String batchUrl, String authHeader, List<String> tokens) {
+		String body = post(batchUrl, authHeader, tokens);
+		if (body == null) {
+			return null;
+		}
+
+		try {
+			JSONArray responses = new JSONArray(body);
+			if (responses.length() != tokens.size()) {
+				logger.error("Batch introspect responded with " + responses.length() + " results for "
+						+ tokens.size() + " tokens");
+				return null;
+			}
+
+			List<IntrospectionResult> results = new ArrayList<IntrospectionResult>(responses.length());
+			for (int i = 0; i < responses.length(); i++) {
+				results.add(IntrospectionResult.fromJson(responses.getJSONObject(i)));
+			}
+
+			return results;
+		} catch (JSONException e) {
+			logger.error("Unable to read batch introspect response: " + e.getMessage());
+			return null;
+		}
+	}
+
+	private String post(String introspectUrl, String authHeader, List<String> tokens) {
+		if (!circuitBreaker.allowRequest()) {
+			logger.warn("Introspection skipped. Authorization server circuit is open");
+			return null;
+		}
+
+		HttpPost post = new HttpPost(introspectUrl);
+		post.setHeader(HttpHeaders.AUTHORIZATION, authHeader);
+		post.setHeader(HttpHeaders.ACCEPT, "application/json");
+
+		List<NameValuePair> params = new ArrayList<NameValuePair>(tokens.size());
+		for (String token : tokens) {
+			params.add(new BasicNameValuePair("token", token));
+		}
+		post.setEntity(new UrlEncodedFormEntity(params, StandardCharsets.UTF_8));
+
+		requestCount.incrementAndGet();
+		long start = System.nanoTime();
+		// Every way out of here has to tell the breaker, or a trial call would
+		// keep it half open forever.
+		boolean recorded = false;
+		try (CloseableHttpResponse response = httpClient.execute(post)) {
+			int statusCode = response.getStatusLine().getStatusCode();
+			String body = response.getEntity() == null ? null
+					: EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
+
+			if (statusCode >= 500) {
+				failureCount.incrementAndGet();
+				circuitBreaker.recordFailure();
+				recorded = true;
+				logger.debug("Introspect response with statusCode:" + statusCode);
+				return null;
+			}
+
+			// The authorization server is up. 4xx here is an answer about the token.
+			circuitBreaker.recordSuccess();
+			recorded = true;
+			if (statusCode < 200 || statusCode >= 300 || body == null || body.isEmpty()) {
+				logger.debug("Introspect response with statusCode:" + statusCode);
+				return null;
+			}
+
+			return body;
+		} catch (ConnectionPoolTimeoutException e) {
+			// Our own pool is saturated. That is not the authorization server failing.
+			failureCount.incrementAndGet();
+			circuitBreaker.recordIgnored();
+			recorded = true;
+			logger.warn("No pooled connection for introspection: " + e.getMessage());
+			return null;
+		} catch (IOException e) {
+			failureCount.incrementAndGet();
+			circuitBreaker.recordFailure();
+			recorded = true;
+			logger.error("Introspection request to " + introspectUrl + " failed: " + e.getMessage());
+			return null;
+		} finally {
+			if (!recorded) {
+				// A RuntimeException from the client or while reading the body.
+				failureCount.incrementAndGet();
+				circuitBreaker.recordFailure();
+			}
+			recordLatency(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Plain GET through the same connection pool. Used to fetch documents
+	 * published by the authorization server such as JWKS. Returns null on
+	 * failure.
+	 */
+	public String get(String documentUrl) {
+		HttpGet get = new HttpGet(documentUrl);
+		get.setHeader(HttpHeaders.ACCEPT, "application/json");
+
+		try (CloseableHttpResponse response = httpClient.execute(get)) {
+			int statusCode = response.getStatusLine().getStatusCode();
+			if (statusCode < 200 || statusCode >= 300 || response.getEntity() == null) {
+				logger.debug("GET " + documentUrl + " responded with statusCode:" + statusCode);
+				return null;
+			}
+
+			return EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			logger.error("GET " + documentUrl + " failed: " + e.getMessage());
+			return null;
+		}
+	}
+
+	private void recordLatency(long latencyNanos) {
+		totalLatencyNanos.addAndGet(latencyNanos);
+
+		long max = maxLatencyNanos.get();
+		while (latencyNanos > max && !maxLatencyNanos.compareAndSet(max, latencyNanos)) {
+			max = maxLatencyNanos.get();
+		}
+	}
+
+	public PoolStats getPoolStats() {
+		return connectionManager.getTotalStats();
+	}
+
+	public long getRequestCount() {
+		return requestCount.get();
+	}
+
+	public long getFailureCount() {
+		return failureCount.get();
+	}
+
+	public double getAverageLatencyMillis() {
+		long count = requestCount.get();
+		if (count == 0L) {
+			return 0.0;
+		}
+
+		return totalLatencyNanos.get() / 1000000.0 / count;
+	}
+
+	public double getMaxLatencyMillis() {
+		return maxLatencyNanos.get() / 1000000.0;
+	}
+
+	public CircuitBreaker getCircuitBreaker() {
+		return circuitBreaker;
+	}
+
+	public void close() {
+		try {
+			httpClient.close();
+		} catch (IOException e) {
+			logger.error(e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,150 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package edu.gatech.chai.omoponfhir.security;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counts of token introspection on the resource server, published over JMX as
+ * edu.gatech.chai.omoponfhir:type=Introspection
+ */
+public class IntrospectionMetrics implements IntrospectionMetricsMBean {
+	private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(IntrospectionMetrics.class);
+
+	private final IntrospectionCache cache;
+	private final IntrospectionClient client;
+	private ObjectName objectName;
+
+	public IntrospectionMetrics(IntrospectionCache cache, IntrospectionClient client) {
+		this.cache = cache;
+		this.client = client;
+	}
+
+	public void register() {
+		try {
+			MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+			objectName = new ObjectName("edu.gatech.chai.omoponfhir:type=Introspection");
+			if (mBeanServer.isRegistered(objectName)) {
+				// Left over from a previous deployment.
+				mBeanServer.unregisterMBean(objectName);
+			}
+			mBeanServer.registerMBean(this, objectName);
+		} catch (JMException e) {
+			logger.warn("Unable to register introspection metrics: " + e.getMessage());
+			objectName = null;
+		}
+	}
+
+	@Override
+	public long getCachedCount() {
+		return cache.size();
+	}
+
+	@Override
+	public long getHitCount() {
+		return cache.getHitCount();
+	}
+
+	@Override
+	public long getMissCount() {
+		return cache.getMissCount();
+	}
+
+	@Override
+	public long getEvictionCount() {
+		return cache.getEvictionCount();
+	}
+
+	@Override
+	public long getLoadCount() {
+		return cache.getLoadCount();
+	}
+
+	@Override
+	public long getNegativeHitCount() {
+		return cache.getNegativeHitCount();
+	}
+
+	@Override
+	public long getNegativeCachedCount() {
+		return cache.getNegativeSize();
+	}
+
+	@Override
+	public long getCoalescedCount() {
+		return cache.getCoalescedCount();
+	}
+
+	@Override
+	public int getInFlightCount() {
+		return cache.getInFlightCount();
+	}
+
+	@Override
+	public long getRequestCount() {
+		return client.getRequestCount();
+	}
+
+	@Override
+	public long getFailureCount() {
+		return client.getFailureCount();
+	}
+
+	@Override
+	public double getAverageLatencyMillis() {
+		return client.getAverageLatencyMillis();
+	}
+
+	@Override
+	public double getMaxLatencyMillis() {
+		return client.getMaxLatencyMillis();
+	}
+
+	@Override
+	public int getPoolLeased() {
+		return client.getPoolStats().getLeased();
+	}
+
+	@Override
+	public int getPoolAvailable() {
+		return client.getPoolStats().getAvailable();
+	}
+
+	@Override
+	public int getPoolPending() {
+		return client.getPoolStats().getPending();
+	}
+
+	@Override
+	public int getPoolMax() {
+		return client.getPoolStats().getMax();
+	}
+
+	@Override
+	public long getBreakerRejectedCount() {
+		return client.getCircuitBreaker().getRejectedCount();
+	}
+
+	@Override
+	public long getBreakerOpenedCount() {
+		return client.getCircuitBreaker().getOpenedCount();
+	}
+}
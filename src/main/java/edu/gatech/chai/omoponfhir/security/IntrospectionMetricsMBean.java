@@ -0,0 +1,42 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package edu.gatech.chai.omoponfhir.security;
+
+/**
+ * JMX view of {@link IntrospectionMetrics}.
+ */
+public interface IntrospectionMetricsMBean {
+	public long getCachedCount();
+	public long getHitCount();
+	public long getMissCount();
+	public long getEvictionCount();
+	public long getLoadCount();
+	public long getNegativeHitCount();
+	public long getNegativeCachedCount();
+	public long getCoalescedCount();
+	public int getInFlightCount();
+	public long getRequestCount();
+	public long getFailureCount();
+	public double getAverageLatencyMillis();
+	public double getMaxLatencyMillis();
+	public int getPoolLeased();
+	public int getPoolAvailable();
+	public int getPoolPending();
+	public int getPoolMax();
+	public long getBreakerRejectedCount();
+	public long getBreakerOpenedCount();
+}
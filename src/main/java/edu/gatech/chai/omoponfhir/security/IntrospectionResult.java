@@ -0,0 +1,119 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package edu.gatech.chai.omoponfhir.security;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.json.JSONObject;
+
+/**
+ * Immutable view of an introspection response. Instances are shared between
+ * requests through {@link IntrospectionCache}, so nothing here may change
+ * after construction.
+ */
+public final class IntrospectionResult {
+	// Definite answer that the token is not valid. Unlike null, which means we
+	// could not find out, this may be remembered in the negative cache.
+	public static final IntrospectionResult INACTIVE = new IntrospectionResult(false, null, null, null, null);
+
+	private final boolean active;
+	private final String tokenType;
+	private final String patient;
+	private final String scope;
+	private final Set<String> scopeSet;
+	private final ScopePermissions permissions;
+	private final Long exp;
+
+	public IntrospectionResult(boolean active, String tokenType, String patient, String scope, Long exp) {
+		this.active = active;
+		this.tokenType = tokenType;
+		this.patient = patient;
+		this.exp = exp;
+
+		if (scope == null) {
+			this.scope = "";
+			this.scopeSet = Collections.emptySet();
+		} else {
+			this.scope = scope.trim().replaceAll("\\+", " ");
+			String[] scopeValues = this.scope.split(" ");
+			this.scopeSet = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(scopeValues)));
+		}
+
+		// Compile scopes once here. Results are cached and shared by requests.
+		this.permissions = ScopePermissions.compile(this.scopeSet);
+	}
+
+	public static IntrospectionResult fromJson(JSONObject jsonObject) {
+		boolean active = jsonObject.optBoolean("active", false);
+
+		String tokenType = null;
+		if (jsonObject.has("token_type") && !jsonObject.isNull("token_type"))
+			tokenType = jsonObject.getString("token_type");
+
+		String patient = null;
+		if (jsonObject.has("patient") && !jsonObject.isNull("patient"))
+			patient = jsonObject.getString("patient");
+
+		String scope = null;
+		if (jsonObject.has("scope") && !jsonObject.isNull("scope"))
+			scope = jsonObject.getString("scope");
+
+		Long exp = null;
+		if (jsonObject.has("exp") && !jsonObject.isNull("exp"))
+			exp = jsonObject.getLong("exp");
+
+		return new IntrospectionResult(active, tokenType, patient, scope, exp);
+	}
+
+	public boolean isActive() {
+		return active;
+	}
+
+	public String getTokenType() {
+		return tokenType;
+	}
+
+	public String getPatient() {
+		return patient;
+	}
+
+	public String getScope() {
+		return scope;
+	}
+
+	public Set<String> getScopeSet() {
+		return scopeSet;
+	}
+
+	public ScopePermissions getPermissions() {
+		return permissions;
+	}
+
+	/**
+	 * @return expiration in seconds since epoch, or null if the response had no exp.
+	 */
+	public Long getExp() {
+		return exp;
+	}
+
+	public boolean isAdmin() {
+		return scopeSet.contains("user/*.*");
+	}
+}
@@ -0,0 +1,252 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package edu.gatech.chai.omoponfhir.security;
+
+import java.math.BigInteger;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyFactory;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPublicKeySpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.spec.SecretKeySpec;
+import javax.xml.bind.DatatypeConverter;
+
+import org.apache.commons.codec.binary.Base64;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.JwsHeader;
+import io.jsonwebtoken.JwtException;
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.SignatureAlgorithm;
+import io.jsonwebtoken.SigningKeyResolverAdapter;
+
+/**
+ * Validates JWT access tokens issued by the SMART authorization server without
+ * calling introspect. Only tokens signed with the algorithm of the
+ * authorization server are accepted. HS256 tokens are verified with
+ * JWT_SECRET. RS256 and ES256 tokens are verified with the keys published at
+ * the JWKS URL, which are cached and refetched when an unknown kid shows up.
+ *
+ * Revoked tokens are not checked here. See {@link RevocationPoller}.
+ */
+public class LocalTokenValidator {
+	private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(LocalTokenValidator.class);
+
+	// Do not hammer JWKS endpoint when we see tokens with unknown kid.
+	private static final long MIN_JWKS_REFRESH_MILLIS = 30000L;
+
+	private final SignatureAlgorithm algorithm;
+	// Only for HS256.
+	private final Key hmacKey;
+	private final String jwksUrl;
+	private final IntrospectionClient httpClient;
+	private final long clockSkewSeconds;
+
+	private final Map<String, Key> publicKeys = new ConcurrentHashMap<String, Key>();
+	private volatile long lastJwksFetch = 0L;
+
+	public LocalTokenValidator(SignatureAlgorithm algorithm, String jwtSecret, String jwksUrl,
+			IntrospectionClient httpClient, long clockSkewSeconds) {
+		if (algorithm != SignatureAlgorithm.HS256 && algorithm != SignatureAlgorithm.RS256
+				&& algorithm != SignatureAlgorithm.ES256) {
+			throw new IllegalArgumentException("Unsupported JWT algorithm: " + algorithm);
+		}
+
+		this.algorithm = algorithm;
+		if (algorithm == SignatureAlgorithm.HS256) {
+			if (jwtSecret == null || jwtSecret.isEmpty()) {
+				throw new IllegalArgumentException("HS256 needs a JWT secret");
+			}
+			byte[] apiKeySecretBytes = DatatypeConverter.parseBase64Binary(jwtSecret);
+			this.hmacKey = new SecretKeySpec(apiKeySecretBytes, algorithm.getJcaName());
+		} else {
+			this.hmacKey = null;
+		}
+		this.jwksUrl = jwksUrl;
+		this.httpClient = httpClient;
+		this.clockSkewSeconds = clockSkewSeconds;
+	}
+
+	/**
+	 * Creates a validator if SMART_JWT_VALIDATION is True. Otherwise, returns null
+	 * and all tokens are introspected.
+	 *
+	 * The algorithm is SMART_JWT_SIGNING_ALG, as on the authorization server
+	 * (default HS256). HS256 needs JWT_SECRET to be set. There is no default
+	 * secret here, as anyone who knows it could sign access tokens.
+	 */
+	public static LocalTokenValidator fromEnvironment(IntrospectionClient httpClient) {
+		String enabled = System.getenv("SMART_JWT_VALIDATION");
+		if (enabled == null || !"True".equalsIgnoreCase(enabled.trim())) {
+			return null;
+		}
+
+		String algorithmEnv = System.getenv("SMART_JWT_SIGNING_ALG");
+		SignatureAlgorithm algorithm;
+		try {
+			algorithm = algorithmEnv == null || algorithmEnv.trim().isEmpty() ? SignatureAlgorithm.HS256
+					: SignatureAlgorithm.forName(algorithmEnv.trim().toUpperCase(Locale.ROOT));
+		} catch (JwtException e) {
+			logger.error("SMART_JWT_VALIDATION is ignored. Unsupported SMART_JWT_SIGNING_ALG: " + algorithmEnv);
+			return null;
+		}
+
+		String jwtSecret = System.getenv("JWT_SECRET");
+		if (algorithm == SignatureAlgorithm.HS256 && (jwtSecret == null || jwtSecret.isEmpty())) {
+			logger.error("SMART_JWT_VALIDATION is ignored. HS256 tokens can only be validated with JWT_SECRET set");
+			return null;
+		}
+		if (algorithm != SignatureAlgorithm.HS256 && algorithm != SignatureAlgorithm.RS256
+				&& algorithm != SignatureAlgorithm.ES256) {
+			logger.error("SMART_JWT_VALIDATION is ignored. Unsupported SMART_JWT_SIGNING_ALG: " + algorithmEnv);
+			return null;
+		}
+
+		String jwksUrl = System.getenv("SMART_JWKSURL");
+		if (jwksUrl == null || jwksUrl.isEmpty()) {
+			jwksUrl = "http://localhost:8080/smart/jwks";
+		}
+
+		logger.info("JWT access tokens are validated locally with " + algorithm.getValue());
+		return new LocalTokenValidator(algorithm, jwtSecret, jwksUrl, httpClient, 300L);
+	}
+
+	public static boolean isJwt(String token) {
+		int firstDot = token.indexOf('.');
+		return firstDot > 0 && token.indexOf('.', firstDot + 1) > firstDot;
+	}
+
+	/**
+	 * Verifies signature and exp of the token. Returns
+	 * {@link IntrospectionResult#INACTIVE} if the token is not valid.
+	 */
+	public IntrospectionResult validate(String token) {
+		Claims claims;
+		try {
+			claims = Jwts.parser().setAllowedClockSkewSeconds(clockSkewSeconds)
+					.setSigningKeyResolver(signingKeyResolver).parseClaimsJws(token).getBody();
+		} catch (JwtException | IllegalArgumentException e) {
+			logger.debug("Local JWT validation failed: " + e.getMessage());
+			return IntrospectionResult.INACTIVE;
+		}
+
+		String scope = claims.get("scope", String.class);
+		String patient = claims.get("patient", String.class);
+		String tokenType = claims.get("token_type", String.class);
+		if (tokenType == null) {
+			// Authorization codes are signed with the same secret. Only access tokens
+			// carry token_type.
+			logger.debug("JWT without token_type is not an access token");
+			return IntrospectionResult.INACTIVE;
+		}
+
+		Long exp = null;
+		if (claims.getExpiration() != null) {
+			exp = claims.getExpiration().getTime() / 1000L;
+		}
+
+		return new IntrospectionResult(true, tokenType, patient, scope, exp);
+	}
+
+	private final SigningKeyResolverAdapter signingKeyResolver = new SigningKeyResolverAdapter() {
+		// jjwt 0.9.1 declares this with a raw JwsHeader, so JwsHeader<?> would not
+		// override it.
+		@Override
+		@SuppressWarnings("rawtypes")
+		public Key resolveSigningKey(JwsHeader header, Claims claims) {
+			// Never let the token pick the algorithm. An HS256 token must not be
+			// checked against a secret when the server signs with a key pair.
+			if (!algorithm.getValue().equals(header.getAlgorithm())) {
+				throw new JwtException("Unexpected JWT algorithm: " + header.getAlgorithm());
+			}
+
+			if (algorithm == SignatureAlgorithm.HS256) {
+				return hmacKey;
+			}
+
+			String keyId = header.getKeyId();
+			Key key = keyId == null ? null : publicKeys.get(keyId);
+			if (key == null) {
+				refreshJwks();
+				key = keyId == null ? null : publicKeys.get(keyId);
+			}
+
+			if (key == null) {
+				throw new JwtException("No public key found for kid: " + keyId);
+			}
+
+			return key;
+		}
+	};
+
+	private synchronized void refreshJwks() {
+		long now = System.currentTimeMillis();
+		if (now - lastJwksFetch < MIN_JWKS_REFRESH_MILLIS) {
+			return;
+		}
+		lastJwksFetch = now;
+
+		String body = httpClient.get(jwksUrl);
+		if (body == null) {
+			return;
+		}
+
+		JSONArray keys = new JSONObject(body).optJSONArray("keys");
+		if (keys == null) {
+			return;
+		}
+
+		for (int i = 0; i < keys.length(); i++) {
+			JSONObject jwk = keys.getJSONObject(i);
+			try {
+				publicKeys.put(jwk.getString("kid"), toPublicKey(jwk));
+			} catch (GeneralSecurityException e) {
+				logger.error("Unable to read JWK " + jwk.optString("kid") + ": " + e.getMessage());
+			}
+		}
+		logger.debug(publicKeys.size() + " public keys cached from " + jwksUrl);
+	}
+
+	static Key toPublicKey(JSONObject jwk) throws GeneralSecurityException {
+		String kty = jwk.getString("kty");
+		if ("RSA".equals(kty)) {
+			BigInteger modulus = new BigInteger(1, Base64.decodeBase64(jwk.getString("n")));
+			BigInteger exponent = new BigInteger(1, Base64.decodeBase64(jwk.getString("e")));
+			return KeyFactory.getInstance("RSA").generatePublic(new RSAPublicKeySpec(modulus, exponent));
+		} else if ("EC".equals(kty)) {
+			AlgorithmParameters parameters = AlgorithmParameters.getInstance("EC");
+			parameters.init(new ECGenParameterSpec("secp256r1"));
+			ECParameterSpec ecParameters = parameters.getParameterSpec(ECParameterSpec.class);
+
+			BigInteger x = new BigInteger(1, Base64.decodeBase64(jwk.getString("x")));
+			BigInteger y = new BigInteger(1, Base64.decodeBase64(jwk.getString("y")));
+			return KeyFactory.getInstance("EC").generatePublic(new ECPublicKeySpec(new ECPoint(x, y), ecParameters));
+		}
+
+		throw new GeneralSecurityException("Unsupported key type: " + kty);
+	}
+}
@@ -27,6 +27,7 @@ import ca.uhn.fhir.rest.api.server.RequestDetails;
 //import ca.uhn.fhir.rest.method.RequestDetails;
 import ca.uhn.fhir.rest.server.exceptions.AuthenticationException;
 import ca.uhn.fhir.rest.server.exceptions.MethodNotAllowedException;
+import ca.uhn.fhir.rest.server.exceptions.UnclassifiedServerFailureException;
 import ca.uhn.fhir.rest.server.interceptor.InterceptorAdapter;
 import ca.uhn.fhir.rest.server.interceptor.IServerInterceptor.ActionRequestDetails;
 
@@ -46,6 +47,13 @@ public class OIDCInterceptor extends InterceptorAdapter {
 
 	private static String authKeyName = "smartOnFhirAuth";
 
+	// Checked before any token work so that a client stuck in a retry loop
+	// cannot keep the authorization server and database busy. Off unless
+	// FHIR_RATE_LIMIT_PER_SEC is set. Requests are counted per bearer token, so
+	// users behind one proxy do not share a bucket. Only requests without a
+	// token are counted per remote address.
+	private RateLimiter rateLimiter;
+
 	public OIDCInterceptor() {
 		String url = System.getenv("SMART_INTROSPECTURL");
 		if (url != null && !url.isEmpty()) {
@@ -75,6 +83,20 @@ public class OIDCInterceptor extends InterceptorAdapter {
 		} else {
 			setAuthBearer("12345");
 		}
+
+		rateLimiter = RateLimiter.fromEnvironment("fhir", "FHIR_RATE_LIMIT", 0.0, 100.0);
+	}
+
+	private static String rateLimitKey(HttpServletRequest theRequest) {
+		String authHeader = theRequest.getHeader("Authorization");
+		if (authHeader != null && authHeader.regionMatches(true, 0, "Bearer ", 0, 7)) {
+			String token = authHeader.substring(7).trim();
+			if (!token.isEmpty()) {
+				return "token:" + IntrospectionCache.hashToken(token);
+			}
+		}
+
+		return "addr:" + theRequest.getRemoteAddr();
 	}
 
 	@Override
@@ -82,6 +104,16 @@ public class OIDCInterceptor extends InterceptorAdapter {
 			HttpServletResponse theResponse) throws AuthenticationException {
 
 		ourLog.debug("[OAuth] Request from " + theRequest.getRemoteAddr());
+		if (rateLimiter != null) {
+			String clientKey = rateLimitKey(theRequest);
+			if (!rateLimiter.tryAcquire(clientKey)) {
+				UnclassifiedServerFailureException ex = new UnclassifiedServerFailureException(429,
+						"Too Many Requests");
+				ex.addResponseHeader("Retry-After", String.valueOf(rateLimiter.getRetryAfterSeconds(clientKey)));
+				throw ex;
+			}
+		}
+
 		if (readOnly.equalsIgnoreCase("True")) {
 			if (!theRequest.getMethod().equalsIgnoreCase("GET")) {
 				RequestTypeEnum[] allowedMethod = new RequestTypeEnum[] { RequestTypeEnum.GET };
@@ -270,6 +302,22 @@ public class OIDCInterceptor extends InterceptorAdapter {
 		this.authBearer = authBearer;
 	}
 
+	/**
+	 * Introspect tokens in-process instead of calling the introspect URL. Used
+	 * when SMART authorization server is deployed in the same WAR.
+	 */
+	public void setTokenIntrospector(TokenIntrospector tokenIntrospector) {
+		Authorization.setTokenIntrospector(tokenIntrospector);
+	}
+
+	public RateLimiter getRateLimiter() {
+		return rateLimiter;
+	}
+
+	public void setRateLimiter(RateLimiter rateLimiter) {
+		this.rateLimiter = rateLimiter;
+	}
+
 	public String getIntrospectUrl() {
 		return introspectUrl;
 	}
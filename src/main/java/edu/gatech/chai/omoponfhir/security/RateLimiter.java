@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package edu.gatech.chai.omoponfhir.security;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+
+/**
+ * Per key (eg. remote address) request limiter. Each key gets its own
+ * {@link TokenBucket}. Buckets of keys that went quiet are dropped.
+ */
+public class RateLimiter {
+	private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(RateLimiter.class);
+
+	private final String name;
+	private final LoadingCache<String, TokenBucket> buckets;
+	private final AtomicLong rejectedCount = new AtomicLong(0L);
+
+	public RateLimiter(String name, double permitsPerSecond, double burst) {
+		this.name = name;
+		buckets = Caffeine.newBuilder().maximumSize(100000L).expireAfterAccess(10L, TimeUnit.MINUTES)
+				.build(key -> new TokenBucket(burst, permitsPerSecond));
+
+		logger.info("Rate limiter " + name + " allows " + permitsPerSecond + "/s with burst of " + burst);
+	}
+
+	/**
+	 * Creates a limiter from &lt;prefix&gt;_PER_SEC and &lt;prefix&gt;_BURST
+	 * environment variables. Returns null if the rate is 0, which disables
+	 * limiting. A default burst of 0 means twice the rate, for limiters that are
+	 * off unless the rate is set.
+	 */
+	public static RateLimiter fromEnvironment(String name, String envPrefix, double defaultPerSecond,
+			double defaultBurst) {
+		double permitsPerSecond = getEnvDouble(envPrefix + "_PER_SEC", defaultPerSecond);
+		if (permitsPerSecond <= 0) {
+			logger.info("Rate limiter " + name + " is disabled");
+			return null;
+		}
+
+		double burst = getEnvDouble(envPrefix + "_BURST", defaultBurst > 0 ? defaultBurst : permitsPerSecond * 2);
+		return new RateLimiter(name, permitsPerSecond, Math.max(1.0, burst));
+	}
+
+	private static double getEnvDouble(String name, double defaultValue) {
+		String value = System.getenv(name);
+		if (value != null && !value.trim().isEmpty()) {
+			return Double.parseDouble(value.trim());
+		}
+
+		return defaultValue;
+	}
+
+	public boolean tryAcquire(String key) {
+		if (buckets.get(key).tryAcquire()) {
+			return true;
+		}
+
+		rejectedCount.incrementAndGet();
+		logger.debug("Rate limiter " + name + " rejected request from " + key);
+		return false;
+	}
+
+	/**
+	 * @return seconds the key should wait before retrying. At least 1.
+	 */
+	public long getRetryAfterSeconds(String key) {
+		long waitMillis = buckets.get(key).getWaitMillis();
+		return Math.max(1L, (waitMillis + 999L) / 1000L);
+	}
+
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	public long getTrackedKeyCount() {
+		return buckets.estimatedSize();
+	}
+}
@@ -0,0 +1,133 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package edu.gatech.chai.omoponfhir.security;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+
+import org.apache.commons.codec.binary.Base64;
+import org.json.JSONObject;
+
+/**
+ * Bloom filter of revoked token hashes (SHA-256 hex, see
+ * {@link IntrospectionCache#hashToken(String)}). The authorization server
+ * builds it from its revocation list and resource servers poll it. A token
+ * that is not in the filter is definitely not revoked. A token that is may be
+ * a false positive and has to be checked with the authorization server.
+ *
+ * Immutable. A new filter with a higher version is built when the list
+ * changes.
+ */
+public final class RevocationFilter {
+	public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+
+	// Keep empty and small filters from being degenerate.
+	private static final int MIN_EXPECTED_INSERTIONS = 64;
+
+	private final long version;
+	private final int count;
+	private final int numHashes;
+	private final long[] bits;
+	private final long numBits;
+
+	private RevocationFilter(long version, int count, int numHashes, long[] bits) {
+		this.version = version;
+		this.count = count;
+		this.numHashes = numHashes;
+		this.bits = bits;
+		this.numBits = (long) bits.length * 64L;
+	}
+
+	public static RevocationFilter create(long version, Collection<String> tokenHashes, double falsePositiveRate) {
+		int expected = Math.max(tokenHashes.size(), MIN_EXPECTED_INSERTIONS);
+		long numBits = (long) Math.ceil(-expected * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+		int numHashes = Math.max(1, (int) Math.round((double) numBits / expected * Math.log(2)));
+
+		RevocationFilter filter = new RevocationFilter(version, tokenHashes.size(), numHashes,
+				new long[(int) ((numBits + 63) / 64)]);
+		for (String tokenHash : tokenHashes) {
+			filter.put(tokenHash);
+		}
+
+		return filter;
+	}
+
+	private void put(String tokenHash) {
+		long h1 = hash1(tokenHash);
+		long h2 = hash2(tokenHash);
+		for (int i = 0; i < numHashes; i++) {
+			long bit = Math.floorMod(h1 + i * h2, numBits);
+			bits[(int) (bit >>> 6)] |= 1L << bit;
+		}
+	}
+
+	public boolean mightContain(String tokenHash) {
+		if (count == 0) {
+			return false;
+		}
+
+		long h1 = hash1(tokenHash);
+		long h2 = hash2(tokenHash);
+		for (int i = 0; i < numHashes; i++) {
+			long bit = Math.floorMod(h1 + i * h2, numBits);
+			if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	// The input is already a SHA-256 hash. Its first two 64 bit words serve as
+	// the two hashes of double hashing.
+	private static long hash1(String tokenHash) {
+		return Long.parseUnsignedLong(tokenHash.substring(0, 16), 16);
+	}
+
+	private static long hash2(String tokenHash) {
+		return Long.parseUnsignedLong(tokenHash.substring(16, 32), 16) | 1L;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public JSONObject toJson() {
+		ByteBuffer buffer = ByteBuffer.allocate(bits.length * 8);
+		buffer.asLongBuffer().put(bits);
+
+		JSONObject json = new JSONObject();
+		json.put("version", version);
+		json.put("count", count);
+		json.put("hashes", numHashes);
+		json.put("bits", Base64.encodeBase64String(buffer.array()));
+
+		return json;
+	}
+
+	public static RevocationFilter fromJson(JSONObject json) {
+		byte[] bytes = Base64.decodeBase64(json.getString("bits"));
+		long[] bits = new long[bytes.length / 8];
+		ByteBuffer.wrap(bytes).asLongBuffer().get(bits);
+
+		return new RevocationFilter(json.getLong("version"), json.getInt("count"), json.getInt("hashes"), bits);
+	}
+}
@@ -0,0 +1,172 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package edu.gatech.chai.omoponfhir.security;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+/**
+ * Keeps the revocation filter of the authorization server and refreshes it
+ * in the background. The poll sends the version we have, and the server
+ * answers with no content if it did not change.
+ *
+ * Tokens that hit the filter are checked with the authorization server once,
+ * and the answer is remembered for that version of the filter.
+ */
+public class RevocationPoller {
+	private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(RevocationPoller.class);
+
+	private final IntrospectionClient httpClient;
+	private final String filterUrl;
+
+	private volatile RevocationFilter filter = null;
+
+	// token hash -> answer of the authorization server, for tokens that hit the filter.
+	private final Cache<String, Confirmation> confirmed = Caffeine.newBuilder().maximumSize(10000L).build();
+
+	private static final class Confirmation {
+		final long version;
+		final boolean revoked;
+
+		Confirmation(long version, boolean revoked) {
+			this.version = version;
+			this.revoked = revoked;
+		}
+	}
+
+	private ScheduledExecutorService scheduler;
+
+	public RevocationPoller(IntrospectionClient httpClient, String filterUrl) {
+		this.httpClient = httpClient;
+		this.filterUrl = filterUrl;
+	}
+
+	/**
+	 * Creates a poller if SMART_REVOCATION_FILTER_URL is set, or if JWT access
+	 * tokens are validated locally (SMART_JWT_VALIDATION=True) as those cannot
+	 * be revoked any other way. Otherwise, returns null.
+	 */
+	public static RevocationPoller fromEnvironment(IntrospectionClient httpClient) {
+		String filterUrl = System.getenv("SMART_REVOCATION_FILTER_URL");
+		if (filterUrl == null || filterUrl.isEmpty()) {
+			String jwtValidation = System.getenv("SMART_JWT_VALIDATION");
+			if (jwtValidation == null || !"True".equalsIgnoreCase(jwtValidation.trim())) {
+				return null;
+			}
+			filterUrl = "http://localhost:8080/smart/revoked/filter";
+		}
+
+		long refreshSeconds = 30L;
+		String refreshEnv = System.getenv("SMART_REVOCATION_REFRESH_SEC");
+		if (refreshEnv != null && !refreshEnv.isEmpty()) {
+			refreshSeconds = Long.parseLong(refreshEnv.trim());
+		}
+
+		RevocationPoller poller = new RevocationPoller(httpClient, filterUrl);
+		poller.start(refreshSeconds);
+
+		return poller;
+	}
+
+	public void start(long refreshSeconds) {
+		scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "smart-revocation-refresh");
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler.scheduleWithFixedDelay(this::refresh, 0L, refreshSeconds, TimeUnit.SECONDS);
+	}
+
+	public void stop() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+		}
+	}
+
+	void refresh() {
+		try {
+			RevocationFilter current = filter;
+			String url = filterUrl;
+			if (current != null) {
+				url = filterUrl + (filterUrl.contains("?") ? "&" : "?") + "version=" + current.getVersion();
+			}
+
+			String body = httpClient.get(url);
+			if (body == null) {
+				// Not changed, or the server is not reachable. Keep the filter we have.
+				return;
+			}
+
+			RevocationFilter updated = RevocationFilter.fromJson(new JSONObject(body));
+			filter = updated;
+			confirmed.invalidateAll();
+			logger.debug("Revocation filter version " + updated.getVersion() + " with " + updated.getCount()
+					+ " tokens");
+		} catch (RuntimeException e) {
+			// Never let the scheduled task die.
+			logger.error("Revocation filter refresh failed: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return false if the token is definitely not revoked.
+	 */
+	public boolean mightBeRevoked(String tokenHash) {
+		RevocationFilter current = filter;
+		return current != null && current.mightContain(tokenHash);
+	}
+
+	/**
+	 * @return version of the current filter, or -1 if there is none yet.
+	 */
+	public long getVersion() {
+		RevocationFilter current = filter;
+		return current == null ? -1L : current.getVersion();
+	}
+
+	/**
+	 * @return whether the authorization server said the token is revoked, or
+	 *         null if we have not asked since the filter changed.
+	 */
+	public Boolean getConfirmed(String tokenHash) {
+		Confirmation confirmation = confirmed.getIfPresent(tokenHash);
+		if (confirmation == null || confirmation.version != getVersion()) {
+			return null;
+		}
+
+		return confirmation.revoked;
+	}
+
+	/**
+	 * Remembers the answer of the authorization server. version is the filter
+	 * version read before asking, so an answer that crossed a filter update is
+	 * not used.
+	 */
+	public void confirm(String tokenHash, long version, boolean revoked) {
+		confirmed.put(tokenHash, new Confirmation(version, revoked));
+	}
+
+	public RevocationFilter getFilter() {
+		return filter;
+	}
+}
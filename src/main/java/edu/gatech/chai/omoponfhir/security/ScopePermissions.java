@@ -0,0 +1,134 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package edu.gatech.chai.omoponfhir.security;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.hl7.fhir.dstu3.model.ResourceType;
+
+/**
+ * SMART resource scopes (eg. patient/Observation.read, user/*.*) compiled into
+ * permission bits per resource type. This is built once when a token is
+ * introspected, so checking a request is a map lookup and a bit test.
+ *
+ * Scopes may spell the resource type in any case. They are keyed by the FHIR
+ * name of the type (Observation), which is how the request names it.
+ */
+public final class ScopePermissions {
+	public static final int USER_READ = 1;
+	public static final int USER_WRITE = 2;
+	public static final int PATIENT_READ = 4;
+	public static final int PATIENT_WRITE = 8;
+
+	private static final Pattern SCOPE_PATTERN = Pattern
+			.compile("(user|patient)/([a-zA-Z*]+)\\.(read|write|\\*)");
+
+	public static final ScopePermissions NONE = new ScopePermissions(0,
+			Collections.<String, Integer>emptyMap());
+
+	// Lower-cased resource type name to its FHIR name.
+	private static final Map<String, String> RESOURCE_TYPE_NAMES = new HashMap<String, String>();
+
+	static {
+		for (ResourceType resourceType : ResourceType.values()) {
+			RESOURCE_TYPE_NAMES.put(resourceType.name().toLowerCase(Locale.ROOT), resourceType.name());
+		}
+	}
+
+	// Bits granted to all resources by */ scopes.
+	private final int wildcardBits;
+
+	// FHIR resource type name to bits.
+	private final Map<String, Integer> resourceBits;
+
+	private ScopePermissions(int wildcardBits, Map<String, Integer> resourceBits) {
+		this.wildcardBits = wildcardBits;
+		this.resourceBits = resourceBits;
+	}
+
+	public static ScopePermissions compile(Set<String> scopes) {
+		int wildcardBits = 0;
+		Map<String, Integer> resourceBits = new HashMap<String, Integer>();
+
+		for (String scope : scopes) {
+			// Only <patient or user>/<resource>.<access> are resource level scopes.
+			Matcher matcher = SCOPE_PATTERN.matcher(scope);
+			if (matcher.matches() == false)
+				continue;
+
+			boolean patientScope = "patient".equals(matcher.group(1));
+			String resource = matcher.group(2);
+			String access = matcher.group(3).toLowerCase(Locale.ROOT);
+
+			int bits = 0;
+			if ("read".equals(access) || "*".equals(access))
+				bits |= patientScope ? PATIENT_READ : USER_READ;
+			if ("write".equals(access) || "*".equals(access))
+				bits |= patientScope ? PATIENT_WRITE : USER_WRITE;
+
+			if ("*".equals(resource)) {
+				wildcardBits |= bits;
+			} else {
+				String resourceType = RESOURCE_TYPE_NAMES.get(resource.toLowerCase(Locale.ROOT));
+				if (resourceType == null) {
+					// Not a DSTU3 resource type. Kept as written.
+					resourceType = resource;
+				}
+				Integer current = resourceBits.get(resourceType);
+				resourceBits.put(resourceType, current == null ? bits : current | bits);
+			}
+		}
+
+		if (wildcardBits == 0 && resourceBits.isEmpty()) {
+			return NONE;
+		}
+
+		return new ScopePermissions(wildcardBits, Collections.unmodifiableMap(resourceBits));
+	}
+
+	/**
+	 * @param resourceName FHIR name of the resource type, eg. Observation
+	 * @return permission bits granted for the resource type, including wildcard
+	 *         scopes.
+	 */
+	public int bitsFor(String resourceName) {
+		if (resourceName == null) {
+			return wildcardBits;
+		}
+
+		if (resourceBits.isEmpty()) {
+			return wildcardBits;
+		}
+
+		Integer bits = resourceBits.get(resourceName);
+		return bits == null ? wildcardBits : wildcardBits | bits;
+	}
+
+	public boolean allowsUser(String resourceName, boolean write) {
+		return (bitsFor(resourceName) & (write ? USER_WRITE : USER_READ)) != 0;
+	}
+
+	public boolean allowsPatient(String resourceName, boolean write) {
+		return (bitsFor(resourceName) & (write ? PATIENT_WRITE : PATIENT_READ)) != 0;
+	}
+}
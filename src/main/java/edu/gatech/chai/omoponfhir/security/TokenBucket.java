@@ -0,0 +1,63 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package edu.gatech.chai.omoponfhir.security;
+
+/**
+ * Token bucket. Holds up to capacity permits and refills at permitsPerSecond.
+ */
+public class TokenBucket {
+	private final double capacity;
+	private final double permitsPerNano;
+
+	private double permits;
+	private long lastRefill;
+
+	public TokenBucket(double capacity, double permitsPerSecond) {
+		this.capacity = capacity;
+		this.permitsPerNano = permitsPerSecond / 1000000000.0;
+		this.permits = capacity;
+		this.lastRefill = System.nanoTime();
+	}
+
+	public synchronized boolean tryAcquire() {
+		refill();
+		if (permits >= 1.0) {
+			permits -= 1.0;
+			return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * @return milliseconds until the next permit is available.
+	 */
+	public synchronized long getWaitMillis() {
+		refill();
+		if (permits >= 1.0) {
+			return 0L;
+		}
+
+		return (long) Math.ceil((1.0 - permits) / permitsPerNano / 1000000.0);
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		permits = Math.min(capacity, permits + (now - lastRefill) * permitsPerNano);
+		lastRefill = now;
+	}
+}
@@ -0,0 +1,30 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package edu.gatech.chai.omoponfhir.security;
+
+/**
+ * In-JVM source of introspection results. When set on {@link Authorization},
+ * tokens are introspected through this instead of the introspect URL.
+ */
+public interface TokenIntrospector {
+	/**
+	 * @return introspection result for the token,
+	 *         {@link IntrospectionResult#INACTIVE} if the token is not active,
+	 *         or null if the token could not be looked up.
+	 */
+	public IntrospectionResult introspect(String token);
+}
@@ -0,0 +1,226 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.servlet;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.dstu3.model.Bundle.BundleLinkComponent;
+import org.hl7.fhir.dstu3.model.Bundle.SearchEntryMode;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.SummaryEnum;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.api.server.ResponseDetails;
+import ca.uhn.fhir.rest.server.IPagingProvider;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import ca.uhn.fhir.rest.server.RestfulServerUtils;
+import ca.uhn.fhir.rest.server.exceptions.AuthenticationException;
+import ca.uhn.fhir.rest.server.interceptor.InterceptorAdapter;
+import ca.uhn.fhir.util.UrlUtil;
+
+/**
+ * Streams search results as NDJSON, one compact JSON resource per line, when
+ * the client asks with _format=ndjson or Accept: application/fhir+ndjson.
+ *
+ * The first page goes out as soon as the search returns. The rest of the
+ * result is taken from the paging provider FHIR_NDJSON_FETCH_SIZE resources
+ * at a time (default 500), and each chunk is flushed, so the response uses
+ * chunked transfer encoding and memory stays bounded by the chunk. With
+ * _count, only the page that the Bundle would have held is written, so a
+ * client can still take a result a page at a time. _summary and _elements
+ * apply to each resource as they do to Bundle entries. _summary=count is
+ * answered with one line, the Bundle with its total.
+ *
+ * Register before ResponseHighlighterInterceptor, which would otherwise
+ * render the Bundle for browsers.
+ */
+public class NdjsonStreamingInterceptor extends InterceptorAdapter {
+	private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(NdjsonStreamingInterceptor.class);
+
+	public static final String CT_FHIR_NDJSON = "application/fhir+ndjson";
+	private static final String[] NDJSON_FORMATS = { "ndjson", CT_FHIR_NDJSON, "application/ndjson" };
+
+	private final RestfulServer server;
+	private final int fetchSize;
+
+	public NdjsonStreamingInterceptor(RestfulServer server, int fetchSize) {
+		this.server = server;
+		this.fetchSize = fetchSize;
+	}
+
+	public static NdjsonStreamingInterceptor fromEnvironment(RestfulServer server) {
+		int fetchSize = 500;
+		String fetchSizeEnv = System.getenv("FHIR_NDJSON_FETCH_SIZE");
+		if (fetchSizeEnv != null && !fetchSizeEnv.isEmpty()) {
+			fetchSize = Integer.parseInt(fetchSizeEnv.trim());
+		}
+
+		return new NdjsonStreamingInterceptor(server, fetchSize);
+	}
+
+	private static boolean isNdjsonRequested(RequestDetails theRequestDetails) {
+		Map<String, String[]> parameters = theRequestDetails.getParameters();
+		String[] formats = parameters == null ? null : parameters.get(Constants.PARAM_FORMAT);
+		if (formats != null && formats.length > 0) {
+			return isNdjsonFormat(formats[0]);
+		}
+
+		String accept = theRequestDetails.getHeader(Constants.HEADER_ACCEPT);
+		if (accept != null) {
+			for (String type : accept.split(",")) {
+				int params = type.indexOf(';');
+				if (isNdjsonFormat(params < 0 ? type : type.substring(0, params))) {
+					return true;
+				}
+			}
+		}
+
+		return false;
+	}
+
+	private static boolean isNdjsonFormat(String format) {
+		String trimmed = format.trim();
+		for (String ndjsonFormat : NDJSON_FORMATS) {
+			if (ndjsonFormat.equalsIgnoreCase(trimmed)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	@Override
+	public boolean outgoingResponse(RequestDetails theRequestDetails, ResponseDetails theResponseDetails,
+			HttpServletRequest theServletRequest, HttpServletResponse theServletResponse)
+			throws AuthenticationException {
+		RestOperationTypeEnum operation = theRequestDetails.getRestOperationType();
+		if (operation != RestOperationTypeEnum.SEARCH_TYPE && operation != RestOperationTypeEnum.SEARCH_SYSTEM
+				&& operation != RestOperationTypeEnum.GET_PAGE) {
+			return true;
+		}
+
+		if (!(theResponseDetails.getResponseResource() instanceof Bundle) || !isNdjsonRequested(theRequestDetails)) {
+			return true;
+		}
+
+		Bundle bundle = (Bundle) theResponseDetails.getResponseResource();
+		FhirContext fhirContext = server.getFhirContext();
+		IParser parser = fhirContext.newJsonParser();
+		// _summary and _elements, as for any other response. Each resource is
+		// encoded on its own here, not as a child of the Bundle. One a line.
+		RestfulServerUtils.configureResponseParser(theRequestDetails, parser);
+		parser.setEncodeElementsAppliesToChildResourcesOnly(false);
+		parser.setPrettyPrint(false);
+
+		theServletResponse.setStatus(theResponseDetails.getResponseCode());
+		theServletResponse.setContentType(CT_FHIR_NDJSON);
+		theServletResponse.setCharacterEncoding("UTF-8");
+
+		try {
+			Writer writer = new OutputStreamWriter(theServletResponse.getOutputStream(), StandardCharsets.UTF_8);
+			if (RestfulServerUtils.determineSummaryMode(theRequestDetails).contains(SummaryEnum.COUNT)) {
+				// Only a total, so the line is the Bundle with its total.
+				write(parser, writer, bundle);
+				writer.flush();
+				return false;
+			}
+
+			for (BundleEntryComponent entry : bundle.getEntry()) {
+				if (entry.getResource() == null
+						|| (entry.hasSearch() && entry.getSearch().getMode() == SearchEntryMode.OUTCOME)) {
+					continue;
+				}
+				write(parser, writer, entry.getResource());
+			}
+			writer.flush();
+
+			if (RestfulServerUtils.extractCountParameter(theRequestDetails) == null) {
+				streamRemaining(bundle, parser, writer);
+				writer.flush();
+			}
+		} catch (IOException e) {
+			// The client went away. The status is already sent.
+			logger.debug("NDJSON stream ended early: " + e.getMessage());
+		} catch (RuntimeException e) {
+			logger.error("NDJSON stream failed after the response started: " + e.getMessage());
+		}
+
+		return false;
+	}
+
+	/**
+	 * Writes the resources after the first page, from the result the paging
+	 * provider kept for the next link, to the end of the result.
+	 */
+	private void streamRemaining(Bundle bundle, IParser parser, Writer writer) throws IOException {
+		BundleLinkComponent next = bundle.getLink(Bundle.LINK_NEXT);
+		IPagingProvider pagingProvider = server.getPagingProvider();
+		if (next == null || !next.hasUrl() || pagingProvider == null) {
+			return;
+		}
+
+		String url = next.getUrl();
+		int query = url.indexOf('?');
+		if (query < 0) {
+			return;
+		}
+
+		Map<String, String[]> parameters = UrlUtil.parseQueryString(url.substring(query + 1));
+		String[] searchIds = parameters.get(Constants.PARAM_PAGINGACTION);
+		String[] offsets = parameters.get(Constants.PARAM_PAGINGOFFSET);
+		if (searchIds == null || searchIds.length == 0) {
+			return;
+		}
+
+		IBundleProvider result = pagingProvider.retrieveResultList(searchIds[0]);
+		if (result == null || result.size() == null) {
+			logger.warn("Search " + searchIds[0] + " is gone. NDJSON stream ends after the first page");
+			return;
+		}
+
+		int size = result.size();
+		int from = offsets == null || offsets.length == 0 ? 0 : Integer.parseInt(offsets[0]);
+		while (from < size) {
+			int to = Math.min(from + fetchSize, size);
+			List<IBaseResource> resources = result.getResources(from, to);
+			for (IBaseResource resource : resources) {
+				write(parser, writer, resource);
+			}
+			writer.flush();
+			from = to;
+		}
+	}
+
+	private static void write(IParser parser, Writer writer, IBaseResource resource) throws IOException {
+		parser.encodeResourceToWriter(resource, writer);
+		writer.write('\n');
+	}
+}
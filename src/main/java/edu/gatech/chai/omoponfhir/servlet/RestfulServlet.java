@@ -17,18 +17,23 @@ package edu.gatech.chai.omoponfhir.servlet;
 
 import java.util.*;
 
+import javax.sql.DataSource;
+
+import edu.gatech.chai.omoponfhir.paging.CaffeinePagingProvider;
+import edu.gatech.chai.omoponfhir.paging.ResourceReader;
 import edu.gatech.chai.omoponfhir.security.OIDCInterceptor;
+import edu.gatech.chai.omoponfhir.smart.service.SmartIntrospectionService;
 import edu.gatech.chai.omoponfhir.omopv5.stu3.provider.*;
 import edu.gatech.chai.omoponfhir.stu3.security.SMARTonFHIRConformanceStatement;
 
 import org.springframework.web.context.WebApplicationContext;
+import org.springframework.web.context.support.WebApplicationContextUtils;
 import org.springframework.web.cors.CorsConfiguration;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.narrative.DefaultThymeleafNarrativeGenerator;
 import ca.uhn.fhir.narrative.INarrativeGenerator;
 import ca.uhn.fhir.rest.api.EncodingEnum;
-import ca.uhn.fhir.rest.server.FifoMemoryPagingProvider;
 import ca.uhn.fhir.rest.server.HardcodedServerAddressStrategy;
 import ca.uhn.fhir.rest.server.IResourceProvider;
 import ca.uhn.fhir.rest.server.IServerAddressStrategy;
@@ -43,6 +48,7 @@ public class RestfulServlet extends RestfulServer {
 
 	private static final long serialVersionUID = 1L;
 	private WebApplicationContext myAppCtx;
+	private CaffeinePagingProvider pagingProvider;
 
 	/**
 	 * Constructor
@@ -157,12 +163,16 @@ public class RestfulServlet extends RestfulServer {
 		setServerConformanceProvider(capbilityProvider);
 
 		/*
-		 * Add page provider. Use memory based on for now.
+		 * Add page provider. Search results are kept in memory, bounded by size and
+		 * time since last used, and shared with other nodes if FHIR_PAGING_STORE is set.
 		 */
-		FifoMemoryPagingProvider pp = new FifoMemoryPagingProvider(5);
-		pp.setDefaultPageSize(50);
-		pp.setMaximumPageSize(100000);
-		setPagingProvider(pp);
+		myAppCtx = WebApplicationContextUtils.getWebApplicationContext(getServletContext());
+		DataSource dataSource = myAppCtx == null ? null : myAppCtx.getBean("dataSource", DataSource.class);
+		pagingProvider = CaffeinePagingProvider.fromEnvironment(new ResourceReader(getFhirContext(), providers),
+				dataSource);
+		pagingProvider.setDefaultPageSize(50);
+		pagingProvider.setMaximumPageSize(100000);
+		setPagingProvider(pagingProvider);
 
 		/*
 		 * Use a narrative generator. This is a completely optional step, but can be
@@ -192,6 +202,12 @@ public class RestfulServlet extends RestfulServer {
 		CorsInterceptor corsInterceptor = new CorsInterceptor(config);
 		registerInterceptor(corsInterceptor);
 
+		/*
+		 * Stream search results as NDJSON if the client asks for it. This has to come
+		 * before the response highlighter.
+		 */
+		registerInterceptor(NdjsonStreamingInterceptor.fromEnvironment(this));
+
 		/*
 		 * This server interceptor causes the server to return nicely formatter and
 		 * coloured responses instead of plain JSON/XML if the request is coming from a
@@ -231,6 +247,16 @@ public class RestfulServlet extends RestfulServer {
 ////		oIDCInterceptor.setLocalByPass(local_bypass);
 //		oIDCInterceptor.setReadOnly(read_only);
 
+		// SMART authorization server is in the same WAR (/smart/*). If asked, skip HTTP
+		// and introspect tokens with the session store directly.
+		String localIntrospect = System.getenv("SMART_INTROSPECT_LOCAL");
+		if (localIntrospect != null && "True".equalsIgnoreCase(localIntrospect.trim())) {
+			myAppCtx = WebApplicationContextUtils.getWebApplicationContext(getServletContext());
+			if (myAppCtx != null) {
+				oIDCInterceptor.setTokenIntrospector(myAppCtx.getBean(SmartIntrospectionService.class));
+			}
+		}
+
 		registerInterceptor(oIDCInterceptor);
 
 		/*
@@ -245,4 +271,12 @@ public class RestfulServlet extends RestfulServer {
 
 	}
 
+	@Override
+	public void destroy() {
+		if (pagingProvider != null) {
+			pagingProvider.close();
+		}
+		super.destroy();
+	}
+
 }
@@ -1,7 +1,6 @@
 package edu.gatech.chai.omoponfhir.smart.dao;
 
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.SQLException;
 
 import org.slf4j.Logger;
@@ -11,17 +10,12 @@ public class BaseSmartOnFhir {
 	final static Logger logger = LoggerFactory.getLogger(BaseSmartOnFhir.class);
 	
 	public Connection connect() {
-		String url = "jdbc:sqlite::resource:smartonfhir.db";
+		// Connections come from the pool. Closing them returns them to the pool.
 		Connection conn = null;
 		try {
-			Class.forName("org.sqlite.JDBC");
-			conn = DriverManager.getConnection(url);
-			logger.debug("Connected to database");
+			conn = SmartOnFhirDataSource.getConnection();
 		} catch (SQLException e) {
-			logger.debug(e.getMessage());
-			e.printStackTrace();
-		} catch (ClassNotFoundException e) {
-			logger.debug(e.getMessage());
+			logger.error(e.getMessage());
 			e.printStackTrace();
 		}
 
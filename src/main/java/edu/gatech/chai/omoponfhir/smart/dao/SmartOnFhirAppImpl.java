@@ -5,15 +5,55 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.Calendar;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
+import org.springframework.beans.factory.InitializingBean;
 import org.springframework.stereotype.Component;
 
 import edu.gatech.chai.omoponfhir.smart.model.SmartOnFhirAppEntry;
 
+/**
+ * SMART app registry. Apps are read from SQLite into memory at startup and
+ * reloaded after every save, update and delete. Lookups never go to the
+ * database. Callers get copies, so changing a returned entry does not change
+ * the registry until update() is called.
+ */
 @Component
-public class SmartOnFhirAppImpl extends BaseSmartOnFhir implements SmartOnFhirApp {
+public class SmartOnFhirAppImpl extends BaseSmartOnFhir implements SmartOnFhirApp, InitializingBean {
+
+	// Replaced as a whole on reload. Never modified in place.
+	private volatile Map<String, SmartOnFhirAppEntry> registry = null;
+
+	@Override
+	public void afterPropertiesSet() {
+		reload();
+	}
+
+	private Map<String, SmartOnFhirAppEntry> getRegistry() {
+		Map<String, SmartOnFhirAppEntry> apps = registry;
+		if (apps == null) {
+			apps = reload();
+		}
+
+		return apps;
+	}
+
+	/**
+	 * Reads all apps from the database and replaces the registry.
+	 */
+	public synchronized Map<String, SmartOnFhirAppEntry> reload() {
+		Map<String, SmartOnFhirAppEntry> apps = new LinkedHashMap<String, SmartOnFhirAppEntry>();
+		for (SmartOnFhirAppEntry appEntry : selectAll()) {
+			apps.put(appEntry.getAppId(), appEntry);
+		}
+
+		registry = Collections.unmodifiableMap(apps);
+		logger.info(apps.size() + " app entries loaded to the registry");
+		return registry;
+	}
 
 	@Override
 	public int save(SmartOnFhirAppEntry appEntry) {
@@ -34,6 +74,7 @@ public class SmartOnFhirAppImpl extends BaseSmartOnFhir implements SmartOnFhirAp
 			logger.error(e.getMessage());
 			e.printStackTrace();
 		}
+		reload();
 
 		return 0;
 	}
@@ -54,6 +95,7 @@ public class SmartOnFhirAppImpl extends BaseSmartOnFhir implements SmartOnFhirAp
 		} catch (SQLException e) {
 			logger.error(e.getMessage());
 		}
+		reload();
 	}
 
 	@Override
@@ -67,6 +109,7 @@ public class SmartOnFhirAppImpl extends BaseSmartOnFhir implements SmartOnFhirAp
 		} catch (SQLException e) {
 			logger.error(e.getMessage());
 		}
+		reload();
 	}
 
 	private SmartOnFhirAppEntry createAppEntry(ResultSet rs) throws SQLException {
@@ -81,8 +124,7 @@ public class SmartOnFhirAppImpl extends BaseSmartOnFhir implements SmartOnFhirAp
 		return appEntry;
 	}
 	
-	@Override
-	public List<SmartOnFhirAppEntry> get() {
+	private List<SmartOnFhirAppEntry> selectAll() {
 		List<SmartOnFhirAppEntry> appEntryList = new ArrayList<SmartOnFhirAppEntry>();
 
 		String sql = "SELECT * FROM SmartOnFhirApp";
@@ -93,7 +135,6 @@ public class SmartOnFhirAppImpl extends BaseSmartOnFhir implements SmartOnFhirAp
 				SmartOnFhirAppEntry appEntry = createAppEntry(rs);
 				appEntryList.add(appEntry);
 			}
-			logger.info(appEntryList.size() + " app entries obtained");
 		} catch (SQLException e) {
 			logger.error(e.getMessage());
 		}
@@ -102,49 +143,34 @@ public class SmartOnFhirAppImpl extends BaseSmartOnFhir implements SmartOnFhirAp
 	}
 
 	@Override
-	public SmartOnFhirAppEntry getSmartOnFhirApp(String appId) {
-		SmartOnFhirAppEntry appEntry = null;
-
-		String sql = "SELECT * FROM SmartOnFhirApp where app_id=?";
+	public List<SmartOnFhirAppEntry> get() {
+		List<SmartOnFhirAppEntry> appEntryList = new ArrayList<SmartOnFhirAppEntry>();
+		for (SmartOnFhirAppEntry appEntry : getRegistry().values()) {
+			appEntryList.add(new SmartOnFhirAppEntry(appEntry));
+		}
 
-		try (Connection conn = this.connect(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
-			pstmt.setString(1, appId);
-			ResultSet rs = pstmt.executeQuery();
+		return appEntryList;
+	}
 
-			if (rs.next()) {
-				appEntry = createAppEntry(rs);
-				logger.info("App Entry Obtained\n" + printAppInfo(appEntry));
-			} else {
-				logger.info("No App Entry Exist with app-id = " + appId);
-			}
-		} catch (SQLException e) {
-			logger.error(e.getMessage());
+	@Override
+	public SmartOnFhirAppEntry getSmartOnFhirApp(String appId) {
+		SmartOnFhirAppEntry appEntry = getRegistry().get(appId);
+		if (appEntry == null) {
+			logger.debug("No App Entry Exist with app-id = " + appId);
+			return null;
 		}
 
-		return appEntry;
+		return new SmartOnFhirAppEntry(appEntry);
 	}
 
 	public SmartOnFhirAppEntry getSmartOnFhirApp(String appId, String redirectUri) {
-		SmartOnFhirAppEntry appEntry = null;
-
-		String sql = "SELECT * FROM SmartOnFhirApp where app_id=? and redirect_uri=?";
-
-		try (Connection conn = this.connect(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
-			pstmt.setString(1, appId);
-			pstmt.setString(2, redirectUri);
-			ResultSet rs = pstmt.executeQuery();
-
-			if (rs.next()) {
-				appEntry = createAppEntry(rs);
-				logger.info("App Entry Obtained\n" + printAppInfo(appEntry));
-			} else {
-				logger.info("No App Entry Exist with app-id = " + appId);
-			}
-		} catch (SQLException e) {
-			logger.error(e.getMessage());
+		SmartOnFhirAppEntry appEntry = getRegistry().get(appId);
+		if (appEntry == null || !appEntry.hasRedirectUri(redirectUri)) {
+			logger.debug("No App Entry Exist with app-id = " + appId + " and redirect-uri = " + redirectUri);
+			return null;
 		}
 
-		return appEntry;
+		return new SmartOnFhirAppEntry(appEntry);
 	}
 
 //	public SmartOnFhirAppEntry getSmartOnFhirAppByToken(String token) {
@@ -206,17 +232,7 @@ public class SmartOnFhirAppImpl extends BaseSmartOnFhir implements SmartOnFhirAp
 //	}
 //	
 	public boolean exists(String appId) {
-		String sql = "SELECT * FROM SmartOnFhirApp where app_id=?";
-
-		try (Connection conn = this.connect(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
-			pstmt.setString(1, appId);
-			ResultSet rs = pstmt.executeQuery();
-			if (rs.next()) return true;
-		} catch (SQLException e) {
-			logger.error(e.getMessage());
-		}
-		
-		return false;
+		return getRegistry().containsKey(appId);
 	}
 	
 	private String printAppInfo(SmartOnFhirAppEntry appEntry) {
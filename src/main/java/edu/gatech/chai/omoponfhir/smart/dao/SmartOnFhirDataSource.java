@@ -0,0 +1,155 @@
+package edu.gatech.chai.omoponfhir.smart.dao;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+
+import org.apache.commons.dbcp2.BasicDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Connection pool for the SMART on FHIR SQLite store.
+ * 
+ * The database lives in a writable file (SMART_DB_PATH). If the file does not
+ * exist, the empty database bundled in the WAR is copied there. The database
+ * runs in WAL mode so readers do not block on the writer, and pooled
+ * connections keep their prepared statements.
+ */
+public class SmartOnFhirDataSource {
+	final static Logger logger = LoggerFactory.getLogger(SmartOnFhirDataSource.class);
+
+	private static final String BUNDLED_DB = "/smartonfhir.db";
+
+	private static volatile BasicDataSource dataSource = null;
+	private static String dbPath;
+
+	public static Connection getConnection() throws SQLException {
+		return getDataSource().getConnection();
+	}
+
+	public static BasicDataSource getDataSource() {
+		BasicDataSource ds = dataSource;
+		if (ds == null) {
+			synchronized (SmartOnFhirDataSource.class) {
+				ds = dataSource;
+				if (ds == null) {
+					ds = createDataSource();
+					dataSource = ds;
+				}
+			}
+		}
+
+		return ds;
+	}
+
+	public static String getDbPath() {
+		return dbPath;
+	}
+
+	private static BasicDataSource createDataSource() {
+		String path = System.getenv("SMART_DB_PATH");
+		if (path == null || path.trim().isEmpty()) {
+			path = System.getProperty("user.home") + File.separator + ".omoponfhir" + File.separator
+					+ "smartonfhir.db";
+		}
+		dbPath = path.trim();
+		copyBundledDatabase(new File(dbPath));
+
+		BasicDataSource ds = new BasicDataSource();
+		ds.setDriverClassName("org.sqlite.JDBC");
+		ds.setUrl("jdbc:sqlite:" + dbPath);
+
+		// SQLite allows one writer at a time. Wait for the lock instead of failing
+		// with SQLITE_BUSY.
+		ds.setConnectionInitSqls(Arrays.asList("PRAGMA busy_timeout=5000", "PRAGMA synchronous=NORMAL",
+				"PRAGMA temp_store=MEMORY", "PRAGMA cache_size=-8000"));
+
+		ds.setMaxTotal(getEnvInt("SMART_DB_POOL_MAX", 8));
+		ds.setMaxIdle(getEnvInt("SMART_DB_POOL_MAX", 8));
+		ds.setMinIdle(1);
+		ds.setMaxWaitMillis(getEnvInt("SMART_DB_POOL_WAIT_MS", 5000));
+		ds.setPoolPreparedStatements(true);
+		ds.setMaxOpenPreparedStatements(100);
+		ds.setDefaultAutoCommit(true);
+
+		// Pool usage is available over JMX.
+		ds.setJmxName("edu.gatech.chai.omoponfhir:type=SmartOnFhirDataSource");
+
+		// journal_mode is stored in the database file. Set it once.
+		try (Connection conn = ds.getConnection(); Statement stmt = conn.createStatement()) {
+			stmt.execute("PRAGMA journal_mode=WAL");
+		} catch (SQLException e) {
+			logger.error("Unable to enable WAL mode on " + dbPath + ": " + e.getMessage());
+		}
+
+		try (Connection conn = ds.getConnection()) {
+			SmartOnFhirSchema.migrate(conn);
+		} catch (SQLException e) {
+			logger.error("SMART on FHIR schema migration failed: " + e.getMessage());
+		}
+
+		logger.info("SMART on FHIR database at " + dbPath + " with pool size " + ds.getMaxTotal());
+		return ds;
+	}
+
+	private static void copyBundledDatabase(File dbFile) {
+		if (dbFile.exists()) {
+			return;
+		}
+
+		File parent = dbFile.getAbsoluteFile().getParentFile();
+		if (parent != null && !parent.exists()) {
+			parent.mkdirs();
+		}
+
+		try (InputStream in = SmartOnFhirDataSource.class.getResourceAsStream(BUNDLED_DB)) {
+			if (in == null) {
+				logger.error("Bundled " + BUNDLED_DB + " not found. Starting with an empty database");
+				return;
+			}
+			Files.copy(in, dbFile.toPath());
+			logger.info("Copied bundled SMART on FHIR database to " + dbFile.getPath());
+		} catch (IOException e) {
+			logger.error("Unable to create " + dbFile.getPath() + ": " + e.getMessage());
+		}
+	}
+
+	private static int getEnvInt(String name, int defaultValue) {
+		String value = System.getenv(name);
+		if (value != null && !value.trim().isEmpty()) {
+			return Integer.parseInt(value.trim());
+		}
+
+		return defaultValue;
+	}
+
+	public static int getNumActive() {
+		return getDataSource().getNumActive();
+	}
+
+	public static int getNumIdle() {
+		return getDataSource().getNumIdle();
+	}
+
+	public static int getMaxTotal() {
+		return getDataSource().getMaxTotal();
+	}
+
+	public static void close() {
+		BasicDataSource ds = dataSource;
+		if (ds != null) {
+			try {
+				ds.close();
+			} catch (SQLException e) {
+				logger.error(e.getMessage());
+			}
+			dataSource = null;
+		}
+	}
+}
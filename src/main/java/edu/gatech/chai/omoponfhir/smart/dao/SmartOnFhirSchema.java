@@ -0,0 +1,135 @@
+package edu.gatech.chai.omoponfhir.smart.dao;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.apache.commons.codec.binary.Base64;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.gatech.chai.omoponfhir.smart.model.SmartOnFhirSessionEntry;
+
+/**
+ * Versioned migrations for the SMART on FHIR SQLite database. The version is
+ * kept in PRAGMA user_version. Each migration runs in a transaction together
+ * with its version bump, so a failed migration is retried on next start.
+ */
+public class SmartOnFhirSchema {
+	final static Logger logger = LoggerFactory.getLogger(SmartOnFhirSchema.class);
+
+	// MIGRATIONS[i] brings the schema from version i to i+1.
+	private static final String[][] MIGRATIONS = {
+			{
+					// access_token, refresh_token and authorization_code already have
+					// unique indexes. Add the ones used by token exchange and the reaper.
+					"CREATE INDEX IF NOT EXISTS idx_session_app_code ON SmartOnFhirSession (app_id, authorization_code)",
+					"CREATE INDEX IF NOT EXISTS idx_session_access_exp ON SmartOnFhirSession (access_token_expiration_dt)",
+					"CREATE INDEX IF NOT EXISTS idx_session_auth_exp ON SmartOnFhirSession (auth_code_expiration_dt)",
+					// Expirations are epoch milliseconds. Convert anything that was stored
+					// as a date string.
+					"UPDATE SmartOnFhirSession SET auth_code_expiration_dt = CAST(strftime('%s', auth_code_expiration_dt) AS INTEGER) * 1000 "
+							+ "WHERE typeof(auth_code_expiration_dt) = 'text'",
+					"UPDATE SmartOnFhirSession SET access_token_expiration_dt = CAST(strftime('%s', access_token_expiration_dt) AS INTEGER) * 1000 "
+							+ "WHERE typeof(access_token_expiration_dt) = 'text'" },
+			{
+					// Launch context is stored when authorized. Existing rows are filled
+					// from their authorization codes after this.
+					"ALTER TABLE SmartOnFhirSession ADD COLUMN launch_patient TEXT",
+					"ALTER TABLE SmartOnFhirSession ADD COLUMN launch_encounter TEXT" },
+			{
+					// Session reuse in afterAuth looks up by app and patient.
+					"CREATE INDEX IF NOT EXISTS idx_session_app_patient ON SmartOnFhirSession (app_id, launch_patient)" } };
+
+	public static int getLatestVersion() {
+		return MIGRATIONS.length;
+	}
+
+	public static void migrate(Connection conn) throws SQLException {
+		int version = getVersion(conn);
+		if (version >= MIGRATIONS.length) {
+			logger.debug("SMART on FHIR schema is at version " + version);
+			return;
+		}
+
+		boolean autoCommit = conn.getAutoCommit();
+		conn.setAutoCommit(false);
+		try (Statement stmt = conn.createStatement()) {
+			for (; version < MIGRATIONS.length; version++) {
+				for (String sql : MIGRATIONS[version]) {
+					stmt.executeUpdate(sql);
+				}
+				if (version + 1 == 2) {
+					backfillLaunchContext(conn);
+				}
+				stmt.executeUpdate("PRAGMA user_version = " + (version + 1));
+				conn.commit();
+				logger.info("SMART on FHIR schema migrated to version " + (version + 1));
+			}
+		} catch (SQLException e) {
+			conn.rollback();
+			throw e;
+		} finally {
+			conn.setAutoCommit(autoCommit);
+		}
+	}
+
+	private static void backfillLaunchContext(Connection conn) throws SQLException {
+		String select = "SELECT session_id, authorization_code FROM SmartOnFhirSession WHERE authorization_code IS NOT NULL";
+		String update = "UPDATE SmartOnFhirSession SET launch_patient=?, launch_encounter=? WHERE session_id=?";
+
+		try (PreparedStatement selectStmt = conn.prepareStatement(select);
+				PreparedStatement updateStmt = conn.prepareStatement(update);
+				ResultSet rs = selectStmt.executeQuery()) {
+			while (rs.next()) {
+				SmartOnFhirSessionEntry sessionEntry = new SmartOnFhirSessionEntry();
+				sessionEntry.setAuthorizationCode(rs.getString("authorization_code"));
+				setLaunchContextFromCode(sessionEntry);
+
+				updateStmt.setString(1, sessionEntry.getLaunchPatient());
+				updateStmt.setString(2, sessionEntry.getLaunchEncounter());
+				updateStmt.setString(3, rs.getString("session_id"));
+				updateStmt.addBatch();
+			}
+			updateStmt.executeBatch();
+		}
+	}
+
+	/**
+	 * Sets launch patient and encounter from the context claim of the
+	 * session's authorization code. Only for sessions created before the
+	 * launch context was stored.
+	 */
+	static void setLaunchContextFromCode(SmartOnFhirSessionEntry sessionEntry) {
+		String code = sessionEntry.getAuthorizationCode();
+		if (code == null) {
+			return;
+		}
+
+		String[] jwtSplitted = code.split("\\.");
+		if (jwtSplitted.length < 2) {
+			return;
+		}
+
+		try {
+			JSONObject jwtBodyJson = new JSONObject(new String(Base64.decodeBase64(jwtSplitted[1])));
+			JSONObject context = jwtBodyJson.optJSONObject("context");
+			if (context != null) {
+				sessionEntry.setLaunchPatient(context.optString("patient", null));
+				sessionEntry.setLaunchEncounter(context.optString("encounter", null));
+			}
+		} catch (JSONException e) {
+			logger.debug("Authorization code is not a JWT: " + e.getMessage());
+		}
+	}
+
+	private static int getVersion(Connection conn) throws SQLException {
+		try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery("PRAGMA user_version")) {
+			return rs.next() ? rs.getInt(1) : 0;
+		}
+	}
+}
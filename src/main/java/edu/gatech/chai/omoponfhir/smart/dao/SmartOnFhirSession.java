@@ -1,13 +1,73 @@
 package edu.gatech.chai.omoponfhir.smart.dao;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 import edu.gatech.chai.omoponfhir.smart.model.SmartOnFhirSessionEntry;
 
+/**
+ * SMART on FHIR session store. Implementation is selected with
+ * SMART_SESSION_STORE (memory, sqlite or postgres). See
+ * {@link SmartOnFhirSessionStoreConfig}.
+ */
 public interface SmartOnFhirSession {
+	// Results of issueTokens.
+	public static final int ISSUED = 1;
+	public static final int SESSION_CHANGED = 0;
+	public static final int TOKEN_IN_USE = -1;
+	public static final int FAILED = -2;
+
 	public int save(SmartOnFhirSessionEntry sessionEntry);
 	public void update(SmartOnFhirSessionEntry sessionEntry);
 	public void delete(String sessionId);
+	public void deleteByAppId(String appId);
 	public List<SmartOnFhirSessionEntry> get();
 	public SmartOnFhirSessionEntry getSmartOnFhirSession(String sessionId);
+	public SmartOnFhirSessionEntry getSmartOnFhirSession(String appId, String authCode);
+	public List<SmartOnFhirSessionEntry> getSmartOnFhirSessionsByAppId(String appId);
+
+	/**
+	 * @return session of the app launched for the patient whose access token
+	 *         is still valid at now, or null. If there are more than one, the
+	 *         one that expires last.
+	 */
+	public SmartOnFhirSessionEntry getSmartOnFhirSessionByPatient(String appId, String patientId, long now);
+	public SmartOnFhirSessionEntry getSmartOnFhirAppByToken(String token);
+	public SmartOnFhirSessionEntry getSmartOnFhirAppByRefreshToken(String token);
+
+	/**
+	 * Looks up sessions of many access tokens at once.
+	 * 
+	 * @return sessions keyed by access token. Unknown tokens are not in the
+	 *         map.
+	 */
+	public Map<String, SmartOnFhirSessionEntry> getSmartOnFhirAppsByTokens(Collection<String> tokens);
+	public void putAccessCode(String appId, String authCode, String accessToken);
+	public void putRefereshCode(String appId, String authCode, String refreshToken);
+	public void updateAccessTokenTimeout(String sessionId, long expiresAt);
+
+	/**
+	 * Sets access token, refresh token and access token expiration of the
+	 * session in one write. The write only happens if the session still has
+	 * expectedAccessToken, so two grants racing on the same session cannot
+	 * both succeed.
+	 * 
+	 * @return {@link #ISSUED}, {@link #SESSION_CHANGED} if the session is gone
+	 *         or has another access token, {@link #TOKEN_IN_USE} if a token
+	 *         belongs to another session, or {@link #FAILED}.
+	 */
+	public int issueTokens(String sessionId, String expectedAccessToken, String accessToken, String refreshToken,
+			long accessTokenExpiration);
+	public boolean exists(String sessionId);
+
+	/**
+	 * Deletes up to batchSize sessions whose authorization code and access
+	 * token are both expired. Sessions with a refresh token are kept for
+	 * refreshGraceMillis after the access token expired so they can still be
+	 * refreshed.
+	 * 
+	 * @return number of sessions deleted
+	 */
+	public int deleteExpired(long now, long refreshGraceMillis, int batchSize);
 }
@@ -4,21 +4,27 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
-import org.springframework.stereotype.Component;
-
-import edu.gatech.chai.omoponfhir.smart.model.SmartOnFhirAppEntry;
 import edu.gatech.chai.omoponfhir.smart.model.SmartOnFhirSessionEntry;
 
-@Component
+/**
+ * SQLite session store. Expiration times are stored as epoch milliseconds.
+ */
 public class SmartOnFhirSessionImpl extends BaseSmartOnFhir implements SmartOnFhirSession {
+	// Stay well below the bind variable limit of SQLite (999).
+	private static final int MAX_IN_LIST = 500;
 
 	@Override
 	public int save(SmartOnFhirSessionEntry sessionEntry) {
-		String sql = "INSERT INTO SmartOnFhirSession (session_id, state, app_id, authorization_code, access_token, auth_code_expiration_dt, access_token_expiration_dt, refresh_token) values (?,?,?,?,?,?,?,?)";
+		String sql = "INSERT INTO SmartOnFhirSession (session_id, state, app_id, authorization_code, access_token, auth_code_expiration_dt, access_token_expiration_dt, refresh_token, launch_patient, launch_encounter) values (?,?,?,?,?,?,?,?,?,?)";
 
 		try (Connection conn = this.connect(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
 			pstmt.setString(1, sessionEntry.getSessionId());
@@ -26,9 +32,11 @@ public class SmartOnFhirSessionImpl extends BaseSmartOnFhir implements SmartOnFh
 			pstmt.setString(3, sessionEntry.getAppId());
 			pstmt.setString(4, sessionEntry.getAuthorizationCode());
 			pstmt.setString(5, sessionEntry.getAccessToken());
-			pstmt.setDate(6, sessionEntry.getAuthCodeExpirationDT());
-			pstmt.setDate(7, sessionEntry.getAccessTokenExpirationDT());
+			setEpochMillis(pstmt, 6, sessionEntry.getAuthCodeExpiration());
+			setEpochMillis(pstmt, 7, sessionEntry.getAccessTokenExpiration());
 			pstmt.setString(8,  sessionEntry.getRefreshToken());
+			pstmt.setString(9, sessionEntry.getLaunchPatient());
+			pstmt.setString(10, sessionEntry.getLaunchEncounter());
 
 			pstmt.executeUpdate();
 
@@ -43,17 +51,19 @@ public class SmartOnFhirSessionImpl extends BaseSmartOnFhir implements SmartOnFh
 
 	@Override
 	public void update(SmartOnFhirSessionEntry sessionEntry) {
-		String sql = "UPDATE SmartOnFhirSession SET state=?, app_id=?, authorization_code=?, access_token=?, auth_code_expiration_dt=?, access_token_expiration_dt=?, refresh_token=? where session_id=?";
+		String sql = "UPDATE SmartOnFhirSession SET state=?, app_id=?, authorization_code=?, access_token=?, auth_code_expiration_dt=?, access_token_expiration_dt=?, refresh_token=?, launch_patient=?, launch_encounter=? where session_id=?";
 
 		try (Connection conn = this.connect(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
 			pstmt.setString(1, sessionEntry.getState());
 			pstmt.setString(2, sessionEntry.getAppId());
 			pstmt.setString(3, sessionEntry.getAuthorizationCode());
 			pstmt.setString(4, sessionEntry.getAccessToken());
-			pstmt.setDate(5, sessionEntry.getAuthCodeExpirationDT());
-			pstmt.setDate(6, sessionEntry.getAccessTokenExpirationDT());
+			setEpochMillis(pstmt, 5, sessionEntry.getAuthCodeExpiration());
+			setEpochMillis(pstmt, 6, sessionEntry.getAccessTokenExpiration());
 			pstmt.setString(7, sessionEntry.getRefreshToken());
-			pstmt.setString(8, sessionEntry.getSessionId());
+			pstmt.setString(8, sessionEntry.getLaunchPatient());
+			pstmt.setString(9, sessionEntry.getLaunchEncounter());
+			pstmt.setString(10, sessionEntry.getSessionId());
 			pstmt.executeUpdate();
 			logger.info("Session Entry Updated\n" + printSessionInfo(sessionEntry));
 		} catch (SQLException e) {
@@ -74,6 +84,7 @@ public class SmartOnFhirSessionImpl extends BaseSmartOnFhir implements SmartOnFh
 		}
 	}
 	
+	@Override
 	public void deleteByAppId(String appId) {
 		String sql = "DELETE FROM SmartOnFhirSession where app_id=?";
 
@@ -86,6 +97,23 @@ public class SmartOnFhirSessionImpl extends BaseSmartOnFhir implements SmartOnFh
 		}		
 	}
 
+	protected static void setEpochMillis(PreparedStatement pstmt, int index, Long epochMillis) throws SQLException {
+		if (epochMillis == null) {
+			pstmt.setNull(index, Types.BIGINT);
+		} else {
+			pstmt.setLong(index, epochMillis);
+		}
+	}
+
+	protected static Long getEpochMillis(ResultSet rs, String column) throws SQLException {
+		long value = rs.getLong(column);
+		if (rs.wasNull()) {
+			return null;
+		}
+
+		return value;
+	}
+
 	private SmartOnFhirSessionEntry createSessionEntry(ResultSet rs) throws SQLException {
 		SmartOnFhirSessionEntry appEntry = new SmartOnFhirSessionEntry();
 		appEntry.setSessionId(rs.getString("session_id"));
@@ -93,9 +121,11 @@ public class SmartOnFhirSessionImpl extends BaseSmartOnFhir implements SmartOnFh
 		appEntry.setState(rs.getString("state"));
 		appEntry.setAuthorizationCode(rs.getString("authorization_code"));
 		appEntry.setAccessToken(rs.getString("access_token"));
-		appEntry.setAuthCodeExpirationDT(rs.getDate("auth_code_expiration_dt"));
-		appEntry.setAccessTokenExpirationDT(rs.getDate("access_token_expiration_dt"));
+		appEntry.setAuthCodeExpiration(getEpochMillis(rs, "auth_code_expiration_dt"));
+		appEntry.setAccessTokenExpiration(getEpochMillis(rs, "access_token_expiration_dt"));
 		appEntry.setRefreshToken(rs.getString("refresh_token"));
+		appEntry.setLaunchPatient(rs.getString("launch_patient"));
+		appEntry.setLaunchEncounter(rs.getString("launch_encounter"));
 		
 		return appEntry;
 	}
@@ -142,6 +172,7 @@ public class SmartOnFhirSessionImpl extends BaseSmartOnFhir implements SmartOnFh
 		return appSession;
 	}
 
+	@Override
 	public SmartOnFhirSessionEntry getSmartOnFhirSession(String appId, String authCode) {
 		SmartOnFhirSessionEntry appSession = null;
 
@@ -165,6 +196,7 @@ public class SmartOnFhirSessionImpl extends BaseSmartOnFhir implements SmartOnFh
 		return appSession;
 	}
 	
+	@Override
 	public List<SmartOnFhirSessionEntry> getSmartOnFhirSessionsByAppId(String appId) {
 		List<SmartOnFhirSessionEntry> appSessions = new ArrayList<SmartOnFhirSessionEntry>();
 
@@ -184,6 +216,30 @@ public class SmartOnFhirSessionImpl extends BaseSmartOnFhir implements SmartOnFh
 		return appSessions;
 	}
 	
+	@Override
+	public SmartOnFhirSessionEntry getSmartOnFhirSessionByPatient(String appId, String patientId, long now) {
+		SmartOnFhirSessionEntry sessionEntry = null;
+
+		String sql = "SELECT * FROM SmartOnFhirSession where app_id=? AND launch_patient=? AND access_token IS NOT NULL "
+				+ "AND access_token_expiration_dt > ? ORDER BY access_token_expiration_dt DESC LIMIT 1";
+
+		try (Connection conn = this.connect(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
+			pstmt.setString(1, appId);
+			pstmt.setString(2, patientId);
+			pstmt.setLong(3, now);
+			ResultSet rs = pstmt.executeQuery();
+
+			if (rs.next()) {
+				sessionEntry = createSessionEntry(rs);
+			}
+		} catch (SQLException e) {
+			logger.error(e.getMessage());
+		}
+
+		return sessionEntry;
+	}
+
+	@Override
 	public SmartOnFhirSessionEntry getSmartOnFhirAppByToken(String token) {
 		SmartOnFhirSessionEntry sessionEntry = null;
 
@@ -195,9 +251,9 @@ public class SmartOnFhirSessionImpl extends BaseSmartOnFhir implements SmartOnFh
 
 			if (rs.next()) {
 				sessionEntry = createSessionEntry(rs);
-				logger.info("Session" + printSessionInfo(sessionEntry));
+				logger.debug("Session found for access token:" + sessionEntry.getSessionId());
 			} else {
-				logger.info("No Session Entry Exist with access_token = " + token);
+				logger.debug("No Session Entry Exist with the access token");
 			}
 		} catch (SQLException e) {
 			logger.error(e.getMessage());
@@ -206,6 +262,48 @@ public class SmartOnFhirSessionImpl extends BaseSmartOnFhir implements SmartOnFh
 		return sessionEntry;
 	}
 
+	@Override
+	public Map<String, SmartOnFhirSessionEntry> getSmartOnFhirAppsByTokens(Collection<String> tokens) {
+		Map<String, SmartOnFhirSessionEntry> sessionEntries = new HashMap<String, SmartOnFhirSessionEntry>();
+		if (tokens.isEmpty()) {
+			return sessionEntries;
+		}
+
+		try (Connection conn = this.connect()) {
+			Iterator<String> tokenIterator = tokens.iterator();
+			while (tokenIterator.hasNext()) {
+				List<String> chunk = new ArrayList<String>();
+				while (tokenIterator.hasNext() && chunk.size() < MAX_IN_LIST) {
+					chunk.add(tokenIterator.next());
+				}
+
+				StringBuilder sql = new StringBuilder("SELECT * FROM SmartOnFhirSession where access_token IN (?");
+				for (int i = 1; i < chunk.size(); i++) {
+					sql.append(",?");
+				}
+				sql.append(")");
+
+				try (PreparedStatement pstmt = conn.prepareStatement(sql.toString())) {
+					for (int i = 0; i < chunk.size(); i++) {
+						pstmt.setString(i + 1, chunk.get(i));
+					}
+
+					ResultSet rs = pstmt.executeQuery();
+					while (rs.next()) {
+						SmartOnFhirSessionEntry sessionEntry = createSessionEntry(rs);
+						sessionEntries.put(sessionEntry.getAccessToken(), sessionEntry);
+					}
+				}
+			}
+		} catch (SQLException e) {
+			logger.error(e.getMessage());
+		}
+
+		logger.debug(sessionEntries.size() + " sessions found for " + tokens.size() + " access tokens");
+		return sessionEntries;
+	}
+
+	@Override
 	public SmartOnFhirSessionEntry getSmartOnFhirAppByRefreshToken(String token) {
 		SmartOnFhirSessionEntry sessionEntry = null;
 
@@ -217,9 +315,9 @@ public class SmartOnFhirSessionImpl extends BaseSmartOnFhir implements SmartOnFh
 
 			if (rs.next()) {
 				sessionEntry = createSessionEntry(rs);
-				logger.info("Session" + printSessionInfo(sessionEntry));
+				logger.debug("Session found for refresh token:" + sessionEntry.getSessionId());
 			} else {
-				logger.info("No Session Entry Exist with refresh token = " + token);
+				logger.debug("No Session Entry Exist with the refresh token");
 			}
 		} catch (SQLException e) {
 			logger.error(e.getMessage());
@@ -228,15 +326,16 @@ public class SmartOnFhirSessionImpl extends BaseSmartOnFhir implements SmartOnFh
 		return sessionEntry;
 	}
 
+	@Override
 	public void putAccessCode(String appId, String authCode, String accessToken) {
 		String sql = "UPDATE SmartOnFhirSession SET access_token=?, access_token_expiration_dt=? where app_id=? and authorization_code=?";
 
 		try (Connection conn = this.connect(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
 			Calendar calendar = Calendar.getInstance();
 			calendar.add(Calendar.MINUTE, 5);
-			java.sql.Date expiresIn = new java.sql.Date(calendar.getTimeInMillis());
+			long expiresIn = calendar.getTimeInMillis();
 			pstmt.setString(1, accessToken);
-			pstmt.setDate(2, expiresIn);
+			pstmt.setLong(2, expiresIn);
 			pstmt.setString(3, appId);
 			pstmt.setString(4, authCode);
 			pstmt.executeUpdate();
@@ -247,6 +346,7 @@ public class SmartOnFhirSessionImpl extends BaseSmartOnFhir implements SmartOnFh
 		}
 	}
 
+	@Override
 	public void putRefereshCode(String appId, String authCode, String refreshToken) {
 		String sql = "UPDATE SmartOnFhirSession SET refresh_token=? where app_id=? and authorization_code=?";
 
@@ -262,20 +362,22 @@ public class SmartOnFhirSessionImpl extends BaseSmartOnFhir implements SmartOnFh
 		}
 	}
 
-	public void updateAccessTokenTimeout(String sessionId, java.sql.Date timeoutDate) {
+	@Override
+	public void updateAccessTokenTimeout(String sessionId, long expiresAt) {
 		String sql = "UPDATE SmartOnFhirSession SET access_token_expiration_dt=? where session_id=?";
 
 		try (Connection conn = this.connect(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
-			pstmt.setDate(1, timeoutDate);
+			pstmt.setLong(1, expiresAt);
 			pstmt.setString(2, sessionId);
 			pstmt.executeUpdate();
 			
-			logger.info("Access Token Timeout is updated\nSession Id:" + sessionId + " to " + timeoutDate);
+			logger.info("Access Token Timeout is updated\nSession Id:" + sessionId + " to " + expiresAt);
 		} catch (SQLException e) {
 			logger.error(e.getMessage());
 		}
 	}
 	
+	@Override
 	public boolean exists(String sessionId) {
 		String sql = "SELECT * FROM SmartOnFhirSession where session_id=?";
 
@@ -290,12 +392,65 @@ public class SmartOnFhirSessionImpl extends BaseSmartOnFhir implements SmartOnFh
 		return false;
 	}
 
+	@Override
+	public int issueTokens(String sessionId, String expectedAccessToken, String accessToken, String refreshToken,
+			long accessTokenExpiration) {
+		String sql = "UPDATE SmartOnFhirSession SET access_token=?, refresh_token=?, access_token_expiration_dt=? "
+				+ "WHERE session_id=? AND (access_token=? OR (access_token IS NULL AND ? IS NULL))";
+
+		try (Connection conn = this.connect(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
+			pstmt.setString(1, accessToken);
+			pstmt.setString(2, refreshToken);
+			pstmt.setLong(3, accessTokenExpiration);
+			pstmt.setString(4, sessionId);
+			pstmt.setString(5, expectedAccessToken);
+			pstmt.setString(6, expectedAccessToken);
+			if (pstmt.executeUpdate() == 0) {
+				return SESSION_CHANGED;
+			}
+
+			logger.info("Tokens issued for session " + sessionId);
+			return ISSUED;
+		} catch (SQLException e) {
+			if (isUniqueViolation(e)) {
+				return TOKEN_IN_USE;
+			}
+			logger.error(e.getMessage());
+		}
+
+		return FAILED;
+	}
+
+	protected static boolean isUniqueViolation(SQLException e) {
+		// SQLITE_CONSTRAINT is 19. PostgreSQL uses SQLState 23505.
+		return e.getErrorCode() == 19 || "23505".equals(e.getSQLState());
+	}
+
+	@Override
+	public int deleteExpired(long now, long refreshGraceMillis, int batchSize) {
+		String sql = "DELETE FROM SmartOnFhirSession WHERE session_id IN (SELECT session_id FROM SmartOnFhirSession "
+				+ "WHERE COALESCE(auth_code_expiration_dt, 0) < ? AND COALESCE(access_token_expiration_dt, 0) < ? "
+				+ "AND (refresh_token IS NULL OR COALESCE(access_token_expiration_dt, 0) < ?) LIMIT ?)";
+
+		try (Connection conn = this.connect(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
+			pstmt.setLong(1, now);
+			pstmt.setLong(2, now);
+			pstmt.setLong(3, now - refreshGraceMillis);
+			pstmt.setInt(4, batchSize);
+			return pstmt.executeUpdate();
+		} catch (SQLException e) {
+			logger.error(e.getMessage());
+		}
+
+		return 0;
+	}
+
 	private String printSessionInfo(SmartOnFhirSessionEntry sessionEntry) {
 		String appInfo = "session-id: " + sessionEntry.getAppId() + "\n" + "state: " + sessionEntry.getState() + "\n"
 				+ "app-id: " + sessionEntry.getAppId() + "\n" + "authorization-code: "
 				+ sessionEntry.getAuthorizationCode() + "\n" + "access-token: " + sessionEntry.getAccessToken() + "\n"
-				+ "authorization-code-expiration_datatime: " + sessionEntry.getAuthCodeExpirationDT() + "\n"
-				+ "access-token-expiration_datatime: " + sessionEntry.getAccessTokenExpirationDT() + "\n"
+				+ "authorization-code-expiration: " + sessionEntry.getAuthCodeExpiration() + "\n"
+				+ "access-token-expiration: " + sessionEntry.getAccessTokenExpiration() + "\n"
 				+ "refresh-token: " + sessionEntry.getRefreshToken() + "\n";
 
 		return appInfo;
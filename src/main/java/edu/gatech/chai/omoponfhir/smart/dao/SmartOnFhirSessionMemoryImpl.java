@@ -0,0 +1,565 @@
+package edu.gatech.chai.omoponfhir.smart.dao;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+
+import edu.gatech.chai.omoponfhir.smart.model.SmartOnFhirSessionEntry;
+
+/**
+ * In-memory session store. Sessions are indexed by access token, refresh
+ * token and (app id, authorization code), so all lookups are hash lookups.
+ * 
+ * Reads do not lock. Writes lock the stripe of the session so that a session
+ * and its index entries always change together. Sessions are written to a
+ * JSON snapshot file periodically and on shutdown, and loaded from it on
+ * startup.
+ */
+public class SmartOnFhirSessionMemoryImpl implements SmartOnFhirSession {
+	final static Logger logger = LoggerFactory.getLogger(SmartOnFhirSessionMemoryImpl.class);
+
+	private static final int LOCK_STRIPES = 64;
+
+	private final Map<String, SmartOnFhirSessionEntry> sessions = new ConcurrentHashMap<String, SmartOnFhirSessionEntry>();
+	private final Map<String, String> sessionIdByAccessToken = new ConcurrentHashMap<String, String>();
+	private final Map<String, String> sessionIdByRefreshToken = new ConcurrentHashMap<String, String>();
+	private final Map<String, String> sessionIdByAuthCode = new ConcurrentHashMap<String, String>();
+	private final Map<String, Set<String>> sessionIdsByAppPatient = new ConcurrentHashMap<String, Set<String>>();
+
+	private final Object[] locks = new Object[LOCK_STRIPES];
+	private final Object snapshotLock = new Object();
+	private final File snapshotFile;
+	private volatile boolean dirty = false;
+
+	public SmartOnFhirSessionMemoryImpl(File snapshotFile) {
+		this.snapshotFile = snapshotFile;
+		for (int i = 0; i < LOCK_STRIPES; i++) {
+			locks[i] = new Object();
+		}
+	}
+
+	private Object lockFor(String sessionId) {
+		int h = sessionId.hashCode();
+		return locks[(h ^ (h >>> 16)) & (LOCK_STRIPES - 1)];
+	}
+
+	private static String authCodeKey(String appId, String authCode) {
+		return appId + "\n" + authCode;
+	}
+
+	private static String appPatientKey(String appId, String patientId) {
+		return appId + "\n" + patientId;
+	}
+
+	private static String authCodeKey(SmartOnFhirSessionEntry sessionEntry) {
+		if (sessionEntry.getAuthorizationCode() == null) {
+			return null;
+		}
+		return authCodeKey(sessionEntry.getAppId(), sessionEntry.getAuthorizationCode());
+	}
+
+	private static String appPatientKey(SmartOnFhirSessionEntry sessionEntry) {
+		if (sessionEntry.getLaunchPatient() == null) {
+			return null;
+		}
+		return appPatientKey(sessionEntry.getAppId(), sessionEntry.getLaunchPatient());
+	}
+
+	private static SmartOnFhirSessionEntry copy(SmartOnFhirSessionEntry sessionEntry) {
+		if (sessionEntry == null) {
+			return null;
+		}
+
+		SmartOnFhirSessionEntry copy = new SmartOnFhirSessionEntry();
+		copy.setSessionId(sessionEntry.getSessionId());
+		copy.setState(sessionEntry.getState());
+		copy.setAppId(sessionEntry.getAppId());
+		copy.setAuthorizationCode(sessionEntry.getAuthorizationCode());
+		copy.setAccessToken(sessionEntry.getAccessToken());
+		copy.setAuthCodeExpiration(sessionEntry.getAuthCodeExpiration());
+		copy.setAccessTokenExpiration(sessionEntry.getAccessTokenExpiration());
+		copy.setRefreshToken(sessionEntry.getRefreshToken());
+		copy.setLaunchPatient(sessionEntry.getLaunchPatient());
+		copy.setLaunchEncounter(sessionEntry.getLaunchEncounter());
+
+		return copy;
+	}
+
+	/**
+	 * Takes key in index for sessionId, unless another session has it. The
+	 * indexes are shared by all lock stripes, so this is the only place that
+	 * can tell.
+	 * 
+	 * @return false if key belongs to another session.
+	 */
+	private static boolean claim(Map<String, String> index, String key, String sessionId, List<String> claimed) {
+		if (key == null) {
+			return true;
+		}
+
+		String owner = index.putIfAbsent(key, sessionId);
+		if (owner == null) {
+			claimed.add(key);
+			return true;
+		}
+
+		return owner.equals(sessionId);
+	}
+
+	private static void release(Map<String, String> index, List<String> claimed, String sessionId) {
+		for (String key : claimed) {
+			index.remove(key, sessionId);
+		}
+	}
+
+	/**
+	 * Stores the session and updates indexes. Like the unique constraints in
+	 * SQLite, tokens and codes that belong to another session are rejected.
+	 */
+	private boolean store(SmartOnFhirSessionEntry sessionEntry) {
+		String sessionId = sessionEntry.getSessionId();
+		SmartOnFhirSessionEntry newEntry = copy(sessionEntry);
+
+		synchronized (lockFor(sessionId)) {
+			// Keys are claimed atomically, so two sessions on different stripes
+			// cannot both take the same token or code. Keys taken here are given
+			// back if a later one is in use.
+			List<String> accessTokens = new ArrayList<String>(1);
+			List<String> refreshTokens = new ArrayList<String>(1);
+			List<String> authCodes = new ArrayList<String>(1);
+			if (!claim(sessionIdByAccessToken, newEntry.getAccessToken(), sessionId, accessTokens)
+					|| !claim(sessionIdByRefreshToken, newEntry.getRefreshToken(), sessionId, refreshTokens)
+					|| !claim(sessionIdByAuthCode, authCodeKey(newEntry), sessionId, authCodes)) {
+				release(sessionIdByAccessToken, accessTokens, sessionId);
+				release(sessionIdByRefreshToken, refreshTokens, sessionId);
+				release(sessionIdByAuthCode, authCodes, sessionId);
+				logger.error("Session (" + sessionId + ") has a token or code that is already in use");
+				return false;
+			}
+
+			// Readers do not lock. New keys are indexed before stale ones are
+			// dropped, and keys that did not change are left alone, so a token
+			// that stays valid is always found.
+			SmartOnFhirSessionEntry oldEntry = sessions.put(sessionId, newEntry);
+			addIndexes(newEntry);
+			if (oldEntry != null) {
+				removeIndexes(oldEntry, newEntry);
+			}
+		}
+
+		dirty = true;
+		return true;
+	}
+
+	private void addIndexes(SmartOnFhirSessionEntry sessionEntry) {
+		// Tokens and codes were claimed already.
+		String sessionId = sessionEntry.getSessionId();
+		String appPatientKey = appPatientKey(sessionEntry);
+		if (appPatientKey != null) {
+			sessionIdsByAppPatient.compute(appPatientKey, (key, sessionIds) -> {
+				if (sessionIds == null) {
+					sessionIds = ConcurrentHashMap.newKeySet();
+				}
+				sessionIds.add(sessionId);
+				return sessionIds;
+			});
+		}
+	}
+
+	/**
+	 * Drops the index entries of oldEntry that newEntry does not have. With a
+	 * null newEntry, drops all of them.
+	 */
+	private void removeIndexes(SmartOnFhirSessionEntry oldEntry, SmartOnFhirSessionEntry newEntry) {
+		String sessionId = oldEntry.getSessionId();
+		unindexChanged(sessionIdByAccessToken, oldEntry.getAccessToken(),
+				newEntry == null ? null : newEntry.getAccessToken(), sessionId);
+		unindexChanged(sessionIdByRefreshToken, oldEntry.getRefreshToken(),
+				newEntry == null ? null : newEntry.getRefreshToken(), sessionId);
+		unindexChanged(sessionIdByAuthCode, authCodeKey(oldEntry), newEntry == null ? null : authCodeKey(newEntry),
+				sessionId);
+
+		String appPatientKey = appPatientKey(oldEntry);
+		if (appPatientKey != null && (newEntry == null || !appPatientKey.equals(appPatientKey(newEntry)))) {
+			// Drop the set with its last session so the index does not grow with
+			// patients that are gone.
+			sessionIdsByAppPatient.computeIfPresent(appPatientKey, (key, sessionIds) -> {
+				sessionIds.remove(sessionId);
+				return sessionIds.isEmpty() ? null : sessionIds;
+			});
+		}
+	}
+
+	private static void unindexChanged(Map<String, String> index, String oldKey, String newKey, String sessionId) {
+		if (oldKey != null && !oldKey.equals(newKey)) {
+			index.remove(oldKey, sessionId);
+		}
+	}
+
+	private SmartOnFhirSessionEntry lookup(Map<String, String> index, String key) {
+		if (key == null) {
+			return null;
+		}
+
+		String sessionId = index.get(key);
+		if (sessionId == null) {
+			return null;
+		}
+
+		return copy(sessions.get(sessionId));
+	}
+
+	@Override
+	public int save(SmartOnFhirSessionEntry sessionEntry) {
+		if (store(sessionEntry)) {
+			logger.info("Session Entry (" + sessionEntry.getSessionId() + ") Created");
+		}
+
+		return 0;
+	}
+
+	@Override
+	public void update(SmartOnFhirSessionEntry sessionEntry) {
+		synchronized (lockFor(sessionEntry.getSessionId())) {
+			if (!sessions.containsKey(sessionEntry.getSessionId())) {
+				return;
+			}
+			store(sessionEntry);
+		}
+		logger.info("Session Entry (" + sessionEntry.getSessionId() + ") Updated");
+	}
+
+	@Override
+	public void delete(String sessionId) {
+		synchronized (lockFor(sessionId)) {
+			SmartOnFhirSessionEntry oldEntry = sessions.remove(sessionId);
+			if (oldEntry == null) {
+				return;
+			}
+			removeIndexes(oldEntry, null);
+		}
+
+		dirty = true;
+		logger.info("Session Entry (" + sessionId + ") deleted");
+	}
+
+	@Override
+	public void deleteByAppId(String appId) {
+		for (SmartOnFhirSessionEntry sessionEntry : getSmartOnFhirSessionsByAppId(appId)) {
+			delete(sessionEntry.getSessionId());
+		}
+		logger.info("Session Entry with appId (" + appId + ") deleted");
+	}
+
+	@Override
+	public List<SmartOnFhirSessionEntry> get() {
+		List<SmartOnFhirSessionEntry> appSessionList = new ArrayList<SmartOnFhirSessionEntry>();
+		for (SmartOnFhirSessionEntry sessionEntry : sessions.values()) {
+			appSessionList.add(copy(sessionEntry));
+		}
+
+		return appSessionList;
+	}
+
+	@Override
+	public SmartOnFhirSessionEntry getSmartOnFhirSession(String sessionId) {
+		return copy(sessions.get(sessionId));
+	}
+
+	@Override
+	public SmartOnFhirSessionEntry getSmartOnFhirSession(String appId, String authCode) {
+		return lookup(sessionIdByAuthCode, authCode == null ? null : authCodeKey(appId, authCode));
+	}
+
+	@Override
+	public List<SmartOnFhirSessionEntry> getSmartOnFhirSessionsByAppId(String appId) {
+		List<SmartOnFhirSessionEntry> appSessions = new ArrayList<SmartOnFhirSessionEntry>();
+		for (SmartOnFhirSessionEntry sessionEntry : sessions.values()) {
+			if (sessionEntry.getAppId() != null && sessionEntry.getAppId().equals(appId)) {
+				appSessions.add(copy(sessionEntry));
+			}
+		}
+
+		return appSessions;
+	}
+
+	@Override
+	public SmartOnFhirSessionEntry getSmartOnFhirSessionByPatient(String appId, String patientId, long now) {
+		Set<String> sessionIds = sessionIdsByAppPatient.get(appPatientKey(appId, patientId));
+		if (sessionIds == null) {
+			return null;
+		}
+
+		SmartOnFhirSessionEntry found = null;
+		for (String sessionId : sessionIds) {
+			SmartOnFhirSessionEntry sessionEntry = sessions.get(sessionId);
+			if (sessionEntry == null || sessionEntry.getAccessToken() == null
+					|| sessionEntry.getAccessTokenExpiration() == null
+					|| sessionEntry.getAccessTokenExpiration() <= now) {
+				continue;
+			}
+
+			if (found == null || sessionEntry.getAccessTokenExpiration() > found.getAccessTokenExpiration()) {
+				found = sessionEntry;
+			}
+		}
+
+		return copy(found);
+	}
+
+	@Override
+	public SmartOnFhirSessionEntry getSmartOnFhirAppByToken(String token) {
+		return lookup(sessionIdByAccessToken, token);
+	}
+
+	@Override
+	public Map<String, SmartOnFhirSessionEntry> getSmartOnFhirAppsByTokens(Collection<String> tokens) {
+		Map<String, SmartOnFhirSessionEntry> sessionEntries = new HashMap<String, SmartOnFhirSessionEntry>();
+		for (String token : tokens) {
+			SmartOnFhirSessionEntry sessionEntry = lookup(sessionIdByAccessToken, token);
+			if (sessionEntry != null) {
+				sessionEntries.put(token, sessionEntry);
+			}
+		}
+
+		return sessionEntries;
+	}
+
+	@Override
+	public SmartOnFhirSessionEntry getSmartOnFhirAppByRefreshToken(String token) {
+		return lookup(sessionIdByRefreshToken, token);
+	}
+
+	@Override
+	public void putAccessCode(String appId, String authCode, String accessToken) {
+		SmartOnFhirSessionEntry sessionEntry = getSmartOnFhirSession(appId, authCode);
+		if (sessionEntry == null) {
+			return;
+		}
+
+		Calendar calendar = Calendar.getInstance();
+		calendar.add(Calendar.MINUTE, 5);
+		sessionEntry.setAccessToken(accessToken);
+		sessionEntry.setAccessTokenExpiration(calendar.getTimeInMillis());
+		if (store(sessionEntry)) {
+			logger.info("Access Token is updated for session " + sessionEntry.getSessionId());
+		}
+	}
+
+	@Override
+	public void putRefereshCode(String appId, String authCode, String refreshToken) {
+		SmartOnFhirSessionEntry sessionEntry = getSmartOnFhirSession(appId, authCode);
+		if (sessionEntry == null) {
+			return;
+		}
+
+		sessionEntry.setRefreshToken(refreshToken);
+		if (store(sessionEntry)) {
+			logger.info("Refresh Token is updated for session " + sessionEntry.getSessionId());
+		}
+	}
+
+	@Override
+	public void updateAccessTokenTimeout(String sessionId, long expiresAt) {
+		synchronized (lockFor(sessionId)) {
+			SmartOnFhirSessionEntry sessionEntry = getSmartOnFhirSession(sessionId);
+			if (sessionEntry == null) {
+				return;
+			}
+
+			sessionEntry.setAccessTokenExpiration(expiresAt);
+			store(sessionEntry);
+		}
+		logger.info("Access Token Timeout is updated\nSession Id:" + sessionId + " to " + expiresAt);
+	}
+
+	@Override
+	public int issueTokens(String sessionId, String expectedAccessToken, String accessToken, String refreshToken,
+			long accessTokenExpiration) {
+		synchronized (lockFor(sessionId)) {
+			SmartOnFhirSessionEntry sessionEntry = getSmartOnFhirSession(sessionId);
+			if (sessionEntry == null) {
+				return SESSION_CHANGED;
+			}
+
+			String currentAccessToken = sessionEntry.getAccessToken();
+			if (currentAccessToken == null ? expectedAccessToken != null
+					: !currentAccessToken.equals(expectedAccessToken)) {
+				return SESSION_CHANGED;
+			}
+
+			sessionEntry.setAccessToken(accessToken);
+			sessionEntry.setRefreshToken(refreshToken);
+			sessionEntry.setAccessTokenExpiration(accessTokenExpiration);
+			if (!store(sessionEntry)) {
+				return TOKEN_IN_USE;
+			}
+		}
+
+		logger.info("Tokens issued for session " + sessionId);
+		return ISSUED;
+	}
+
+	@Override
+	public boolean exists(String sessionId) {
+		return sessions.containsKey(sessionId);
+	}
+
+	@Override
+	public int deleteExpired(long now, long refreshGraceMillis, int batchSize) {
+		int deleted = 0;
+		for (SmartOnFhirSessionEntry sessionEntry : sessions.values()) {
+			if (deleted >= batchSize) {
+				break;
+			}
+
+			long authCodeExpiration = sessionEntry.getAuthCodeExpiration() == null ? 0L
+					: sessionEntry.getAuthCodeExpiration();
+			long accessTokenExpiration = sessionEntry.getAccessTokenExpiration() == null ? 0L
+					: sessionEntry.getAccessTokenExpiration();
+			if (authCodeExpiration >= now || accessTokenExpiration >= now) {
+				continue;
+			}
+			if (sessionEntry.getRefreshToken() != null && accessTokenExpiration >= now - refreshGraceMillis) {
+				continue;
+			}
+
+			delete(sessionEntry.getSessionId());
+			deleted++;
+		}
+
+		return deleted;
+	}
+
+	public int size() {
+		return sessions.size();
+	}
+
+	/**
+	 * Copies all sessions from another store. Used to carry over sessions from
+	 * SQLite the first time the memory store is used.
+	 */
+	public void importFrom(SmartOnFhirSession other) {
+		for (SmartOnFhirSessionEntry sessionEntry : other.get()) {
+			store(sessionEntry);
+		}
+		logger.info(sessions.size() + " sessions imported");
+	}
+
+	/**
+	 * @return true if the snapshot file was found and loaded.
+	 */
+	public boolean load() {
+		if (snapshotFile == null || !snapshotFile.exists()) {
+			return false;
+		}
+
+		try {
+			String content = new String(Files.readAllBytes(snapshotFile.toPath()), StandardCharsets.UTF_8);
+			JSONArray sessionArray = new JSONArray(content);
+			for (int i = 0; i < sessionArray.length(); i++) {
+				store(fromJson(sessionArray.getJSONObject(i)));
+			}
+			dirty = false;
+			logger.info(sessions.size() + " sessions loaded from " + snapshotFile.getPath());
+			return true;
+		} catch (IOException | RuntimeException e) {
+			logger.error("Unable to load session snapshot " + snapshotFile.getPath() + ": " + e.getMessage());
+			return false;
+		}
+	}
+
+	@Scheduled(fixedDelay = 60000L)
+	public void snapshot() {
+		if (snapshotFile == null || !dirty) {
+			return;
+		}
+
+		synchronized (snapshotLock) {
+			dirty = false;
+
+			JSONArray sessionArray = new JSONArray();
+			for (SmartOnFhirSessionEntry sessionEntry : sessions.values()) {
+				sessionArray.put(toJson(sessionEntry));
+			}
+
+			File parent = snapshotFile.getAbsoluteFile().getParentFile();
+			if (parent != null && !parent.exists()) {
+				parent.mkdirs();
+			}
+
+			// Write aside and move so a crash never leaves a partial snapshot.
+			File tmpFile = new File(snapshotFile.getPath() + ".tmp");
+			try {
+				Files.write(tmpFile.toPath(), sessionArray.toString().getBytes(StandardCharsets.UTF_8));
+				Files.move(tmpFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+				logger.debug(sessionArray.length() + " sessions written to " + snapshotFile.getPath());
+			} catch (IOException e) {
+				dirty = true;
+				logger.error("Unable to write session snapshot " + snapshotFile.getPath() + ": " + e.getMessage());
+			}
+		}
+	}
+
+	public void close() {
+		snapshot();
+	}
+
+	private static JSONObject toJson(SmartOnFhirSessionEntry sessionEntry) {
+		JSONObject json = new JSONObject();
+		json.put("session_id", sessionEntry.getSessionId());
+		json.putOpt("state", sessionEntry.getState());
+		json.putOpt("app_id", sessionEntry.getAppId());
+		json.putOpt("authorization_code", sessionEntry.getAuthorizationCode());
+		json.putOpt("access_token", sessionEntry.getAccessToken());
+		json.putOpt("auth_code_expiration_dt", sessionEntry.getAuthCodeExpiration());
+		json.putOpt("access_token_expiration_dt", sessionEntry.getAccessTokenExpiration());
+		json.putOpt("refresh_token", sessionEntry.getRefreshToken());
+		json.putOpt("launch_patient", sessionEntry.getLaunchPatient());
+		json.putOpt("launch_encounter", sessionEntry.getLaunchEncounter());
+
+		return json;
+	}
+
+	private static SmartOnFhirSessionEntry fromJson(JSONObject json) {
+		SmartOnFhirSessionEntry sessionEntry = new SmartOnFhirSessionEntry();
+		sessionEntry.setSessionId(json.getString("session_id"));
+		sessionEntry.setState(json.optString("state", null));
+		sessionEntry.setAppId(json.optString("app_id", null));
+		sessionEntry.setAuthorizationCode(json.optString("authorization_code", null));
+		sessionEntry.setAccessToken(json.optString("access_token", null));
+		if (json.has("auth_code_expiration_dt")) {
+			sessionEntry.setAuthCodeExpiration(json.getLong("auth_code_expiration_dt"));
+		}
+		if (json.has("access_token_expiration_dt")) {
+			sessionEntry.setAccessTokenExpiration(json.getLong("access_token_expiration_dt"));
+		}
+		sessionEntry.setRefreshToken(json.optString("refresh_token", null));
+		if (json.has("launch_patient") || json.has("launch_encounter")) {
+			sessionEntry.setLaunchPatient(json.optString("launch_patient", null));
+			sessionEntry.setLaunchEncounter(json.optString("launch_encounter", null));
+		} else {
+			// Snapshot from before launch context was stored.
+			SmartOnFhirSchema.setLaunchContextFromCode(sessionEntry);
+		}
+
+		return sessionEntry;
+	}
+}
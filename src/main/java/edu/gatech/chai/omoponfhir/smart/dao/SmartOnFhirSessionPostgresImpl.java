@@ -0,0 +1,56 @@
+package edu.gatech.chai.omoponfhir.smart.dao;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import javax.sql.DataSource;
+
+/**
+ * Session store in PostgreSQL, for deployments with more than one FHIR server
+ * node. Uses the same dbcp2 data source as the OMOP database. Queries are
+ * the same as the SQLite store. Only the connection and the table creation
+ * differ.
+ */
+public class SmartOnFhirSessionPostgresImpl extends SmartOnFhirSessionImpl {
+	private final DataSource dataSource;
+
+	public SmartOnFhirSessionPostgresImpl(DataSource dataSource) {
+		this.dataSource = dataSource;
+	}
+
+	public void init() {
+		String sql = "CREATE TABLE IF NOT EXISTS SmartOnFhirSession (session_id VARCHAR(255) PRIMARY KEY, "
+				+ "state VARCHAR(255), app_id VARCHAR(255), authorization_code TEXT UNIQUE, "
+				+ "access_token TEXT UNIQUE, auth_code_expiration_dt BIGINT, access_token_expiration_dt BIGINT, "
+				+ "refresh_token TEXT UNIQUE, launch_patient VARCHAR(255), launch_encounter VARCHAR(255))";
+
+		try (Connection conn = this.connect(); Statement stmt = conn.createStatement()) {
+			stmt.executeUpdate(sql);
+			stmt.executeUpdate("ALTER TABLE SmartOnFhirSession ADD COLUMN IF NOT EXISTS launch_patient VARCHAR(255)");
+			stmt.executeUpdate("ALTER TABLE SmartOnFhirSession ADD COLUMN IF NOT EXISTS launch_encounter VARCHAR(255)");
+			stmt.executeUpdate(
+					"CREATE INDEX IF NOT EXISTS idx_smartonfhirsession_app ON SmartOnFhirSession (app_id, authorization_code)");
+			stmt.executeUpdate(
+					"CREATE INDEX IF NOT EXISTS idx_smartonfhirsession_access_exp ON SmartOnFhirSession (access_token_expiration_dt)");
+			stmt.executeUpdate(
+					"CREATE INDEX IF NOT EXISTS idx_smartonfhirsession_app_patient ON SmartOnFhirSession (app_id, launch_patient)");
+			logger.info("SmartOnFhirSession table is ready in PostgreSQL");
+		} catch (SQLException e) {
+			logger.error("Unable to create SmartOnFhirSession table: " + e.getMessage());
+		}
+	}
+
+	@Override
+	public Connection connect() {
+		Connection conn = null;
+		try {
+			conn = dataSource.getConnection();
+		} catch (SQLException e) {
+			logger.error(e.getMessage());
+			e.printStackTrace();
+		}
+
+		return conn;
+	}
+}
@@ -0,0 +1,56 @@
+package edu.gatech.chai.omoponfhir.smart.dao;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Deletes expired SMART sessions. Deletes are done in batches so that the
+ * store is never locked for long.
+ */
+@Component
+public class SmartOnFhirSessionReaper {
+	final static Logger logger = LoggerFactory.getLogger(SmartOnFhirSessionReaper.class);
+
+	@Autowired
+	private SmartOnFhirSession smartOnFhirSession;
+
+	private int batchSize;
+	private long refreshGraceMillis;
+
+	public SmartOnFhirSessionReaper() {
+		batchSize = 500;
+		if (System.getenv("SMART_REAPER_BATCH_SIZE") != null) {
+			batchSize = Integer.valueOf(System.getenv("SMART_REAPER_BATCH_SIZE"));
+		}
+
+		// Sessions with refresh token can still get a new access token. Keep them
+		// for a while after the access token expired.
+		long refreshGraceHours = 24L;
+		if (System.getenv("SMART_REFRESH_GRACE_HOURS") != null) {
+			refreshGraceHours = Long.valueOf(System.getenv("SMART_REFRESH_GRACE_HOURS"));
+		}
+		refreshGraceMillis = refreshGraceHours * 3600000L;
+	}
+
+	@Scheduled(initialDelay = 60000L, fixedDelay = 300000L)
+	public void reap() {
+		long now = System.currentTimeMillis();
+		int total = 0;
+		int deleted;
+		try {
+			do {
+				deleted = smartOnFhirSession.deleteExpired(now, refreshGraceMillis, batchSize);
+				total += deleted;
+			} while (deleted >= batchSize);
+		} catch (RuntimeException e) {
+			logger.error("Expired session cleanup failed: " + e.getMessage());
+		}
+
+		if (total > 0) {
+			logger.info(total + " expired sessions deleted");
+		}
+	}
+}
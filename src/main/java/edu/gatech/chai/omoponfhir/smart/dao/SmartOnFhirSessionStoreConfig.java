@@ -0,0 +1,66 @@
+package edu.gatech.chai.omoponfhir.smart.dao;
+
+import java.io.File;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Selects the SMART session store with SMART_SESSION_STORE.
+ * <ul>
+ * <li>memory (default): {@link SmartOnFhirSessionMemoryImpl} with snapshots
+ * in SMART_SESSION_SNAPSHOT</li>
+ * <li>sqlite: {@link SmartOnFhirSessionImpl}</li>
+ * <li>postgres: {@link SmartOnFhirSessionPostgresImpl} on the OMOP data
+ * source. Use this when more than one node serves SMART requests.</li>
+ * </ul>
+ */
+@Configuration
+public class SmartOnFhirSessionStoreConfig {
+	final static Logger logger = LoggerFactory.getLogger(SmartOnFhirSessionStoreConfig.class);
+
+	// Spring calls close() on shutdown, which writes the last snapshot of the
+	// memory store.
+	@Bean
+	public SmartOnFhirSession smartOnFhirSession(ObjectProvider<DataSource> dataSource) {
+		String store = System.getenv("SMART_SESSION_STORE");
+		if (store == null || store.trim().isEmpty()) {
+			store = "memory";
+		}
+		store = store.trim().toLowerCase();
+		logger.info("SMART session store: " + store);
+
+		if ("sqlite".equals(store)) {
+			return new SmartOnFhirSessionImpl();
+		}
+
+		if ("postgres".equals(store) || "postgresql".equals(store)) {
+			SmartOnFhirSessionPostgresImpl postgresStore = new SmartOnFhirSessionPostgresImpl(dataSource.getObject());
+			postgresStore.init();
+			return postgresStore;
+		}
+
+		if (!"memory".equals(store)) {
+			logger.warn("Unknown SMART_SESSION_STORE " + store + ". Using memory");
+		}
+
+		String snapshotPath = System.getenv("SMART_SESSION_SNAPSHOT");
+		if (snapshotPath == null || snapshotPath.trim().isEmpty()) {
+			snapshotPath = System.getProperty("user.home") + File.separator + ".omoponfhir" + File.separator
+					+ "smartonfhir-sessions.json";
+		}
+
+		SmartOnFhirSessionMemoryImpl memoryStore = new SmartOnFhirSessionMemoryImpl(new File(snapshotPath.trim()));
+		if (!memoryStore.load()) {
+			// First start with memory store. Keep sessions we had in SQLite.
+			memoryStore.importFrom(new SmartOnFhirSessionImpl());
+		}
+
+		return memoryStore;
+	}
+}
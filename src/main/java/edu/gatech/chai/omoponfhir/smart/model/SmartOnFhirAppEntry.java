@@ -1,6 +1,9 @@
 package edu.gatech.chai.omoponfhir.smart.model;
 
-import java.sql.Date;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
 
 public class SmartOnFhirAppEntry {
 	private String appId;  // client-id in SMART on FHIR
@@ -9,8 +12,29 @@ public class SmartOnFhirAppEntry {
 	private String redirectUri; 
 	private String launchUri; // App URL
 	private String scope;
+
+	// Parsed from scope when it is set.
+	private Set<String> scopeSet = Collections.emptySet();
 	
 	public SmartOnFhirAppEntry() {}
+
+	public SmartOnFhirAppEntry(SmartOnFhirAppEntry other) {
+		this.appId = other.appId;
+		this.appName = other.appName;
+		this.appType = other.appType;
+		this.redirectUri = other.redirectUri;
+		this.launchUri = other.launchUri;
+		this.scope = other.scope;
+		this.scopeSet = other.scopeSet;
+	}
+
+	private static Set<String> parse(String value) {
+		if (value == null || value.trim().isEmpty()) {
+			return Collections.emptySet();
+		}
+
+		return Collections.unmodifiableSet(new LinkedHashSet<String>(Arrays.asList(value.trim().split("\\s+"))));
+	}
 	
 	public String getAppId() {
 		return this.appId;
@@ -44,6 +68,13 @@ public class SmartOnFhirAppEntry {
 		this.redirectUri = redirectUri;
 	}
 
+	/**
+	 * The redirect URI of a request must be exactly the registered one.
+	 */
+	public boolean hasRedirectUri(String redirectUri) {
+		return redirectUri != null && redirectUri.equals(this.redirectUri);
+	}
+
 	public String getLaunchUri() {
 		return this.launchUri;
 	}
@@ -58,5 +89,14 @@ public class SmartOnFhirAppEntry {
 	
 	public void setScope(String scope) {
 		this.scope = scope;
+		this.scopeSet = parse(scope);
+	}
+
+	public Set<String> getScopeSet() {
+		return this.scopeSet;
+	}
+
+	public boolean hasScope(String scope) {
+		return this.scopeSet.contains(scope);
 	}
 }
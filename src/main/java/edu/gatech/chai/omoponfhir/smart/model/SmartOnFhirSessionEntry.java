@@ -1,17 +1,20 @@
 package edu.gatech.chai.omoponfhir.smart.model;
 
-import java.sql.Date;
-
 public class SmartOnFhirSessionEntry {
 	private String sessionId;
 	private String state;
 	private String appId;
 	private String authorizationCode;
 	private String accessToken;
-	private Date authCodeExpirationDT;
-	private Date accessTokenExpirationDT;
+	// Expirations are epoch milliseconds.
+	private Long authCodeExpiration;
+	private Long accessTokenExpiration;
 	private String refreshToken;
 
+	// Launch context, taken from the launch parameter when authorized.
+	private String launchPatient;
+	private String launchEncounter;
+
 	public String getSessionId() {
 		return this.sessionId;
 	}
@@ -52,20 +55,20 @@ public class SmartOnFhirSessionEntry {
 		this.accessToken = accessToken;
 	}
 	
-	public Date getAuthCodeExpirationDT() {
-		return this.authCodeExpirationDT;
+	public Long getAuthCodeExpiration() {
+		return this.authCodeExpiration;
 	}
 	
-	public void setAuthCodeExpirationDT(Date authCodeExpirationDT) {
-		this.authCodeExpirationDT = authCodeExpirationDT;
+	public void setAuthCodeExpiration(Long authCodeExpiration) {
+		this.authCodeExpiration = authCodeExpiration;
 	}
 
-	public Date getAccessTokenExpirationDT() {
-		return this.accessTokenExpirationDT;
+	public Long getAccessTokenExpiration() {
+		return this.accessTokenExpiration;
 	}
 	
-	public void setAccessTokenExpirationDT(Date accessTokenExpirationDT) {
-		this.accessTokenExpirationDT = accessTokenExpirationDT;
+	public void setAccessTokenExpiration(Long accessTokenExpiration) {
+		this.accessTokenExpiration = accessTokenExpiration;
 	}
 	
 	public String getRefreshToken() {
@@ -75,4 +78,20 @@ public class SmartOnFhirSessionEntry {
 	public void setRefreshToken(String refreshToken) {
 		this.refreshToken = refreshToken;
 	}
+
+	public String getLaunchPatient() {
+		return this.launchPatient;
+	}
+
+	public void setLaunchPatient(String launchPatient) {
+		this.launchPatient = launchPatient;
+	}
+
+	public String getLaunchEncounter() {
+		return this.launchEncounter;
+	}
+
+	public void setLaunchEncounter(String launchEncounter) {
+		this.launchEncounter = launchEncounter;
+	}
 }
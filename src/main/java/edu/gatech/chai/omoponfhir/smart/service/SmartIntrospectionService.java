@@ -0,0 +1,303 @@
+package edu.gatech.chai.omoponfhir.smart.service;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+
+import edu.gatech.chai.omoponfhir.security.IntrospectionCache;
+import edu.gatech.chai.omoponfhir.security.IntrospectionResult;
+import edu.gatech.chai.omoponfhir.security.TokenIntrospector;
+import edu.gatech.chai.omoponfhir.smart.dao.SmartOnFhirAppImpl;
+import edu.gatech.chai.omoponfhir.smart.dao.SmartOnFhirSession;
+import edu.gatech.chai.omoponfhir.smart.model.SmartOnFhirAppEntry;
+import edu.gatech.chai.omoponfhir.smart.model.SmartOnFhirSessionEntry;
+import edu.gatech.chai.omoponfhir.smart.servlet.IntrospectResponse;
+
+/**
+ * Token introspection against the SMART session store. The /introspect
+ * endpoint uses this, and so does the FHIR server when both run in the same
+ * WAR (SMART_INTROSPECT_LOCAL=True), which avoids the HTTP round-trip.
+ * 
+ * Responses for active tokens are kept already encoded, keyed by token hash,
+ * until the token expires. The controller invalidates them when tokens are
+ * reissued or revoked, and when an app changes.
+ */
+@Service
+public class SmartIntrospectionService implements TokenIntrospector {
+	final static Logger logger = LoggerFactory.getLogger(SmartIntrospectionService.class);
+
+	public static final int timeout_min = 5;
+
+	private int accessTokenTimeoutMinutes;
+	private String authBearer;
+
+	private static final ObjectMapper objectMapper = new ObjectMapper();
+
+	// Element of batch responses for tokens that are not active (RFC 7662).
+	private static final byte[] INACTIVE_PAYLOAD = "{\"active\":false}".getBytes(StandardCharsets.UTF_8);
+
+	private final Cache<String, CachedIntrospection> introspectionCache;
+
+	@Autowired
+	protected SmartOnFhirAppImpl smartOnFhirApp;
+
+	@Autowired
+	protected SmartOnFhirSession smartOnFhirSession;
+
+	public SmartIntrospectionService() {
+		if (System.getenv("ACCESS_TOKEN_TIMEOUT_MIN") != null) {
+			accessTokenTimeoutMinutes = Integer.valueOf(System.getenv("ACCESS_TOKEN_TIMEOUT_MIN"));
+		} else {
+			accessTokenTimeoutMinutes = SmartIntrospectionService.timeout_min;
+		}
+
+		authBearer = System.getenv("AUTH_BEARER");
+		if (authBearer != null) {
+			authBearer = authBearer.trim();
+		}
+
+		long maxSize = 10000L;
+		if (System.getenv("SMART_INTROSPECT_CACHE_SIZE") != null) {
+			maxSize = Long.valueOf(System.getenv("SMART_INTROSPECT_CACHE_SIZE"));
+		}
+		introspectionCache = Caffeine.newBuilder().maximumSize(maxSize)
+				.expireAfter(new Expiry<String, CachedIntrospection>() {
+					@Override
+					public long expireAfterCreate(String key, CachedIntrospection value, long currentTime) {
+						return TimeUnit.MILLISECONDS.toNanos(Math.max(0L, value.expiresAt - System.currentTimeMillis()));
+					}
+
+					@Override
+					public long expireAfterUpdate(String key, CachedIntrospection value, long currentTime,
+							long currentDuration) {
+						return expireAfterCreate(key, value, currentTime);
+					}
+
+					@Override
+					public long expireAfterRead(String key, CachedIntrospection value, long currentTime,
+							long currentDuration) {
+						return currentDuration;
+					}
+				}).build();
+	}
+
+	/**
+	 * Introspection of an active token, encoded once.
+	 */
+	private static final class CachedIntrospection {
+		final byte[] payload;
+		final IntrospectionResult result;
+		final long expiresAt;
+
+		CachedIntrospection(byte[] payload, IntrospectionResult result, long expiresAt) {
+			this.payload = payload;
+			this.result = result;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	private CachedIntrospection getCached(String tokenHash) {
+		CachedIntrospection cached = introspectionCache.getIfPresent(tokenHash);
+		if (cached != null && cached.expiresAt > System.currentTimeMillis()) {
+			return cached;
+		}
+
+		return null;
+	}
+
+	private CachedIntrospection lookup(String token) {
+		String tokenHash = IntrospectionCache.hashToken(token);
+		CachedIntrospection cached = getCached(tokenHash);
+		if (cached != null) {
+			return cached;
+		}
+
+		return encode(tokenHash, getIntrospectResponse(token));
+	}
+
+	private CachedIntrospection encode(String tokenHash, IntrospectResponse introspectResponse) {
+		if (introspectResponse == null) {
+			return null;
+		}
+
+		CachedIntrospection cached;
+		try {
+			cached = new CachedIntrospection(objectMapper.writeValueAsBytes(introspectResponse),
+					new IntrospectionResult(introspectResponse.getActive(), introspectResponse.getTokenType(),
+							introspectResponse.getPatient(), introspectResponse.getScope(),
+							introspectResponse.getExp()),
+					introspectResponse.getExp() * 1000L);
+		} catch (JsonProcessingException e) {
+			logger.error("Unable to encode introspect response: " + e.getMessage());
+			return null;
+		}
+		introspectionCache.put(tokenHash, cached);
+
+		return cached;
+	}
+
+	/**
+	 * @return JSON encoded introspect response for the token. Tokens that are
+	 *         unknown or expired get {"active":false}. The array is shared. Do
+	 *         not modify.
+	 */
+	public byte[] getIntrospectPayload(String token) {
+		CachedIntrospection cached = lookup(token);
+		return cached == null ? INACTIVE_PAYLOAD : cached.payload;
+	}
+
+	/**
+	 * Introspects many tokens. Tokens that are not cached are looked up in the
+	 * session store together.
+	 * 
+	 * @return JSON array of introspect responses in the order of tokens.
+	 *         Tokens that are not active get {"active":false}.
+	 */
+	public byte[] getIntrospectPayload(List<String> tokens) {
+		byte[][] payloads = new byte[tokens.size()][];
+		String[] tokenHashes = new String[tokens.size()];
+		List<String> missing = new ArrayList<String>();
+
+		for (int i = 0; i < tokens.size(); i++) {
+			String token = tokens.get(i);
+			if (token == null || token.isEmpty()) {
+				payloads[i] = INACTIVE_PAYLOAD;
+				continue;
+			}
+
+			tokenHashes[i] = IntrospectionCache.hashToken(token);
+			CachedIntrospection cached = getCached(tokenHashes[i]);
+			if (cached != null) {
+				payloads[i] = cached.payload;
+			} else if (authBearer != null && token.equals(authBearer)) {
+				cached = lookup(token);
+				payloads[i] = cached == null ? INACTIVE_PAYLOAD : cached.payload;
+			} else {
+				missing.add(token);
+			}
+		}
+
+		Map<String, SmartOnFhirSessionEntry> smartSessions = Collections.emptyMap();
+		if (!missing.isEmpty()) {
+			smartSessions = smartOnFhirSession.getSmartOnFhirAppsByTokens(missing);
+		}
+
+		Long now = (new Date()).getTime();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(64 + tokens.size() * 128);
+		out.write('[');
+		for (int i = 0; i < tokens.size(); i++) {
+			if (payloads[i] == null) {
+				CachedIntrospection cached = encode(tokenHashes[i],
+						createIntrospectResponse(smartSessions.get(tokens.get(i)), now));
+				payloads[i] = cached == null ? INACTIVE_PAYLOAD : cached.payload;
+			}
+
+			if (i > 0) {
+				out.write(',');
+			}
+			out.write(payloads[i], 0, payloads[i].length);
+		}
+		out.write(']');
+
+		return out.toByteArray();
+	}
+
+	/**
+	 * Drops the cached response of the token. Call this when the token is
+	 * reissued, revoked or deleted.
+	 */
+	public void invalidate(String token) {
+		if (token != null && !token.isEmpty()) {
+			introspectionCache.invalidate(IntrospectionCache.hashToken(token));
+		}
+	}
+
+	/**
+	 * Drops all cached responses. Call this when an app's scope changes.
+	 */
+	public void invalidateAll() {
+		introspectionCache.invalidateAll();
+	}
+
+	public long getCachedCount() {
+		return introspectionCache.estimatedSize();
+	}
+
+	/**
+	 * @return introspect response for an active token, or null if the token is
+	 *         unknown or expired.
+	 */
+	public IntrospectResponse getIntrospectResponse(String token) {
+		IntrospectResponse introspectResponse;
+		Long now = (new Date()).getTime();
+
+		if (authBearer != null && !authBearer.isEmpty()) {
+			if (token.equals(authBearer)) {
+				// This is local bearer request. We allow with only Read. 
+				// And we always give a new 5min expiration time, which means it never expires.
+				logger.debug("local bearer token introspected");
+				introspectResponse = new IntrospectResponse(true, "launch profile openid online_access user/*.*");
+				introspectResponse.setExp((now/1000) + accessTokenTimeoutMinutes*60);
+				introspectResponse.setTokenType("Bearer");
+
+				return introspectResponse;
+			}
+		}
+
+		return createIntrospectResponse(smartOnFhirSession.getSmartOnFhirAppByToken(token), now);
+	}
+
+	private IntrospectResponse createIntrospectResponse(SmartOnFhirSessionEntry smartSession, Long now) {
+		if (smartSession == null) {
+			return null;
+		}
+
+		SmartOnFhirAppEntry smartApp = smartOnFhirApp.getSmartOnFhirApp(smartSession.getAppId());
+		if (smartApp == null) {
+			return null;
+		}
+
+		Long expire = smartSession.getAccessTokenExpiration();
+		if (expire == null || expire <= now) {
+			// Expired.
+			return null;
+		}
+
+		IntrospectResponse introspectResponse = new IntrospectResponse(true, smartApp.getScope());
+		String patient = smartSession.getLaunchPatient();
+		if (patient != null && !patient.isEmpty()) {
+			introspectResponse.setPatient(patient);
+		}
+
+		introspectResponse.setExp(expire / 1000);
+		introspectResponse.setTokenType("Bearer");
+
+		return introspectResponse;
+	}
+
+	@Override
+	public IntrospectionResult introspect(String token) {
+		CachedIntrospection cached = lookup(token);
+		if (cached == null) {
+			return IntrospectionResult.INACTIVE;
+		}
+
+		return cached.result;
+	}
+}
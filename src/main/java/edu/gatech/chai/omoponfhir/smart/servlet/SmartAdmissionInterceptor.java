@@ -0,0 +1,207 @@
+package edu.gatech.chai.omoponfhir.smart.servlet;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
+
+import edu.gatech.chai.omoponfhir.security.RateLimiter;
+
+/**
+ * Admission control for one auth endpoint (see SmartAuthServices-servlet.xml).
+ * A request has to pass, in order,
+ * <ul>
+ * <li>the per client limit (SMART_&lt;ENDPOINT&gt;_RATE_LIMIT_PER_SEC and
+ * _BURST). Callers with Basic credentials, such as resource servers calling
+ * introspect, are counted per credential. Other requests are counted per
+ * client_id and remote address, so the limit is per user of an app and users
+ * of the same app do not share it. client_id is not authenticated, so it never
+ * makes a key on its own.</li>
+ * <li>the limit for all clients
+ * (SMART_&lt;ENDPOINT&gt;_GLOBAL_RATE_LIMIT_PER_SEC and _BURST),</li>
+ * <li>and the concurrency gate (SMART_&lt;ENDPOINT&gt;_MAX_CONCURRENT), where
+ * it may wait up to SMART_&lt;ENDPOINT&gt;_QUEUE_WAIT_MS.</li>
+ * </ul>
+ * Rate limited requests get 429 and requests that could not get through the
+ * gate get 503, both with Retry-After. Each endpoint has its own limits, so a
+ * flood of token requests does not hold up introspection.
+ *
+ * A rate of 0 turns that limit off unless the environment sets one. Introspect
+ * has no rate limits by default: resource servers share one credential, so
+ * they would share one bucket, and a resource server answers 401 for a valid
+ * token when introspection is rejected.
+ *
+ * Counts are published over JMX as
+ * edu.gatech.chai.omoponfhir:type=SmartAdmission,endpoint=&lt;endpoint&gt;
+ */
+public class SmartAdmissionInterceptor extends HandlerInterceptorAdapter
+		implements SmartAdmissionInterceptorMBean, DisposableBean {
+	final static Logger logger = LoggerFactory.getLogger(SmartAdmissionInterceptor.class);
+
+	private static final String PERMIT_ATTRIBUTE = SmartAdmissionInterceptor.class.getName() + ".permit";
+
+	private final String endpoint;
+	private final RateLimiter clientRateLimiter;
+	private final RateLimiter globalRateLimiter;
+	private final Semaphore gate;
+	private final int maxConcurrent;
+	private final long queueWaitMillis;
+
+	private final AtomicLong overloadedCount = new AtomicLong(0L);
+	private ObjectName objectName;
+
+	public SmartAdmissionInterceptor(String endpoint, double clientPerSecond, double globalPerSecond,
+			int maxConcurrent) {
+		this.endpoint = endpoint;
+		String envPrefix = "SMART_" + endpoint.toUpperCase();
+
+		clientRateLimiter = RateLimiter.fromEnvironment(endpoint + "-client", envPrefix + "_RATE_LIMIT",
+				clientPerSecond, clientPerSecond * 2);
+		globalRateLimiter = RateLimiter.fromEnvironment(endpoint + "-global", envPrefix + "_GLOBAL_RATE_LIMIT",
+				globalPerSecond, globalPerSecond * 2);
+
+		if (System.getenv(envPrefix + "_MAX_CONCURRENT") != null) {
+			maxConcurrent = Integer.valueOf(System.getenv(envPrefix + "_MAX_CONCURRENT"));
+		}
+		this.maxConcurrent = maxConcurrent;
+		gate = maxConcurrent > 0 ? new Semaphore(maxConcurrent) : null;
+
+		long queueWait = 100L;
+		if (System.getenv(envPrefix + "_QUEUE_WAIT_MS") != null) {
+			queueWait = Long.valueOf(System.getenv(envPrefix + "_QUEUE_WAIT_MS"));
+		}
+		queueWaitMillis = queueWait;
+
+		registerMBean();
+	}
+
+	private void registerMBean() {
+		try {
+			MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+			objectName = new ObjectName("edu.gatech.chai.omoponfhir:type=SmartAdmission,endpoint=" + endpoint);
+			if (mBeanServer.isRegistered(objectName)) {
+				// Left over from a previous deployment.
+				mBeanServer.unregisterMBean(objectName);
+			}
+			mBeanServer.registerMBean(this, objectName);
+		} catch (JMException e) {
+			logger.warn("Unable to register admission metrics for " + endpoint + ": " + e.getMessage());
+			objectName = null;
+		}
+	}
+
+	private static String clientKey(HttpServletRequest request) {
+		String authHeader = request.getHeader("Authorization");
+		if (authHeader != null && authHeader.regionMatches(true, 0, "Basic ", 0, 6)) {
+			return "basic:" + DigestUtils.sha256Hex(authHeader.substring(6).trim());
+		}
+
+		String clientId = request.getParameter("client_id");
+		if (clientId == null || clientId.isEmpty()) {
+			return "addr:" + request.getRemoteAddr();
+		}
+
+		return "client:" + clientId + "\n" + request.getRemoteAddr();
+	}
+
+	@Override
+	public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler)
+			throws Exception {
+		String clientKey = clientKey(request);
+
+		if (clientRateLimiter != null && !clientRateLimiter.tryAcquire(clientKey)) {
+			reject(response, 429, clientRateLimiter.getRetryAfterSeconds(clientKey));
+			return false;
+		}
+
+		if (globalRateLimiter != null && !globalRateLimiter.tryAcquire("*")) {
+			reject(response, 429, globalRateLimiter.getRetryAfterSeconds("*"));
+			return false;
+		}
+
+		if (gate != null) {
+			boolean acquired;
+			try {
+				acquired = gate.tryAcquire(queueWaitMillis, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				acquired = false;
+			}
+
+			if (!acquired) {
+				overloadedCount.incrementAndGet();
+				logger.debug(endpoint + " is overloaded. Request from " + clientKey + " is shed");
+				reject(response, 503, 1L);
+				return false;
+			}
+			request.setAttribute(PERMIT_ATTRIBUTE, Boolean.TRUE);
+		}
+
+		return true;
+	}
+
+	@Override
+	public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler,
+			Exception ex) throws Exception {
+		if (request.getAttribute(PERMIT_ATTRIBUTE) != null) {
+			request.removeAttribute(PERMIT_ATTRIBUTE);
+			gate.release();
+		}
+	}
+
+	private static void reject(HttpServletResponse response, int status, long retryAfterSeconds) throws Exception {
+		response.setStatus(status);
+		response.setHeader("Retry-After", String.valueOf(retryAfterSeconds));
+		response.setContentType("application/json");
+		response.getWriter().write(status == 429 ? "{\"error\":\"too_many_requests\"}"
+				: "{\"error\":\"temporarily_unavailable\"}");
+	}
+
+	@Override
+	public void destroy() {
+		if (objectName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			} catch (JMException e) {
+				logger.debug(e.getMessage());
+			}
+		}
+	}
+
+	@Override
+	public long getRateLimitedCount() {
+		return clientRateLimiter == null ? 0L : clientRateLimiter.getRejectedCount();
+	}
+
+	@Override
+	public long getGlobalRateLimitedCount() {
+		return globalRateLimiter == null ? 0L : globalRateLimiter.getRejectedCount();
+	}
+
+	@Override
+	public long getOverloadedCount() {
+		return overloadedCount.get();
+	}
+
+	@Override
+	public int getInFlight() {
+		return gate == null ? 0 : maxConcurrent - gate.availablePermits();
+	}
+
+	@Override
+	public long getTrackedClientCount() {
+		return clientRateLimiter == null ? 0L : clientRateLimiter.getTrackedKeyCount();
+	}
+}
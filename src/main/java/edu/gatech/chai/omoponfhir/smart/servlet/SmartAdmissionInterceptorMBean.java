@@ -0,0 +1,12 @@
+package edu.gatech.chai.omoponfhir.smart.servlet;
+
+/**
+ * JMX view of {@link SmartAdmissionInterceptor}.
+ */
+public interface SmartAdmissionInterceptorMBean {
+	public long getRateLimitedCount();
+	public long getGlobalRateLimitedCount();
+	public long getOverloadedCount();
+	public int getInFlight();
+	public long getTrackedClientCount();
+}
@@ -18,24 +18,24 @@ package edu.gatech.chai.omoponfhir.smart.servlet;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
-import java.security.Key;
+import java.security.MessageDigest;
 import java.security.SecureRandom;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
 import java.util.UUID;
 
-import javax.crypto.spec.SecretKeySpec;
 import javax.servlet.http.HttpServletRequest;
 //import javax.servlet.annotation.WebServlet;
-import javax.xml.bind.DatatypeConverter;
 
 import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
@@ -52,14 +52,11 @@ import org.springframework.web.server.ResponseStatusException;
 import org.springframework.web.servlet.ModelAndView;
 
 import edu.gatech.chai.omoponfhir.smart.dao.SmartOnFhirAppImpl;
-import edu.gatech.chai.omoponfhir.smart.dao.SmartOnFhirSessionImpl;
+import edu.gatech.chai.omoponfhir.smart.dao.SmartOnFhirSession;
 import edu.gatech.chai.omoponfhir.smart.model.SmartOnFhirAppEntry;
 import edu.gatech.chai.omoponfhir.smart.model.SmartOnFhirAppListContainer;
 import edu.gatech.chai.omoponfhir.smart.model.SmartOnFhirSessionEntry;
-import io.jsonwebtoken.Header;
-import io.jsonwebtoken.JwtBuilder;
-import io.jsonwebtoken.Jwts;
-import io.jsonwebtoken.SignatureAlgorithm;
+import edu.gatech.chai.omoponfhir.smart.service.SmartIntrospectionService;
 
 /**
  * auth/ implementation for SMART on FHIR support for authentication
@@ -73,10 +70,12 @@ public class SmartAuthServicesController {
 	final static Logger logger = LoggerFactory.getLogger(SmartAuthServicesController.class);
 
 	private String authBasic;
-	private String jwtSecret;
+	private byte[] authBasicDigest;
+	private byte[] authBasicEncodedDigest;
 	private String smartStyleUrl;
-	private boolean simEhr;
 	private int accessTokenTimeoutMinutes;
+	private int introspectBatchMax;
+	private boolean jwtAccessToken;
 
 	private String baseUrl = "";
 
@@ -84,7 +83,16 @@ public class SmartAuthServicesController {
 	protected SmartOnFhirAppImpl smartOnFhirApp;
 
 	@Autowired
-	protected SmartOnFhirSessionImpl smartOnFhirSession;
+	protected SmartOnFhirSession smartOnFhirSession;
+
+	@Autowired
+	protected SmartIntrospectionService smartIntrospectionService;
+
+	@Autowired
+	protected SmartJwtSigner smartJwtSigner;
+
+	@Autowired
+	protected SmartTokenRevocationList smartTokenRevocationList;
 
 	public static final int timeout_min = 5;
 
@@ -108,24 +116,31 @@ public class SmartAuthServicesController {
 		if (authBasic == null)
 			authBasic = "client:secret";
 
-		jwtSecret = System.getenv("JWT_SECRET");
-		if (jwtSecret == null) {
-			jwtSecret = "thisismysecret";
-		}
+		// Compare digests so that the check takes the same time for any input.
+		authBasicDigest = DigestUtils.sha256(authBasic);
+		authBasicEncodedDigest = DigestUtils
+				.sha256(Base64.encodeBase64String(authBasic.getBytes(StandardCharsets.UTF_8)));
 
 		smartStyleUrl = System.getenv("SMART_STYLE_URL");
 		if (smartStyleUrl == null) {
 			smartStyleUrl = "http://localhost/smart-style.json";
 		}
 
-		simEhr = false;
+		introspectBatchMax = 100;
+		if (System.getenv("SMART_INTROSPECT_BATCH_MAX") != null) {
+			introspectBatchMax = Integer.valueOf(System.getenv("SMART_INTROSPECT_BATCH_MAX"));
+		}
 		
 		if (System.getenv("ACCESS_TOKEN_TIMEOUT_MIN") != null) {
 			accessTokenTimeoutMinutes = Integer.valueOf(System.getenv("ACCESS_TOKEN_TIMEOUT_MIN"));
 		} else {
 			accessTokenTimeoutMinutes = SmartAuthServicesController.timeout_min;
 		}
-		
+
+		// Access tokens are opaque by default. With jwt, access tokens are signed
+		// JWTs that resource servers can validate without calling introspect.
+		String accessTokenFormat = System.getenv("SMART_ACCESS_TOKEN_FORMAT");
+		jwtAccessToken = accessTokenFormat != null && "jwt".equalsIgnoreCase(accessTokenFormat.trim());
 	}
 
 //	@ModelAttribute("oauth2attr")
@@ -133,73 +148,47 @@ public class SmartAuthServicesController {
 //		return new JSONObject();
 //	}
 
-	private JSONObject decodeJWT(String jwtToken) {
-		String[] jwtSplitted = jwtToken.split("\\.");
-
-		String jwtBodyBase64 = jwtSplitted[1];
-		String jwtBody = new String(Base64.decodeBase64(jwtBodyBase64));
-
-		return new JSONObject(jwtBody);
-	}
-
-	private String getPatientIdFromJWT(String code) {
-		JSONObject jwtBodyJson = decodeJWT(code);
-		if (jwtBodyJson.has("context")) {
-			JSONObject context = jwtBodyJson.getJSONObject("context");
-			if (context.has("patient")) {
-				return context.getString("patient");
-			}
-		}
-
-		return null;
-	}
-
-	private String getPatientFromLaunchContext(String launchContext) {
-		if (launchContext == null || launchContext.isEmpty()) {
-			return null;
-		}
-
-		String launchCode = new String(Base64.decodeBase64(launchContext));
-		logger.debug("Launch Code:" + launchCode);
-
-		// decode the code.
-		JSONObject codeJson = new JSONObject(launchCode);
-		JSONObject decodedCode = SmartLauncherCodec.decode(codeJson);
-		if (decodedCode.has("patient")) {
-			return decodedCode.getString("patient");
-		}
-
-		return null;
-	}
-
-	private String generateJWT(String launchContext, String scope, SmartOnFhirAppEntry smartApp) {
-		SignatureAlgorithm signatureAlgorithm = SignatureAlgorithm.HS256;
-
+	private String generateJWT(SmartLaunchContext launch, String scope, SmartOnFhirAppEntry smartApp) {
 		long nowMillis = System.currentTimeMillis();
 		Date now = new Date(nowMillis);
 		Date expiration = new Date(nowMillis + 300000); // 5m later
 
-		byte[] apiKeySecretBytes = DatatypeConverter.parseBase64Binary(jwtSecret);
-		Key signingKey = new SecretKeySpec(apiKeySecretBytes, signatureAlgorithm.getJcaName());
-
 		JSONObject payload = new JSONObject();
 		JSONObject context = new JSONObject();
-		context.put("need_patient_banner", !simEhr);
+		context.put("need_patient_banner", launch == null || !launch.isSimEhr());
 		context.put("smart_style_url", smartStyleUrl);
 
-		String patientId = getPatientFromLaunchContext(launchContext);
-		if (patientId != null && !patientId.isEmpty())
-			context.put("patient", patientId);
+		if (launch != null) {
+			if (launch.getPatient() != null && !launch.getPatient().isEmpty())
+				context.put("patient", launch.getPatient());
+			if (launch.getEncounter() != null && !launch.getEncounter().isEmpty())
+				context.put("encounter", launch.getEncounter());
+		}
 
 		payload.put("context", context);
 		payload.put("client_id", smartApp.getAppId());
 		payload.put("scope", scope);
+		// Without it, authorizations of one client in the same second with the
+		// same launch would get the same code.
+		payload.put("jti", SmartAuthServicesController.generateNewToken());
 		payload.put("iat", now.getTime() / 1000);
 		payload.put("exp", expiration.getTime() / 1000);
 
-		JwtBuilder jwtBuilder = Jwts.builder().setHeaderParam(Header.TYPE, Header.JWT_TYPE)
-				.setPayload(payload.toString()).signWith(signatureAlgorithm, signingKey);
-		return jwtBuilder.compact();
+		return smartJwtSigner.sign(payload);
+	}
+
+	private String generateAccessTokenJWT(SmartOnFhirAppEntry smartApp, String patientId, long expiration) {
+		JSONObject payload = new JSONObject();
+		payload.put("client_id", smartApp.getAppId());
+		payload.put("scope", smartApp.getScope());
+		payload.put("token_type", "Bearer");
+		if (patientId != null && !patientId.isEmpty())
+			payload.put("patient", patientId);
+		payload.put("jti", SmartAuthServicesController.generateNewToken());
+		payload.put("iat", System.currentTimeMillis() / 1000);
+		payload.put("exp", expiration / 1000);
+
+		return smartJwtSigner.sign(payload);
 	}
 
 	private String encodeValue(String value) throws UnsupportedEncodingException {
@@ -227,7 +216,7 @@ public class SmartAuthServicesController {
 			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid client_id");
 		}
 
-		if (!redirectUri.equals(smartApp.getRedirectUri())) {
+		if (!smartApp.hasRedirectUri(redirectUri)) {
 			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid redirect_url");
 		}
 
@@ -289,14 +278,13 @@ public class SmartAuthServicesController {
 			}
 		}
 
-		// Check the scope.
-		String[] scopeEntries = scope.split(" ");
-		String myScope = smartApp.getScope();
+		// Check the scope. Every requested scope must be registered for the app.
+		String[] scopeEntries = scope.trim().split("\\s+");
 		for (String scopeEntry : scopeEntries) {
-			if (!myScope.contains(scopeEntry)) {
+			if (!smartApp.hasScope(scopeEntry)) {
 				// Out of scope
 				try {
-					logger.info("scope, " + scopeEntry + ", is not valid");
+					logger.info("scope, {}, is not valid", scopeEntry);
 					error = "invalid_scope";
 					errorDesc = encodeValue("The requested scope is invalid, unknown, or malformed");
 					model.addAttribute("error", error);
@@ -314,26 +302,19 @@ public class SmartAuthServicesController {
 		// The launchContext, if exists, contains a context to resolve this to
 		// patient, encounter, provider, etc. We used the encoding that smart on fhir
 		// launcher is using.
-		if (launchContext != null && !launchContext.isEmpty()) {
-			String launchCode = new String(Base64.decodeBase64(launchContext));
-			logger.debug("Launch Code:" + launchCode);
-
-			// decode the code.
-			JSONObject codeJson = new JSONObject(launchCode);
-			JSONObject decodedCode = SmartLauncherCodec.decode(codeJson);
-			if (decodedCode.has("launch_ehr") && "1".equals(decodedCode.getString("launch_ehr"))) {
+		SmartLaunchContext launch = SmartLaunchContext.decode(launchContext);
+		if (launch != null) {
+			if (launch.isLaunchEhr()) {
 				// We are launching in EHR mode.
 				// Do something here if you need to do anything
 			}
 
-			if (decodedCode.has("sim_ehr") && "1".equals(decodedCode.getString("sim_ehr"))) {
-				simEhr = true;
-
+			if (launch.isSimEhr()) {
 				// We are simulating EHR.
-				if (decodedCode.has("auth_error")) {
+				if (launch.getAuthError() != null) {
 					// Auth error simulation is requested.
 					// Return error as requested.
-					error = decodedCode.getString("auth_error");
+					error = launch.getAuthError();
 					errorDesc = SmartLauncherCodec.getSimErrorDesc(error);
 					model.addAttribute("error", error);
 					model.addAttribute("error_description", errorDesc);
@@ -390,8 +371,7 @@ public class SmartAuthServicesController {
 //		// Alway pass this information so that JSP can route to correct endpoint
 //		model.addAttribute("base_url", baseUrl);
 
-		logger.debug(
-				"Token Requested:\ncode: " + code + "\nredirect_uri:" + redirectUri + "\nclient_id:" + appId + "\n");
+		logger.debug("Token requested with grant_type:{}, redirect_uri:{}, client_id:{}", grantType, redirectUri, appId);
 		if (!"authorization_code".equals(grantType) && !"refresh_token".equals(grantType)) {
 			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "unsupported_grant_type");
 		}
@@ -410,7 +390,7 @@ public class SmartAuthServicesController {
 
 			smartSession = smartOnFhirSession.getSmartOnFhirAppByRefreshToken(refreshCode);
 			if (smartSession == null) {
-				logger.debug("Session does not exist for the provided refersh token: "+refreshCode);
+				logger.debug("Session does not exist for the provided refresh token");
 				throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "invalid_grant");
 			}
 
@@ -423,7 +403,7 @@ public class SmartAuthServicesController {
 			String refreshToken = smartSession.getRefreshToken();			
 			if (!refreshToken.equals(refreshCode)) {
 				// Incorrect refresh token.
-				logger.debug("Incorrect refresh token ("+refreshCode+") provided. Correct refresh token:"+refreshToken);
+				logger.debug("Incorrect refresh token provided for session {}", smartSession.getSessionId());
 				throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "invalid_grant");
 			}
 			
@@ -443,19 +423,19 @@ public class SmartAuthServicesController {
 			smartApp = smartOnFhirApp.getSmartOnFhirApp(appId, redirectUri);
 			if (smartApp == null) {
 				// Invalid client-id. We should send with bad request.
-				logger.debug("App does not exist for the AppID:"+appId+", and redirectUri:"+redirectUri);
+				logger.debug("App does not exist for the AppID:{}, and redirectUri:{}", appId, redirectUri);
 				throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "invalid_request");
 			}
 			smartSession = smartOnFhirSession.getSmartOnFhirSession(appId, code);
 			if (smartSession == null) {
-				logger.debug("Session does not exist for the AppID:"+appId+", and auth code:"+code);
+				logger.debug("Session does not exist for the AppID:{} and the auth code", appId);
 				throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "invalid_request");
 			}
 			
 			// Check if we are in the authorized time window.
-			Long expire = smartSession.getAuthCodeExpirationDT().getTime();
-			if (expire <= now) {
-				logger.info("Authorization for session-id: " + smartSession.getSessionId() + " is expired");
+			Long expire = smartSession.getAuthCodeExpiration();
+			if (expire == null || expire <= now) {
+				logger.info("Authorization for session-id: {} is expired", smartSession.getSessionId());
 
 				// Expired. 400 respond with invalid_grant
 				throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "invalid_grant");
@@ -465,38 +445,57 @@ public class SmartAuthServicesController {
 		// It is OK the access token is expired as long as the auth code is not expired.
 		// Again, if this is refresh token, we move on.
 
-		// generate access_token if needed.
+		String patient = smartSession.getLaunchPatient();
+
+		// We will issue new access token expiration date.
+		Calendar calendar = Calendar.getInstance();
+		calendar.add(Calendar.MINUTE, accessTokenTimeoutMinutes);
+		long expiresIn = calendar.getTimeInMillis();
+
+		// Issue tokens. New tokens, if any, and the new expiration are written in
+		// one update. If a generated token is already in use, the store refuses
+		// it and we generate again.
 		String accessToken = smartSession.getAccessToken();
 		String refreshToken = smartSession.getRefreshToken();
 		Long expiration;
-		if (accessToken == null || accessToken.isEmpty()) {
-			boolean exists = true;
-			while (exists) {
-				accessToken = SmartAuthServicesController.generateNewToken();
-				if (smartOnFhirSession.getSmartOnFhirAppByToken(accessToken) == null)
-					exists = false;
+		int issued = SmartOnFhirSession.TOKEN_IN_USE;
+		for (int attempt = 0; attempt < 3 && issued == SmartOnFhirSession.TOKEN_IN_USE; attempt++) {
+			String newAccessToken = smartSession.getAccessToken();
+			String newRefreshToken = smartSession.getRefreshToken();
+			if (jwtAccessToken) {
+				// JWT access token carries its own exp. So, we sign a new one every time.
+				newAccessToken = generateAccessTokenJWT(smartApp, patient, expiresIn);
+				if (newRefreshToken == null || newRefreshToken.isEmpty()) {
+					newRefreshToken = SmartAuthServicesController.generateNewToken();
+				}
+			} else if (newAccessToken == null || newAccessToken.isEmpty()) {
+				// Add new refresh token as well as the access token is new.
+				newAccessToken = SmartAuthServicesController.generateNewToken();
+				newRefreshToken = SmartAuthServicesController.generateNewToken();
 			}
-			smartOnFhirSession.putAccessCode(appId, code, accessToken);
 
-			// Add new refresh token as well as the access token is new.
-			exists = true;
-			while (exists) {
-				refreshToken = SmartAuthServicesController.generateNewToken();
-				if (smartOnFhirSession.getSmartOnFhirAppByRefreshToken(refreshToken) == null)
-					exists = false;
-			}
-			smartOnFhirSession.putRefereshCode(appId, code, refreshToken);
-		} 
-//		else {
-//			expiration = (now - expire) / 1000;
-//		}
-		
-		// We will issue new access token expiration date. Update Access Token Timeout.
-		Calendar calendar = Calendar.getInstance();
-		calendar.add(Calendar.MINUTE, accessTokenTimeoutMinutes);
-		java.sql.Date expiresIn = new java.sql.Date(calendar.getTimeInMillis());
-		smartOnFhirSession.updateAccessTokenTimeout(smartSession.getSessionId(), expiresIn);
-		
+			issued = smartOnFhirSession.issueTokens(smartSession.getSessionId(), smartSession.getAccessToken(),
+					newAccessToken, newRefreshToken, expiresIn);
+			accessToken = newAccessToken;
+			refreshToken = newRefreshToken;
+		}
+
+		if (issued == SmartOnFhirSession.SESSION_CHANGED) {
+			// Another grant on this session won.
+			logger.debug("Session {} changed during token issuance", smartSession.getSessionId());
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "invalid_grant");
+		} else if (issued != SmartOnFhirSession.ISSUED) {
+			throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Unable to issue token");
+		}
+
+		smartIntrospectionService.invalidate(smartSession.getAccessToken());
+
+		// The previous JWT access token is still valid by its signature. Revoke it.
+		if (jwtAccessToken && smartSession.getAccessToken() != null && !smartSession.getAccessToken().isEmpty()) {
+			smartTokenRevocationList.supersede(smartSession.getAccessToken(),
+					smartSession.getAccessTokenExpiration());
+		}
+
 		expiration = (long) accessTokenTimeoutMinutes * 60;
 
 		TokenResponse tokenResponse = new TokenResponse();
@@ -506,19 +505,33 @@ public class SmartAuthServicesController {
 		tokenResponse.setScope(smartApp.getScope());
 		tokenResponse.setTokenType("Bearer");
 
-		String patient = getPatientIdFromJWT(smartSession.getAuthorizationCode());
 		if (patient != null && !patient.isEmpty()) {
 			tokenResponse.setPatient(patient);
 		}
 
-		logger.debug("token: responding with " + tokenResponse.toString());
+		logger.debug("token: issued for session {}, expires in {}s", smartSession.getSessionId(), expiration);
 
 		return new ResponseEntity<TokenResponse>(tokenResponse, HttpStatus.OK);
 //		return tokenResponse.toString();
 	}
 
+	private boolean isAuthBasic(String authReq) {
+		if (authReq == null || !(authReq.startsWith("Basic ") || authReq.startsWith("basic "))) {
+			return false;
+		}
+
+		String basicKey = authReq.substring(6).trim();
+		// Clients send the same header every time. Skip decoding for those.
+		if (MessageDigest.isEqual(authBasicEncodedDigest, DigestUtils.sha256(basicKey))) {
+			return true;
+		}
+
+		String base64decoded = new String(Base64.decodeBase64(basicKey), StandardCharsets.UTF_8);
+		return MessageDigest.isEqual(authBasicDigest, DigestUtils.sha256(base64decoded));
+	}
+
 	@PostMapping(value = "/introspect")
-	public ResponseEntity<IntrospectResponse> introspect(HttpServletRequest request, @RequestParam(name = "token", required = true) String token,
+	public ResponseEntity<byte[]> introspect(HttpServletRequest request, @RequestParam(name = "token", required = true) String token,
 			Model model) {
 		
 		// Check Basic authentication.
@@ -527,63 +540,133 @@ public class SmartAuthServicesController {
 			throw new ResponseStatusException(HttpStatus.UNAUTHORIZED, "No Authorization Header");
 		}
 		
-		IntrospectResponse introspectResponse = null;
 		if (authReq.startsWith("Basic ") || authReq.startsWith("basic ")) {
-			String basicKey = authReq.substring(6);
-			String base64decoded = new String(Base64.decodeBase64(basicKey));
-			if (!authBasic.equals(base64decoded)) {
-				logger.info("Basic Authorization Failed: "+base64decoded+" requested");
+			if (!isAuthBasic(authReq)) {
+				logger.info("Basic Authorization Failed from {}", request.getRemoteAddr());
 				throw new ResponseStatusException(HttpStatus.UNAUTHORIZED, "Basic Authorization Failed");
 			}
 		} else {
 			throw new ResponseStatusException(HttpStatus.UNAUTHORIZED, "Invalid Authorization Header");
 		}
 
-		Long now = (new Date()).getTime();
+		// Encoded once per token and reused until the token expires. Tokens that
+		// are unknown, expired, or whose app is gone are answered with 200 and
+		// {"active":false} (RFC 7662), so resource servers can cache the answer.
+		return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON)
+				.body(smartIntrospectionService.getIntrospectPayload(token));
+	}
+
+	/**
+	 * Introspects many tokens in one request. Tokens are sent as repeated token
+	 * parameters and the response is an array of introspect responses in the
+	 * same order.
+	 */
+	@PostMapping(value = "/introspect/batch")
+	public ResponseEntity<byte[]> introspectBatch(HttpServletRequest request,
+			@RequestParam(name = "token", required = true) List<String> tokens, Model model) {
+
+		if (!isAuthBasic(request.getHeader("Authorization"))) {
+			logger.info("Basic Authorization Failed from {}", request.getRemoteAddr());
+			throw new ResponseStatusException(HttpStatus.UNAUTHORIZED, "Basic Authorization Failed");
+		}
+
+		if (tokens.size() > introspectBatchMax) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+					"At most " + introspectBatchMax + " tokens can be introspected at once");
+		}
+
+		return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON)
+				.body(smartIntrospectionService.getIntrospectPayload(tokens));
+	}
+
+	/**
+	 * Token revocation (RFC 7009). Apps are public clients, so the client
+	 * identifies itself with client_id and can only revoke its own tokens.
+	 * Requests with the server's Basic credentials can revoke any token.
+	 * Revoking a refresh token ends the whole session. Unknown tokens are
+	 * answered with 200 as the RFC says.
+	 */
+	@PostMapping(value = "/revoke")
+	public ResponseEntity<Void> revoke(HttpServletRequest request,
+			@RequestParam(name = "token", required = true) String token,
+			@RequestParam(name = "token_type_hint", required = false) String tokenTypeHint,
+			@RequestParam(name = "client_id", required = false) String appId) {
+
+		boolean trusted = isAuthBasic(request.getHeader("Authorization"));
+		if (!trusted && (appId == null || appId.isEmpty() || !smartOnFhirApp.exists(appId))) {
+			throw new ResponseStatusException(HttpStatus.UNAUTHORIZED, "invalid_client");
+		}
 
-		String authBearer = System.getenv("AUTH_BEARER");
-		if (authBearer != null && !authBearer.isEmpty()) {
-			logger.debug("local bearer "+token);
-			if (token.equals(authBearer.trim())) {
-				// This is local bearer request. We allow with only Read. 
-				// And we always give a new 5min expiration time, which means it never expires.
-				introspectResponse = new IntrospectResponse(true, "launch profile openid online_access user/*.*");
-				introspectResponse.setExp((now/1000) + accessTokenTimeoutMinutes*60);
-				introspectResponse.setTokenType("Bearer");
-
-				return new ResponseEntity<IntrospectResponse>(introspectResponse, HttpStatus.OK);
+		boolean refreshToken = "refresh_token".equals(tokenTypeHint);
+		SmartOnFhirSessionEntry smartSession;
+		if (refreshToken) {
+			smartSession = smartOnFhirSession.getSmartOnFhirAppByRefreshToken(token);
+			if (smartSession == null) {
+				smartSession = smartOnFhirSession.getSmartOnFhirAppByToken(token);
+				refreshToken = false;
+			}
+		} else {
+			smartSession = smartOnFhirSession.getSmartOnFhirAppByToken(token);
+			if (smartSession == null) {
+				smartSession = smartOnFhirSession.getSmartOnFhirAppByRefreshToken(token);
+				refreshToken = smartSession != null;
 			}
 		}
-		
-		SmartOnFhirSessionEntry smartSession = smartOnFhirSession.getSmartOnFhirAppByToken(token);
+
 		if (smartSession == null) {
-//			throw new ResponseStatusException(HttpStatus.UNAUTHORIZED, "invalid_client");
-			return new ResponseEntity<IntrospectResponse>(introspectResponse, HttpStatus.UNAUTHORIZED);
+			logger.debug("revoke: unknown token");
+			return ResponseEntity.ok().build();
 		}
 
-		SmartOnFhirAppEntry smartApp = smartOnFhirApp.getSmartOnFhirApp(smartSession.getAppId());
-		if (smartApp == null) {
-//			throw new ResponseStatusException(HttpStatus.UNAUTHORIZED, "invalid_client");
-			return new ResponseEntity<IntrospectResponse>(introspectResponse, HttpStatus.UNAUTHORIZED);
+		if (!trusted && !appId.equals(smartSession.getAppId())) {
+			logger.info("revoke: client {} tried to revoke a token of another client", appId);
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "invalid_request");
 		}
 
-		Long expire = smartSession.getAccessTokenExpirationDT().getTime();
-		if (expire <= now) {
-			// Expired. 401 respond with invalid_grant
-//			throw new ResponseStatusException(HttpStatus.UNAUTHORIZED, "invalid_grant");
-			return new ResponseEntity<IntrospectResponse>(introspectResponse, HttpStatus.UNAUTHORIZED);
+		// Resource servers may have the access token cached or validate it by
+		// itself. They learn about it from the revocation filter.
+		String accessToken = smartSession.getAccessToken();
+		smartTokenRevocationList.revoke(accessToken, smartSession.getAccessTokenExpiration());
+		smartIntrospectionService.invalidate(accessToken);
+
+		if (refreshToken) {
+			smartOnFhirSession.delete(smartSession.getSessionId());
+			logger.debug("revoke: session {} ended", smartSession.getSessionId());
+		} else if (accessToken != null) {
+			// The refresh token stays valid.
+			smartOnFhirSession.issueTokens(smartSession.getSessionId(), accessToken, null,
+					smartSession.getRefreshToken(), 0L);
+			logger.debug("revoke: access token of session {} revoked", smartSession.getSessionId());
 		}
 
-		introspectResponse = new IntrospectResponse(true, smartApp.getScope());
-		String patient = getPatientIdFromJWT(smartSession.getAuthorizationCode());
-		if (patient != null && !patient.isEmpty()) {
-			introspectResponse.setPatient(patient);
-		}
+		return ResponseEntity.ok().build();
+	}
+
+	@GetMapping(value = "/jwks", produces = "application/json")
+	@ResponseBody
+	public String jwks() {
+		return smartJwtSigner.getJwks();
+	}
+
+	@GetMapping(value = "/revoked", produces = "application/json")
+	@ResponseBody
+	public String revoked() {
+		return smartTokenRevocationList.toJson().toString();
+	}
 
-		introspectResponse.setExp(expire / 1000);
-		introspectResponse.setTokenType("Bearer");
+	/**
+	 * Bloom filter of revoked token hashes. Pollers send the version they have
+	 * and get 204 if it is still current. The filter is only built for pollers
+	 * that need it.
+	 */
+	@GetMapping(value = "/revoked/filter")
+	public ResponseEntity<String> revokedFilter(@RequestParam(name = "version", required = false) Long version) {
+		if (version != null && version == smartTokenRevocationList.getVersion()) {
+			return ResponseEntity.noContent().build();
+		}
 
-		return new ResponseEntity<IntrospectResponse>(introspectResponse, HttpStatus.OK);
+		return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON)
+				.body(smartTokenRevocationList.getFilterJson());
 	}
 
 	@PostMapping(value = "/after-auth")
@@ -610,45 +693,45 @@ public class SmartAuthServicesController {
 
 		SmartOnFhirAppEntry smartApp = smartOnFhirApp.getSmartOnFhirApp(clientId);
 
-		// Check if an authorization already exists for this session.
-		// Get all the sessions for this client and see if any session has a same
-		// patient id. We already checked scope in authorize().
+		// Decode the launch context once. It is stored with the session so that
+		// token and introspect do not need to decode anything.
+		SmartLaunchContext launch = SmartLaunchContext.decode(launchContext);
+		String launchPatient = launch == null ? null : launch.getPatient();
+		String launchEncounter = launch == null ? null : launch.getEncounter();
+
+		// Check if an authorization already exists for this session. A session of
+		// this client for the same patient is reused while its access token is
+		// valid. We already checked scope in authorize().
 		boolean createNewSession = true;
 		SmartOnFhirSessionEntry sessionEntry = null;
-		List<SmartOnFhirSessionEntry> smartSessions = smartOnFhirSession.getSmartOnFhirSessionsByAppId(clientId);
-		for (SmartOnFhirSessionEntry entry : smartSessions) {
-			if (entry.getAccessToken() != null && entry.getAccessToken().equals(clientId)) {
-				String patientInCode = getPatientIdFromJWT(entry.getAuthorizationCode());
-				String patientInContext = getPatientFromLaunchContext(launchContext);
-				if (patientInCode != null && !patientInCode.isEmpty() && patientInContext != null
-						&& !patientInContext.isEmpty()) {
-					if (patientInCode.equals(patientInContext)) {
-						sessionEntry = entry;
-						createNewSession = false;
-						logger.debug("There is an existing session for this patient, " + patientInCode
-								+ ", with client-id: " + clientId);
-						break;
-					}
-				}
+		if (launchPatient != null && !launchPatient.isEmpty()) {
+			sessionEntry = smartOnFhirSession.getSmartOnFhirSessionByPatient(clientId, launchPatient,
+					System.currentTimeMillis());
+			if (sessionEntry != null) {
+				createNewSession = false;
+				logger.debug("There is an existing session for this patient, {}, with client-id: {}", launchPatient,
+						clientId);
 			}
 		}
 
-		// Create a session for this authorization.
-		if (sessionEntry == null) {
-			String code = generateJWT(launchContext, scope, smartApp);
-			if (code == null || code.isEmpty()) {
-				try {
-					error = "server_error";
-					errorDesc = encodeValue("Internal Server Error");
-					model.addAttribute("error", error);
-					model.addAttribute("error_description", errorDesc);
-					return new ModelAndView("redirect:" + smartApp.getRedirectUri(), model);
-				} catch (UnsupportedEncodingException e) {
-					e.printStackTrace();
-					throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Internal Error", e);
-				}
+		// Every authorization gets a new code, also when the session is reused.
+		// The code of the session may already have been redeemed.
+		String code = generateJWT(launch, scope, smartApp);
+		if (code == null || code.isEmpty()) {
+			try {
+				error = "server_error";
+				errorDesc = encodeValue("Internal Server Error");
+				model.addAttribute("error", error);
+				model.addAttribute("error_description", errorDesc);
+				return new ModelAndView("redirect:" + smartApp.getRedirectUri(), model);
+			} catch (UnsupportedEncodingException e) {
+				e.printStackTrace();
+				throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Internal Error", e);
 			}
+		}
 
+		// Create a session for this authorization.
+		if (sessionEntry == null) {
 			sessionEntry = new SmartOnFhirSessionEntry();
 			String uuid = "";
 			boolean exists = true;
@@ -657,15 +740,18 @@ public class SmartAuthServicesController {
 				exists = smartOnFhirSession.exists(uuid);
 			}
 			sessionEntry.setSessionId(uuid);
-			sessionEntry.setAuthorizationCode(code);
 			sessionEntry.setAppId(smartApp.getAppId());
 		}
+
+		// A reused session takes the context of this launch.
+		sessionEntry.setAuthorizationCode(code);
+		sessionEntry.setLaunchPatient(launchPatient);
+		sessionEntry.setLaunchEncounter(launchEncounter);
 		sessionEntry.setState(state);
 
 		Calendar calendar = Calendar.getInstance();
 		calendar.add(Calendar.MINUTE, accessTokenTimeoutMinutes);
-		java.sql.Date expiresIn = new java.sql.Date(calendar.getTimeInMillis());
-		sessionEntry.setAuthCodeExpirationDT(expiresIn);
+		sessionEntry.setAuthCodeExpiration(calendar.getTimeInMillis());
 
 		if (createNewSession) {
 			smartOnFhirSession.save(sessionEntry);
@@ -926,6 +1012,9 @@ public class SmartAuthServicesController {
 
 		smartOnFhirApp.update(appEntry);
 
+		// Cached introspect responses carry the old scope.
+		smartIntrospectionService.invalidateAll();
+
 		populateModel(model, appEntry);
 		return "app_view";
 	}
@@ -959,6 +1048,11 @@ public class SmartAuthServicesController {
 
 	@DeleteMapping(value = "/app-delete")
 	public String appDelete(@RequestParam(name = "client_id", required = true) String appId, Model model) {
+		// Tokens of this app may still be validated locally by resource servers.
+		for (SmartOnFhirSessionEntry sessionEntry : smartOnFhirSession.getSmartOnFhirSessionsByAppId(appId)) {
+			smartTokenRevocationList.revoke(sessionEntry.getAccessToken(), sessionEntry.getAccessTokenExpiration());
+			smartIntrospectionService.invalidate(sessionEntry.getAccessToken());
+		}
 		smartOnFhirSession.deleteByAppId(appId);
 		smartOnFhirApp.delete(appId);
 
@@ -0,0 +1,353 @@
+package edu.gatech.chai.omoponfhir.smart.servlet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.Key;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.spec.SecretKeySpec;
+import javax.xml.bind.DatatypeConverter;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.stereotype.Component;
+
+import io.jsonwebtoken.Header;
+import io.jsonwebtoken.JwtBuilder;
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.SignatureAlgorithm;
+
+/**
+ * Signs JWT access tokens and authorization codes. HS256 uses JWT_SECRET.
+ * RS256 and ES256 use a key pair whose public half is published as a JWKS
+ * document so that resource servers can validate access tokens without
+ * calling introspect.
+ * 
+ * Key pairs are loaded from the keystore at SMART_JWT_KEYSTORE if set. The
+ * entry named by SMART_JWT_KEY_ALIAS, or else the newest one, signs. All
+ * entries are published so that tokens signed with an older key stay valid.
+ * Without a keystore, a key pair is generated at startup.
+ * 
+ * With SMART_JWT_KEY_ROTATION_MIN, the keystore is reloaded when it changed,
+ * or a new key pair is generated, at that interval. A generated key that is
+ * retired stays in the JWKS for one more interval.
+ * 
+ * Keys are parsed once. The current keys are kept in one immutable object,
+ * so signing never locks.
+ */
+@Component
+public class SmartJwtSigner implements DisposableBean {
+	final static Logger logger = LoggerFactory.getLogger(SmartJwtSigner.class);
+
+	private final SignatureAlgorithm signatureAlgorithm;
+	private final String keystorePath;
+	private final char[] keystorePassword;
+	private final String keyAlias;
+	private long keystoreLastModified = 0L;
+
+	private volatile SigningKeys signingKeys;
+
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * Signing key and published JWKS at a point in time.
+	 */
+	private static final class SigningKeys {
+		final Key signingKey;
+		final String keyId;
+		final List<JSONObject> publicJwks;
+		final String jwks;
+
+		SigningKeys(Key signingKey, String keyId, List<JSONObject> publicJwks) {
+			this.signingKey = signingKey;
+			this.keyId = keyId;
+			this.publicJwks = Collections.unmodifiableList(publicJwks);
+			this.jwks = new JSONObject().put("keys", new JSONArray(publicJwks)).toString();
+		}
+	}
+
+	public SmartJwtSigner() {
+		this(System.getenv("SMART_JWT_SIGNING_ALG"), System.getenv("JWT_SECRET"), System.getenv("SMART_JWT_KEYSTORE"),
+				System.getenv("SMART_JWT_KEYSTORE_PASSWORD"), System.getenv("SMART_JWT_KEY_ALIAS"),
+				System.getenv("SMART_JWT_KEY_ROTATION_MIN"));
+	}
+
+	SmartJwtSigner(String algorithm, String jwtSecret, String keystorePath, String password, String keyAlias,
+			String rotationMinutes) {
+		if (jwtSecret == null) {
+			jwtSecret = "thisismysecret";
+		}
+
+		if (algorithm == null || algorithm.isEmpty()) {
+			algorithm = "HS256";
+		}
+
+		this.keystorePath = keystorePath;
+		keystorePassword = password == null ? new char[0] : password.toCharArray();
+		this.keyAlias = keyAlias;
+
+		signatureAlgorithm = SignatureAlgorithm.forName(algorithm.trim().toUpperCase());
+		if (signatureAlgorithm == SignatureAlgorithm.HS256) {
+			byte[] apiKeySecretBytes = DatatypeConverter.parseBase64Binary(jwtSecret);
+			signingKeys = new SigningKeys(new SecretKeySpec(apiKeySecretBytes, signatureAlgorithm.getJcaName()), null,
+					new ArrayList<JSONObject>());
+		} else if (signatureAlgorithm == SignatureAlgorithm.RS256 || signatureAlgorithm == SignatureAlgorithm.ES256) {
+			if (keystorePath != null && !keystorePath.isEmpty()) {
+				signingKeys = loadKeystore();
+				if (signingKeys == null) {
+					throw new IllegalStateException("No " + signatureAlgorithm.getValue() + " key found in " + keystorePath);
+				}
+			} else {
+				signingKeys = generateSigningKeys(null);
+			}
+
+			if (rotationMinutes != null && !rotationMinutes.trim().isEmpty() && Long.parseLong(rotationMinutes.trim()) > 0) {
+				startRotation(Long.parseLong(rotationMinutes.trim()));
+			}
+		} else {
+			throw new IllegalArgumentException("Unsupported SMART_JWT_SIGNING_ALG: " + algorithm);
+		}
+
+		logger.info("JWT access tokens are signed with " + signatureAlgorithm.getValue());
+	}
+
+	private void startRotation(long rotationMinutes) {
+		scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "smart-jwt-key-rotation");
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler.scheduleWithFixedDelay(this::rotate, rotationMinutes, rotationMinutes, TimeUnit.MINUTES);
+	}
+
+	void rotate() {
+		try {
+			SigningKeys rotated;
+			if (keystorePath != null && !keystorePath.isEmpty()) {
+				if (new File(keystorePath).lastModified() == keystoreLastModified) {
+					return;
+				}
+				rotated = loadKeystore();
+			} else {
+				rotated = generateSigningKeys(signingKeys);
+			}
+
+			if (rotated != null) {
+				signingKeys = rotated;
+				logger.info("JWT signing key rotated. kid=" + rotated.keyId);
+			}
+		} catch (RuntimeException e) {
+			// Keep signing with the current key.
+			logger.error("JWT signing key rotation failed: " + e.getMessage());
+		}
+	}
+
+	private SigningKeys generateSigningKeys(SigningKeys previous) {
+		KeyPair keyPair = generateKeyPair(signatureAlgorithm);
+		String keyId = toKeyId(keyPair);
+
+		List<JSONObject> publicJwks = new ArrayList<JSONObject>();
+		publicJwks.add(toJwk(keyPair, keyId, signatureAlgorithm));
+		if (previous != null && previous.keyId != null) {
+			// Tokens signed with the retired key are still out there.
+			for (JSONObject jwk : previous.publicJwks) {
+				if (previous.keyId.equals(jwk.getString("kid"))) {
+					publicJwks.add(jwk);
+				}
+			}
+		}
+
+		return new SigningKeys(keyPair.getPrivate(), keyId, publicJwks);
+	}
+
+	/**
+	 * Loads key pairs of our algorithm from the keystore. PKCS12 unless the file
+	 * ends with .jks.
+	 * 
+	 * @return keys, or null if the keystore has no usable key.
+	 */
+	private SigningKeys loadKeystore() {
+		File keystoreFile = new File(keystorePath);
+		long lastModified = keystoreFile.lastModified();
+
+		KeyStore keyStore;
+		try (InputStream in = new FileInputStream(keystoreFile)) {
+			keyStore = KeyStore.getInstance(keystorePath.toLowerCase().endsWith(".jks") ? "JKS" : "PKCS12");
+			keyStore.load(in, keystorePassword);
+		} catch (IOException | GeneralSecurityException e) {
+			throw new IllegalStateException("Unable to load keystore " + keystorePath + ": " + e.getMessage(), e);
+		}
+
+		String keyType = signatureAlgorithm == SignatureAlgorithm.RS256 ? "RSA" : "EC";
+		Key signingKey = null;
+		String signingKeyId = null;
+		Date signingKeyCreated = null;
+		List<JSONObject> publicJwks = new ArrayList<JSONObject>();
+		try {
+			Enumeration<String> aliases = keyStore.aliases();
+			while (aliases.hasMoreElements()) {
+				String alias = aliases.nextElement();
+				if (!keyStore.isKeyEntry(alias)) {
+					continue;
+				}
+
+				Key key = keyStore.getKey(alias, keystorePassword);
+				Certificate certificate = keyStore.getCertificate(alias);
+				if (!(key instanceof PrivateKey) || certificate == null || !keyType.equals(key.getAlgorithm())) {
+					continue;
+				}
+
+				KeyPair keyPair = new KeyPair(certificate.getPublicKey(), (PrivateKey) key);
+				String keyId = toKeyId(keyPair);
+				publicJwks.add(toJwk(keyPair, keyId, signatureAlgorithm));
+
+				Date created = keyStore.getCreationDate(alias);
+				boolean signWithThis;
+				if (keyAlias != null && !keyAlias.isEmpty()) {
+					signWithThis = keyAlias.equals(alias);
+				} else {
+					signWithThis = signingKey == null
+							|| (created != null && (signingKeyCreated == null || created.after(signingKeyCreated)));
+				}
+
+				if (signWithThis) {
+					signingKey = key;
+					signingKeyId = keyId;
+					signingKeyCreated = created;
+				}
+			}
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("Unable to read keystore " + keystorePath + ": " + e.getMessage(), e);
+		}
+
+		if (signingKey == null) {
+			return null;
+		}
+
+		keystoreLastModified = lastModified;
+		logger.info(publicJwks.size() + " " + keyType + " keys loaded from " + keystorePath + ". Signing with kid="
+				+ signingKeyId);
+
+		return new SigningKeys(signingKey, signingKeyId, publicJwks);
+	}
+
+	private static String toKeyId(KeyPair keyPair) {
+		return DigestUtils.sha256Hex(keyPair.getPublic().getEncoded()).substring(0, 16);
+	}
+
+	private static KeyPair generateKeyPair(SignatureAlgorithm signatureAlgorithm) {
+		try {
+			KeyPairGenerator generator;
+			if (signatureAlgorithm == SignatureAlgorithm.RS256) {
+				generator = KeyPairGenerator.getInstance("RSA");
+				generator.initialize(2048);
+			} else {
+				generator = KeyPairGenerator.getInstance("EC");
+				generator.initialize(new ECGenParameterSpec("secp256r1"));
+			}
+			return generator.generateKeyPair();
+		} catch (NoSuchAlgorithmException | InvalidAlgorithmParameterException e) {
+			throw new IllegalStateException("Unable to create " + signatureAlgorithm.getValue() + " key pair", e);
+		}
+	}
+
+	static JSONObject toJwk(KeyPair keyPair, String keyId, SignatureAlgorithm signatureAlgorithm) {
+		JSONObject jwk = new JSONObject();
+		jwk.put("kid", keyId);
+		jwk.put("use", "sig");
+		jwk.put("alg", signatureAlgorithm.getValue());
+
+		if (keyPair.getPublic() instanceof RSAPublicKey) {
+			RSAPublicKey publicKey = (RSAPublicKey) keyPair.getPublic();
+			jwk.put("kty", "RSA");
+			jwk.put("n", base64Url(publicKey.getModulus()));
+			jwk.put("e", base64Url(publicKey.getPublicExponent()));
+		} else {
+			ECPublicKey publicKey = (ECPublicKey) keyPair.getPublic();
+			jwk.put("kty", "EC");
+			jwk.put("crv", "P-256");
+			jwk.put("x", base64Url(publicKey.getW().getAffineX(), 32));
+			jwk.put("y", base64Url(publicKey.getW().getAffineY(), 32));
+		}
+
+		return jwk;
+	}
+
+	private static String base64Url(BigInteger value) {
+		byte[] bytes = value.toByteArray();
+		if (bytes.length > 1 && bytes[0] == 0) {
+			bytes = Arrays.copyOfRange(bytes, 1, bytes.length);
+		}
+
+		return Base64.encodeBase64URLSafeString(bytes);
+	}
+
+	private static String base64Url(BigInteger value, int length) {
+		byte[] bytes = value.toByteArray();
+		byte[] fixed = new byte[length];
+		int copy = Math.min(bytes.length, length);
+		System.arraycopy(bytes, bytes.length - copy, fixed, length - copy, copy);
+
+		return Base64.encodeBase64URLSafeString(fixed);
+	}
+
+	public String sign(JSONObject payload) {
+		SigningKeys keys = signingKeys;
+
+		JwtBuilder jwtBuilder = Jwts.builder().setHeaderParam(Header.TYPE, Header.JWT_TYPE);
+		if (keys.keyId != null) {
+			jwtBuilder.setHeaderParam("kid", keys.keyId);
+		}
+
+		return jwtBuilder.setPayload(payload.toString()).signWith(signatureAlgorithm, keys.signingKey).compact();
+	}
+
+	public SignatureAlgorithm getSignatureAlgorithm() {
+		return signatureAlgorithm;
+	}
+
+	public String getKeyId() {
+		return signingKeys.keyId;
+	}
+
+	/**
+	 * @return JWKS document. Encoded when the keys change, not per request.
+	 */
+	public String getJwks() {
+		return signingKeys.jwks;
+	}
+
+	@Override
+	public void destroy() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+		}
+	}
+}
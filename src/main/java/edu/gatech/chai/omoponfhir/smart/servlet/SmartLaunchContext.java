@@ -0,0 +1,69 @@
+package edu.gatech.chai.omoponfhir.smart.servlet;
+
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.codec.binary.Base64;
+import org.json.JSONObject;
+
+/**
+ * Launch parameter of one authorization request, decoded. The controller is
+ * shared by all requests, so anything decoded from launch lives here and is
+ * passed along, never kept in the controller.
+ */
+public final class SmartLaunchContext {
+	private final String patient;
+	private final String encounter;
+	private final boolean launchEhr;
+	private final boolean simEhr;
+	private final String authError;
+
+	private SmartLaunchContext(JSONObject decodedCode) {
+		patient = decodedCode.optString("patient", null);
+		encounter = decodedCode.optString("encounter", null);
+		launchEhr = "1".equals(decodedCode.optString("launch_ehr", null));
+		simEhr = "1".equals(decodedCode.optString("sim_ehr", null));
+		authError = decodedCode.optString("auth_error", null);
+	}
+
+	/**
+	 * Decodes launch, which uses the encoding of the SMART on FHIR launcher.
+	 *
+	 * @return null if there is no launch.
+	 */
+	public static SmartLaunchContext decode(String launchContext) {
+		if (launchContext == null || launchContext.isEmpty()) {
+			return null;
+		}
+
+		String launchCode = new String(Base64.decodeBase64(launchContext), StandardCharsets.UTF_8);
+		return new SmartLaunchContext(SmartLauncherCodec.decode(new JSONObject(launchCode)));
+	}
+
+	public String getPatient() {
+		return patient;
+	}
+
+	public String getEncounter() {
+		return encounter;
+	}
+
+	public boolean isLaunchEhr() {
+		return launchEhr;
+	}
+
+	/**
+	 * @return true if the launcher simulates an EHR, which shows its own patient
+	 *         banner.
+	 */
+	public boolean isSimEhr() {
+		return simEhr;
+	}
+
+	/**
+	 * @return error the simulated EHR asked the authorization to fail with, or
+	 *         null.
+	 */
+	public String getAuthError() {
+		return authError;
+	}
+}
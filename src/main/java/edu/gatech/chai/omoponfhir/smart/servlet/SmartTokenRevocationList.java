@@ -0,0 +1,258 @@
+package edu.gatech.chai.omoponfhir.smart.servlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.stereotype.Component;
+
+import edu.gatech.chai.omoponfhir.security.RevocationFilter;
+
+/**
+ * Hashes of access tokens that were revoked before their exp. An entry is
+ * dropped once the token would have expired anyway, so the list stays small.
+ * 
+ * Resource servers poll a Bloom filter built from the list rather than the
+ * list itself. The filter is built when the list changed and someone asks
+ * for it. This list is the exact answer behind the filter.
+ * 
+ * The list is written to SMART_REVOCATION_SNAPSHOT (default
+ * ~/.omoponfhir/smartonfhir-revoked.json) every
+ * SMART_REVOCATION_SNAPSHOT_SEC (default 10) if it changed, and on shutdown.
+ * It is loaded on startup, so revoked JWTs stay revoked across restarts.
+ * Versions start from the start time, so a version a poller got before a
+ * restart is never taken as current afterwards.
+ *
+ * A JWT replaced by a new one on the token endpoint is only listed if it is
+ * valid for longer than the poll interval of resource servers
+ * (SMART_REVOCATION_REFRESH_SEC, default 30). Listing it would not stop it
+ * any sooner, and every change makes all resource servers fetch the filter.
+ */
+@Component
+public class SmartTokenRevocationList implements DisposableBean {
+	final static Logger logger = LoggerFactory.getLogger(SmartTokenRevocationList.class);
+
+	// token hash -> expiration in millis
+	private final Map<String, Long> revoked = new ConcurrentHashMap<String, Long>();
+
+	// Room for 1000 changes per millisecond of uptime before the next start.
+	private final AtomicLong version = new AtomicLong(System.currentTimeMillis() * 1000L);
+	private final double falsePositiveRate;
+
+	private final File snapshotFile;
+	private final Object snapshotLock = new Object();
+	private volatile boolean dirty = false;
+	private final ScheduledExecutorService scheduler;
+	private final long pollIntervalMillis;
+
+	// Filter of the current version and its JSON. Rebuilt on demand.
+	private volatile RevocationFilter filter = null;
+	private volatile String filterJson = null;
+
+	public SmartTokenRevocationList() {
+		String fppEnv = System.getenv("SMART_REVOCATION_FPP");
+		if (fppEnv != null && !fppEnv.trim().isEmpty()) {
+			falsePositiveRate = Double.parseDouble(fppEnv.trim());
+		} else {
+			falsePositiveRate = RevocationFilter.DEFAULT_FALSE_POSITIVE_RATE;
+		}
+
+		String snapshotPath = System.getenv("SMART_REVOCATION_SNAPSHOT");
+		if (snapshotPath == null || snapshotPath.trim().isEmpty()) {
+			snapshotPath = System.getProperty("user.home") + File.separator + ".omoponfhir" + File.separator
+					+ "smartonfhir-revoked.json";
+		}
+		snapshotFile = new File(snapshotPath.trim());
+		load();
+
+		long refreshSeconds = 30L;
+		String refreshEnv = System.getenv("SMART_REVOCATION_REFRESH_SEC");
+		if (refreshEnv != null && !refreshEnv.trim().isEmpty()) {
+			refreshSeconds = Long.parseLong(refreshEnv.trim());
+		}
+		pollIntervalMillis = TimeUnit.SECONDS.toMillis(refreshSeconds);
+
+		long snapshotSeconds = 10L;
+		String snapshotEnv = System.getenv("SMART_REVOCATION_SNAPSHOT_SEC");
+		if (snapshotEnv != null && !snapshotEnv.trim().isEmpty()) {
+			snapshotSeconds = Long.parseLong(snapshotEnv.trim());
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "smart-revocation-snapshot");
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler.scheduleWithFixedDelay(this::snapshotIfChanged, snapshotSeconds, snapshotSeconds,
+				TimeUnit.SECONDS);
+	}
+
+	private void load() {
+		if (!snapshotFile.exists()) {
+			return;
+		}
+
+		try {
+			String content = new String(Files.readAllBytes(snapshotFile.toPath()), StandardCharsets.UTF_8);
+			JSONObject json = new JSONObject(content);
+			long now = System.currentTimeMillis();
+			for (Object key : json.keySet()) {
+				String hash = (String) key;
+				long expiresAt = json.getLong(hash);
+				if (expiresAt > now) {
+					revoked.put(hash, expiresAt);
+				}
+			}
+			logger.info(revoked.size() + " revoked tokens loaded from " + snapshotFile.getPath());
+		} catch (IOException | RuntimeException e) {
+			logger.error("Unable to load revoked tokens " + snapshotFile.getPath() + ": " + e.getMessage());
+		}
+	}
+
+	void snapshotIfChanged() {
+		try {
+			if (dirty) {
+				snapshot();
+			}
+		} catch (RuntimeException e) {
+			// Never let the scheduled task die.
+			logger.error("Unable to write revoked tokens: " + e.getMessage());
+		}
+	}
+
+	private void snapshot() {
+		synchronized (snapshotLock) {
+			// Cleared first, so a revocation during the write is written next time.
+			dirty = false;
+			purgeExpired();
+
+			JSONObject json = new JSONObject();
+			for (Map.Entry<String, Long> entry : revoked.entrySet()) {
+				json.put(entry.getKey(), entry.getValue().longValue());
+			}
+
+			File parent = snapshotFile.getAbsoluteFile().getParentFile();
+			if (parent != null && !parent.exists()) {
+				parent.mkdirs();
+			}
+
+			// Write aside and move so a crash never leaves a partial snapshot.
+			File tmpFile = new File(snapshotFile.getPath() + ".tmp");
+			try {
+				Files.write(tmpFile.toPath(), json.toString().getBytes(StandardCharsets.UTF_8));
+				Files.move(tmpFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException e) {
+				dirty = true;
+				logger.error("Unable to write revoked tokens " + snapshotFile.getPath() + ": " + e.getMessage());
+			}
+		}
+	}
+
+	public static String hashToken(String token) {
+		return DigestUtils.sha256Hex(token);
+	}
+
+	public void revoke(String token, Long expiresAtMillis) {
+		if (token == null || token.isEmpty()) {
+			return;
+		}
+
+		long expiresAt = expiresAtMillis == null ? System.currentTimeMillis() : expiresAtMillis;
+		if (expiresAt <= System.currentTimeMillis()) {
+			// Already expired. Nothing to revoke.
+			return;
+		}
+
+		if (revoked.put(hashToken(token), expiresAt) == null) {
+			version.incrementAndGet();
+			dirty = true;
+		}
+	}
+
+	/**
+	 * Revokes a JWT that was replaced by a new one, unless it expires before
+	 * resource servers would learn about it.
+	 */
+	public void supersede(String token, Long expiresAtMillis) {
+		if (expiresAtMillis != null && expiresAtMillis <= System.currentTimeMillis() + pollIntervalMillis) {
+			return;
+		}
+
+		revoke(token, expiresAtMillis);
+	}
+
+	public boolean isRevoked(String token) {
+		return revoked.containsKey(hashToken(token));
+	}
+
+	public JSONObject toJson() {
+		purgeExpired();
+
+		JSONArray hashes = new JSONArray();
+		for (String hash : revoked.keySet()) {
+			hashes.put(hash);
+		}
+
+		return new JSONObject().put("revoked", hashes);
+	}
+
+	public long getVersion() {
+		return version.get();
+	}
+
+	/**
+	 * @return JSON of the revocation filter. Encoded once per version.
+	 */
+	public synchronized String getFilterJson() {
+		purgeExpired();
+
+		long currentVersion = version.get();
+		if (filter == null || filter.getVersion() != currentVersion) {
+			filter = RevocationFilter.create(currentVersion, revoked.keySet(), falsePositiveRate);
+			filterJson = filter.toJson().toString();
+			logger.debug("Revocation filter version " + currentVersion + " built with " + filter.getCount()
+					+ " tokens");
+		}
+
+		return filterJson;
+	}
+
+	@Override
+	public void destroy() {
+		scheduler.shutdownNow();
+		if (dirty) {
+			snapshot();
+		}
+	}
+
+	private void purgeExpired() {
+		long now = System.currentTimeMillis();
+		boolean purged = false;
+		for (Iterator<Map.Entry<String, Long>> iter = revoked.entrySet().iterator(); iter.hasNext();) {
+			if (iter.next().getValue() <= now) {
+				iter.remove();
+				purged = true;
+			}
+		}
+
+		if (purged) {
+			// Rebuild the filter without them.
+			version.incrementAndGet();
+		}
+	}
+}
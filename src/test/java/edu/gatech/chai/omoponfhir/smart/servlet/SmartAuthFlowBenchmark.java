@@ -0,0 +1,59 @@
+package edu.gatech.chai.omoponfhir.smart.servlet;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import edu.gatech.chai.omoponfhir.smart.dao.SmartOnFhirSessionMemoryImpl;
+
+/**
+ * Time of authorize, after-auth and token for one launch, with 8 threads on
+ * one controller and the in-memory session store. Each session is deleted
+ * after its token, so the store stays the same size. Not run by the unit
+ * tests. Run with main() from the test classpath, or through the JMH runner.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(8)
+@Fork(1)
+public class SmartAuthFlowBenchmark {
+	private final AtomicInteger requests = new AtomicInteger(0);
+
+	private SmartOnFhirSessionMemoryImpl sessions;
+	private SmartAuthServicesController controller;
+
+	@Setup
+	public void setUp() {
+		sessions = new SmartOnFhirSessionMemoryImpl(null);
+		controller = SmartLaunchContextConcurrencyTest.newController(sessions);
+	}
+
+	@Benchmark
+	public SmartLaunchContextConcurrencyTest.Grant authorizeAndToken() {
+		SmartLaunchContextConcurrencyTest.Grant grant = SmartLaunchContextConcurrencyTest.authorize(controller,
+				requests.getAndIncrement());
+		sessions.delete(sessions.getSmartOnFhirAppByToken(grant.token.getAccessToken()).getSessionId());
+		return grant;
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(SmartAuthFlowBenchmark.class.getSimpleName()).build()).run();
+	}
+}
@@ -0,0 +1,70 @@
+package edu.gatech.chai.omoponfhir.smart.servlet;
+
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import edu.gatech.chai.omoponfhir.security.IntrospectionResult;
+import edu.gatech.chai.omoponfhir.security.LocalTokenValidator;
+
+/**
+ * Time to sign an access token with {@link SmartJwtSigner} and to validate it
+ * with {@link LocalTokenValidator}, per algorithm. Not run by the unit tests.
+ * Run with main() from the test classpath, or through the JMH runner.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SmartJwtBenchmark {
+	@Param({ "HS256", "RS256", "ES256" })
+	public String algorithm;
+
+	private SmartJwtSigner signer;
+	private LocalTokenValidator validator;
+	private JSONObject payload;
+	private String token;
+
+	@Setup
+	public void setUp() {
+		signer = new SmartJwtSigner(algorithm, SmartJwtValidationTest.JWT_SECRET, null, null, null, null);
+		validator = new LocalTokenValidator(signer.getSignatureAlgorithm(), SmartJwtValidationTest.JWT_SECRET,
+				"http://localhost/jwks", new SmartJwtValidationTest.JwksClient(signer), 0L);
+		// Long enough not to expire during the run.
+		payload = SmartJwtValidationTest.payload(0).put("exp", System.currentTimeMillis() / 1000L + 3600L);
+		token = signer.sign(payload);
+		if (!validator.validate(token).isActive()) {
+			throw new IllegalStateException(algorithm + " token does not validate");
+		}
+	}
+
+	@Benchmark
+	public String sign() {
+		return signer.sign(payload);
+	}
+
+	@Benchmark
+	public IntrospectionResult validate() {
+		return validator.validate(token);
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(SmartJwtBenchmark.class.getSimpleName()).build()).run();
+	}
+}
@@ -0,0 +1,107 @@
+package edu.gatech.chai.omoponfhir.smart.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import edu.gatech.chai.omoponfhir.security.IntrospectionClient;
+import edu.gatech.chai.omoponfhir.security.IntrospectionResult;
+import edu.gatech.chai.omoponfhir.security.LocalTokenValidator;
+import io.jsonwebtoken.SignatureAlgorithm;
+
+/**
+ * Signs with {@link SmartJwtSigner} and validates with
+ * {@link LocalTokenValidator} for each supported algorithm. Every token has to
+ * validate with its own patient, and the JWKS has to be fetched once, not per
+ * token. See SmartJwtBenchmark for the time they take.
+ */
+public class SmartJwtValidationTest {
+	static final String JWT_SECRET = "dGhpc2lzbXlzZWNyZXRmb3J0aW1pbmd0ZXN0cw==";
+
+	/**
+	 * Serves the JWKS of the signer instead of fetching it over HTTP.
+	 */
+	static final class JwksClient extends IntrospectionClient {
+		private final SmartJwtSigner signer;
+		private final AtomicInteger fetchCount = new AtomicInteger(0);
+
+		JwksClient(SmartJwtSigner signer) {
+			super(1, 1, 1000, 1000, 1000, 5, 30000L);
+			this.signer = signer;
+		}
+
+		@Override
+		public String get(String documentUrl) {
+			fetchCount.incrementAndGet();
+			return signer.getJwks();
+		}
+	}
+
+	static JSONObject payload(int i) {
+		return new JSONObject().put("token_type", "Bearer").put("patient", "patient-" + i)
+				.put("scope", "launch/patient patient/*.read").put("client_id", "app")
+				.put("exp", System.currentTimeMillis() / 1000L + 300L);
+	}
+
+	private void signAndValidate(String algorithm, int count) {
+		SmartJwtSigner signer = new SmartJwtSigner(algorithm, JWT_SECRET, null, null, null, null);
+		JwksClient client = new JwksClient(signer);
+		LocalTokenValidator validator = new LocalTokenValidator(signer.getSignatureAlgorithm(), JWT_SECRET,
+				"http://localhost/jwks", client, 0L);
+
+		for (int i = 0; i < count; i++) {
+			IntrospectionResult result = validator.validate(signer.sign(payload(i)));
+			assertTrue(algorithm + " token " + i + " is not active", result.isActive());
+			assertEquals("patient-" + i, result.getPatient());
+		}
+
+		assertEquals(algorithm + " fetched the JWKS more than once", algorithm.equals("HS256") ? 0 : 1,
+				client.fetchCount.get());
+	}
+
+	@Test
+	public void hs256() {
+		signAndValidate("HS256", 100);
+	}
+
+	@Test
+	public void rs256() {
+		signAndValidate("RS256", 100);
+	}
+
+	@Test
+	public void es256() {
+		signAndValidate("ES256", 100);
+	}
+
+	@Test
+	public void foreignSignatureIsRejected() {
+		SmartJwtSigner signer = new SmartJwtSigner("ES256", JWT_SECRET, null, null, null, null);
+		SmartJwtSigner other = new SmartJwtSigner("ES256", JWT_SECRET, null, null, null, null);
+		LocalTokenValidator validator = new LocalTokenValidator(SignatureAlgorithm.ES256, null,
+				"http://localhost/jwks", new JwksClient(signer), 0L);
+
+		assertTrue(validator.validate(signer.sign(payload(0))).isActive());
+		IntrospectionResult result = validator.validate(other.sign(payload(0)));
+		assertNotNull(result);
+		assertEquals(false, result.isActive());
+	}
+
+	@Test
+	public void otherAlgorithmIsRejected() {
+		SmartJwtSigner signer = new SmartJwtSigner("RS256", JWT_SECRET, null, null, null, null);
+		SmartJwtSigner hmacSigner = new SmartJwtSigner("HS256", JWT_SECRET, null, null, null, null);
+		LocalTokenValidator validator = new LocalTokenValidator(SignatureAlgorithm.RS256, JWT_SECRET,
+				"http://localhost/jwks", new JwksClient(signer), 0L);
+
+		assertTrue(validator.validate(signer.sign(payload(0))).isActive());
+		// Signed with a secret the resource server knows, but not how the
+		// authorization server signs.
+		assertEquals(false, validator.validate(hmacSigner.sign(payload(0))).isActive());
+	}
+}
@@ -0,0 +1,289 @@
+package edu.gatech.chai.omoponfhir.smart.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.binary.Base64;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.ui.ExtendedModelMap;
+import org.springframework.ui.ModelMap;
+import org.springframework.web.servlet.ModelAndView;
+
+import edu.gatech.chai.omoponfhir.security.IntrospectionResult;
+import edu.gatech.chai.omoponfhir.smart.dao.SmartOnFhirAppImpl;
+import edu.gatech.chai.omoponfhir.smart.dao.SmartOnFhirSession;
+import edu.gatech.chai.omoponfhir.smart.dao.SmartOnFhirSessionMemoryImpl;
+import edu.gatech.chai.omoponfhir.smart.model.SmartOnFhirAppEntry;
+import edu.gatech.chai.omoponfhir.smart.model.SmartOnFhirSessionEntry;
+import edu.gatech.chai.omoponfhir.smart.service.SmartIntrospectionService;
+
+/**
+ * Runs authorize, after-auth and token from many threads at once, each with
+ * its own launch. The controller is one instance for all requests, so every
+ * code has to carry the need_patient_banner and patient of its own launch, and
+ * every session has to get its own tokens for its own patient. A second
+ * launch for the same patient reuses the session with a new code. See
+ * SmartAuthFlowBenchmark for the time the flow takes.
+ */
+public class SmartLaunchContextConcurrencyTest {
+	private static final String JWT_SECRET = "dGhpc2lzbXlzZWNyZXRmb3J0aW1pbmd0ZXN0cw==";
+	private static final String CLIENT_ID = "app";
+	private static final String REDIRECT_URI = "http://localhost/app/redirect";
+
+	private static final int THREADS = 16;
+	private static final int REQUESTS = 4000;
+
+	/**
+	 * One registered app, without the database.
+	 */
+	static final class AppRegistry extends SmartOnFhirAppImpl {
+		private final SmartOnFhirAppEntry appEntry = new SmartOnFhirAppEntry();
+
+		AppRegistry() {
+			appEntry.setAppId(CLIENT_ID);
+			appEntry.setRedirectUri(REDIRECT_URI);
+			appEntry.setScope("launch launch/patient patient/*.read");
+		}
+
+		@Override
+		public SmartOnFhirAppEntry getSmartOnFhirApp(String appId) {
+			return CLIENT_ID.equals(appId) ? new SmartOnFhirAppEntry(appEntry) : null;
+		}
+
+		@Override
+		public SmartOnFhirAppEntry getSmartOnFhirApp(String appId, String redirectUri) {
+			return REDIRECT_URI.equals(redirectUri) ? getSmartOnFhirApp(appId) : null;
+		}
+	}
+
+	static final class Introspection extends SmartIntrospectionService {
+		Introspection(SmartOnFhirAppImpl apps, SmartOnFhirSession sessions) {
+			smartOnFhirApp = apps;
+			smartOnFhirSession = sessions;
+		}
+	}
+
+	/**
+	 * What one request got from after-auth and token.
+	 */
+	static final class Grant {
+		final String code;
+		final TokenResponse token;
+
+		Grant(String code, TokenResponse token) {
+			this.code = code;
+			this.token = token;
+		}
+	}
+
+	private SmartAuthServicesController controller;
+	private SmartOnFhirSessionMemoryImpl sessions;
+	private ExecutorService executor;
+
+	/**
+	 * Controller with the in-memory session store and one registered app.
+	 */
+	static SmartAuthServicesController newController(SmartOnFhirSessionMemoryImpl sessions) {
+		SmartAuthServicesController controller = new SmartAuthServicesController();
+		controller.smartOnFhirApp = new AppRegistry();
+		controller.smartOnFhirSession = sessions;
+		controller.smartIntrospectionService = new Introspection(controller.smartOnFhirApp, sessions);
+		controller.smartJwtSigner = new SmartJwtSigner("HS256", JWT_SECRET, null, null, null, null);
+		return controller;
+	}
+
+	@Before
+	public void setUp() {
+		sessions = new SmartOnFhirSessionMemoryImpl(null);
+		controller = newController(sessions);
+		executor = Executors.newFixedThreadPool(THREADS);
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	// Request i: sim_ehr with a patient, a launch with a patient, or no launch.
+	static boolean hasLaunch(int i) {
+		return i % 3 != 2;
+	}
+
+	static boolean isSimEhr(int i) {
+		return i % 3 == 0;
+	}
+
+	static String patient(int i) {
+		return "patient-" + i;
+	}
+
+	static String launch(int i) {
+		if (!hasLaunch(i)) {
+			return null;
+		}
+
+		JSONObject launch = new JSONObject().put("patient", patient(i)).put("launch_ehr", "1");
+		if (isSimEhr(i)) {
+			launch.put("sim_ehr", "1");
+		}
+		return Base64.encodeBase64String(
+				SmartLauncherCodec.encode(launch).toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	static String scope(int i) {
+		return hasLaunch(i) ? "launch patient/*.read" : "patient/*.read";
+	}
+
+	private static JSONObject codeContext(String code) {
+		String[] parts = code.split("\\.");
+		assertEquals(3, parts.length);
+		return new JSONObject(new String(Base64.decodeBase64(parts[1]), StandardCharsets.UTF_8))
+				.getJSONObject("context");
+	}
+
+	/**
+	 * Authorize, after-auth and token for request i.
+	 */
+	static Grant authorize(SmartAuthServicesController controller, int i) {
+		String state = "state-" + i;
+
+		ModelMap authorizeModel = new ModelMap();
+		ModelAndView authorizeView = controller.authorize(launch(i), "code", CLIENT_ID, REDIRECT_URI, scope(i),
+				null, state, authorizeModel);
+		assertEquals("authenticate", authorizeView.getViewName());
+		assertEquals(Boolean.TRUE, authorizeModel.get("auth_request_validated"));
+
+		ModelMap afterAuthModel = new ModelMap();
+		ModelAndView afterAuthView = controller.afterAuth(launch(i), "code", CLIENT_ID, REDIRECT_URI, scope(i),
+				null, state, afterAuthModel);
+		assertEquals("redirect:" + REDIRECT_URI, afterAuthView.getViewName());
+		assertNull(afterAuthModel.get("error"));
+		assertEquals(state, afterAuthModel.get("state"));
+
+		String code = (String) afterAuthModel.get("code");
+		assertNotNull("request " + i + " got no code", code);
+
+		ResponseEntity<TokenResponse> token = controller.token("authorization_code", code, REDIRECT_URI, CLIENT_ID,
+				null, null, new ExtendedModelMap());
+		assertEquals(HttpStatus.OK, token.getStatusCode());
+		return new Grant(code, token.getBody());
+	}
+
+	private static String launch(String patient, String encounter) {
+		JSONObject launch = new JSONObject().put("patient", patient).put("encounter", encounter).put("launch_ehr",
+				"1");
+		return Base64.encodeBase64String(
+				SmartLauncherCodec.encode(launch).toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	private String afterAuth(String launch) {
+		ModelMap model = new ModelMap();
+		controller.afterAuth(launch, "code", CLIENT_ID, REDIRECT_URI, "launch patient/*.read", null, "state",
+				model);
+		assertNull(model.get("error"));
+		return (String) model.get("code");
+	}
+
+	@Test
+	public void reusedSessionGetsANewCodeAndTheNewLaunch() {
+		String firstCode = afterAuth(launch("patient-1", "encounter-1"));
+		ResponseEntity<TokenResponse> firstToken = controller.token("authorization_code", firstCode, REDIRECT_URI,
+				CLIENT_ID, null, null, new ExtendedModelMap());
+		assertEquals(HttpStatus.OK, firstToken.getStatusCode());
+
+		// Second launch for the same patient while the access token is valid.
+		String secondCode = afterAuth(launch("patient-1", "encounter-2"));
+		assertNotNull(secondCode);
+		assertFalse("the redeemed code was handed out again", secondCode.equals(firstCode));
+		assertEquals("session was not reused", 1, sessions.size());
+		assertNull(sessions.getSmartOnFhirSession(CLIENT_ID, firstCode));
+
+		SmartOnFhirSessionEntry sessionEntry = sessions.getSmartOnFhirSession(CLIENT_ID, secondCode);
+		assertNotNull(sessionEntry);
+		assertEquals("patient-1", sessionEntry.getLaunchPatient());
+		assertEquals("encounter-2", sessionEntry.getLaunchEncounter());
+
+		ResponseEntity<TokenResponse> secondToken = controller.token("authorization_code", secondCode,
+				REDIRECT_URI, CLIENT_ID, null, null, new ExtendedModelMap());
+		assertEquals(HttpStatus.OK, secondToken.getStatusCode());
+		assertEquals("patient-1", secondToken.getBody().getPatient());
+	}
+
+	@Test
+	public void eachSessionHasTheContextOfItsOwnLaunch() throws Exception {
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Future<Grant>> grants = new ArrayList<Future<Grant>>(REQUESTS);
+		for (int i = 0; i < REQUESTS; i++) {
+			final int request = i;
+			grants.add(executor.submit(new Callable<Grant>() {
+				@Override
+				public Grant call() throws Exception {
+					start.await();
+					return authorize(controller, request);
+				}
+			}));
+		}
+		start.countDown();
+
+		Set<String> accessTokens = new HashSet<String>();
+		Set<String> refreshTokens = new HashSet<String>();
+		for (int i = 0; i < REQUESTS; i++) {
+			Grant grant = grants.get(i).get(60, TimeUnit.SECONDS);
+			String code = grant.code;
+			JSONObject context = codeContext(code);
+
+			assertEquals("need_patient_banner of request " + i, !isSimEhr(i),
+					context.getBoolean("need_patient_banner"));
+			if (hasLaunch(i)) {
+				assertEquals("patient of request " + i, patient(i), context.getString("patient"));
+			} else {
+				assertFalse("request " + i + " has no launch", context.has("patient"));
+			}
+
+			SmartOnFhirSessionEntry sessionEntry = sessions.getSmartOnFhirSession(CLIENT_ID, code);
+			assertNotNull("no session for the code of request " + i, sessionEntry);
+			assertEquals(hasLaunch(i) ? patient(i) : null, sessionEntry.getLaunchPatient());
+
+			// Token of the same session, for the same patient.
+			TokenResponse token = grant.token;
+			assertEquals("patient of the token of request " + i, hasLaunch(i) ? patient(i) : null,
+					token.getPatient());
+			assertEquals(sessionEntry.getAccessToken(), token.getAccessToken());
+			assertEquals(sessionEntry.getRefreshToken(), token.getRefreshToken());
+			assertTrue("access token of request " + i + " was issued twice",
+					accessTokens.add(token.getAccessToken()));
+			assertTrue("refresh token of request " + i + " was issued twice",
+					refreshTokens.add(token.getRefreshToken()));
+
+			SmartOnFhirSessionEntry tokenSession = sessions.getSmartOnFhirAppByToken(token.getAccessToken());
+			assertNotNull(tokenSession);
+			assertEquals(sessionEntry.getSessionId(), tokenSession.getSessionId());
+
+			IntrospectionResult introspection = controller.smartIntrospectionService.introspect(token.getAccessToken());
+			assertTrue("access token of request " + i + " is not active", introspection.isActive());
+			assertEquals(hasLaunch(i) ? patient(i) : null, introspection.getPatient());
+		}
+
+		assertEquals(REQUESTS, sessions.size());
+	}
+}